@@ -2,10 +2,10 @@ package com.example.android.bluetoothgatt;
 
 import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothProfile;
 
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.util.UUID;
 
 public class TimerGattProfile {
@@ -31,14 +31,235 @@ public class TimerGattProfile {
     //Read-write characteristic for current offset timestamp
     public static UUID UUID_CHARACTERISTIC_OFFSET =
             UUID.fromString("BD28E457-4026-4270-A99F-F9BC20182E15");
-    //Read/write characteristic
+    //Read/write characteristic, notifies subscribers when it changes
     public static int PROPERTIES_OFFSET =
             BluetoothGattCharacteristic.PROPERTY_READ
-                    | BluetoothGattCharacteristic.PROPERTY_WRITE;
+                    | BluetoothGattCharacteristic.PROPERTY_WRITE
+                    | BluetoothGattCharacteristic.PROPERTY_NOTIFY;
     public static int PERMISSIONS_OFFSET =
             BluetoothGattCharacteristic.PERMISSION_READ
                     | BluetoothGattCharacteristic.PERMISSION_WRITE;
 
+    //Read-write characteristic for the notification interval of each client
+    public static UUID UUID_CHARACTERISTIC_INTERVAL =
+            UUID.fromString("E4358EB6-1F14-4BBF-8E0E-F62DC0FB3241");
+    //Read/write characteristic, value is in milliseconds
+    public static int PROPERTIES_INTERVAL =
+            BluetoothGattCharacteristic.PROPERTY_READ
+                    | BluetoothGattCharacteristic.PROPERTY_WRITE;
+    public static int PERMISSIONS_INTERVAL =
+            BluetoothGattCharacteristic.PERMISSION_READ
+                    | BluetoothGattCharacteristic.PERMISSION_WRITE;
+    //Interval applied until a client writes its own, and the lower bound
+    public static int DEFAULT_NOTIFY_INTERVAL = 2000;
+    public static int MIN_NOTIFY_INTERVAL = 100;
+
+    //Read-only characteristic packing several timestamped elapsed samples
+    public static UUID UUID_CHARACTERISTIC_BATCH =
+            UUID.fromString("45ADA12C-C431-4850-B8ED-A8A7E4FEDB03");
+    //Read-only characteristic, supports notifications
+    public static int PROPERTIES_BATCH =
+            BluetoothGattCharacteristic.PROPERTY_READ
+                    | BluetoothGattCharacteristic.PROPERTY_NOTIFY;
+    public static int PERMISSIONS_BATCH =
+            BluetoothGattCharacteristic.PERMISSION_READ;
+    /*
+     * Batch layout, LE: u8 sample count, u32 server uptime in ms of the
+     * first sample, then per sample a u16 ms since the first sample
+     * and the u32 elapsed seconds.
+     *
+     * Compact batches set the top bit of the count, and follow the
+     * uptime with the first sample's u32 elapsed seconds. Every later
+     * sample is a varint of ms since the previous sample, then a
+     * zigzag varint of the change in elapsed seconds.
+     */
+    public static int BATCH_HEADER_SIZE = 5;
+    public static int BATCH_SAMPLE_SIZE = 6;
+    public static int BATCH_COMPACT_HEADER_SIZE = 9;
+    public static int BATCH_COMPACT_FLAG = 0x80;
+    public static int BATCH_MAX_COUNT = 0x7F;
+
+    //Read-write characteristic selecting how notifications are encoded
+    public static UUID UUID_CHARACTERISTIC_ENCODING =
+            UUID.fromString("DBBAB464-13D2-43ED-8FAC-CA45C265FE0D");
+    //Read/write characteristic, value is a single byte
+    public static int PROPERTIES_ENCODING =
+            BluetoothGattCharacteristic.PROPERTY_READ
+                    | BluetoothGattCharacteristic.PROPERTY_WRITE;
+    public static int PERMISSIONS_ENCODING =
+            BluetoothGattCharacteristic.PERMISSION_READ
+                    | BluetoothGattCharacteristic.PERMISSION_WRITE;
+    public static int ENCODING_FULL = 0;
+    public static int ENCODING_COMPACT = 1;
+
+    /*
+     * Compact elapsed notifications are either a keyframe, 0x00 then
+     * the u32 value, or a delta, 0x01 then a zigzag varint of the change
+     * since the last keyframe. Deltas are kept to two varint bytes, so
+     * keyframes (5 bytes), deltas (2-3 bytes) and full values (4 bytes)
+     * are told apart by length alone.
+     */
+    public static int COMPACT_KEYFRAME = 0;
+    public static int COMPACT_DELTA = 1;
+    public static int COMPACT_KEYFRAME_SIZE = 5;
+    public static int COMPACT_MAX_DELTA = 0x3FFF;
+
+    //MTU of every link until an exchange raises it
+    public static int DEFAULT_MTU = 23;
+    //MTU clients ask for; the stack settles on the lower of both sides
+    public static int PREFERRED_MTU = 517;
+    //Notification header: 1 byte opcode, 2 byte attribute handle
+    public static int NOTIFICATION_OVERHEAD = 3;
+
+    //Optional read-only characteristic summarizing server metrics
+    public static UUID UUID_CHARACTERISTIC_STATS =
+            UUID.fromString("4CD2CABF-D31B-4785-A257-57F58CE8755D");
+    public static int PROPERTIES_STATS =
+            BluetoothGattCharacteristic.PROPERTY_READ;
+    public static int PERMISSIONS_STATS =
+            BluetoothGattCharacteristic.PERMISSION_READ;
+    /*
+     * Stats layout, LE: u32 read requests, u32 write requests,
+     * u32 notifications sent, u16 p99 read latency and u16 p99 write
+     * latency in microseconds, u32 p99 fan-out duration in microseconds.
+     * Latencies saturate rather than wrap.
+     */
+    public static int STATS_SIZE = 20;
+
+    //Read-only characteristic with the server's wall clock, for clock sync
+    public static UUID UUID_CHARACTERISTIC_CLOCK =
+            UUID.fromString("8A0F1C5E-3B7D-4E92-9C61-2F4D8B07A3E6");
+    public static int PROPERTIES_CLOCK =
+            BluetoothGattCharacteristic.PROPERTY_READ;
+    public static int PERMISSIONS_CLOCK =
+            BluetoothGattCharacteristic.PERMISSION_READ;
+    //Clock layout, LE: u64 milliseconds since the epoch
+    public static int CLOCK_SIZE = 8;
+
+    //Read-write characteristic holding offsets to apply at future times
+    public static UUID UUID_CHARACTERISTIC_SCHEDULE =
+            UUID.fromString("6E1B93D4-7A25-4C08-B5F3-0D94A2C7E815");
+    public static int PROPERTIES_SCHEDULE =
+            BluetoothGattCharacteristic.PROPERTY_READ
+                    | BluetoothGattCharacteristic.PROPERTY_WRITE;
+    public static int PERMISSIONS_SCHEDULE =
+            BluetoothGattCharacteristic.PERMISSION_READ
+                    | BluetoothGattCharacteristic.PERMISSION_WRITE;
+    /*
+     * Schedule layout, LE: entries of u32 wall clock seconds since the
+     * epoch and u32 offset to apply from then on. A write replaces the
+     * whole schedule; an empty one clears it. A read returns the entries
+     * not yet applied. Longer than one packet, so clients write it with
+     * prepared (long) writes and read it with blob reads.
+     */
+    public static int SCHEDULE_ENTRY_SIZE = 8;
+    public static int SCHEDULE_MAX_ENTRIES = 32;
+
+    //Read-write characteristic listing recent offset changes
+    public static UUID UUID_CHARACTERISTIC_HISTORY =
+            UUID.fromString("C39E5A07-81D4-4F6B-A2E8-5B17D0F94C62");
+    public static int PROPERTIES_HISTORY =
+            BluetoothGattCharacteristic.PROPERTY_READ
+                    | BluetoothGattCharacteristic.PROPERTY_WRITE;
+    public static int PERMISSIONS_HISTORY =
+            BluetoothGattCharacteristic.PERMISSION_READ
+                    | BluetoothGattCharacteristic.PERMISSION_WRITE;
+    /*
+     * A client writes the last sequence number it has seen (u32, LE),
+     * then reads the changes after it, oldest first, as many as fit in
+     * one attribute value. Sequence numbers start from 1, so writing 0
+     * asks for everything retained.
+     *
+     * History layout, LE: u32 latest sequence, u32 oldest sequence still
+     * retained (latest + 1 when none are), then entries of u32 sequence,
+     * u64 milliseconds since the epoch, u48 writer address and u32
+     * offset. The writer is 0 for offsets applied from the schedule. An
+     * oldest sequence past the client's next one means it missed
+     * changes and must read the offset itself.
+     */
+    public static int HISTORY_HEADER_SIZE = 8;
+    public static int HISTORY_ENTRY_SIZE = 22;
+    public static int HISTORY_CAPACITY = 64;
+
+    //Read-only characteristic identifying the layout of the timer service
+    public static UUID UUID_CHARACTERISTIC_VERSION =
+            UUID.fromString("5F2A7C31-D86E-4B09-93A4-E17C06B85D2F");
+    public static int PROPERTIES_VERSION =
+            BluetoothGattCharacteristic.PROPERTY_READ;
+    public static int PERMISSIONS_VERSION =
+            BluetoothGattCharacteristic.PERMISSION_READ;
+    //Version layout, LE: u32 getServiceHash() of the service as served
+
+    //Standard Generic Attribute service (0x1801) and its Service Changed
+    //characteristic (0x2A05), indicated when the server's layout changes
+    public static UUID UUID_SERVICE_GENERIC_ATTRIBUTE =
+            UUID.fromString("00001801-0000-1000-8000-00805F9B34FB");
+    public static UUID UUID_CHARACTERISTIC_SERVICE_CHANGED =
+            UUID.fromString("00002A05-0000-1000-8000-00805F9B34FB");
+
+    //Longest value an attribute may hold, per the ATT spec
+    public static int MAX_ATTRIBUTE_LENGTH = 512;
+    //ATT error for a prepare write that does not fit the queue
+    public static int GATT_PREPARE_QUEUE_FULL = 0x9;
+    //ATT error for a request the server has no room to carry out
+    public static int GATT_INSUFFICIENT_RESOURCES = 0x11;
+
+    //Standard Client Characteristic Configuration descriptor (0x2902)
+    public static UUID UUID_DESCRIPTOR_CLIENT_CONFIG =
+            UUID.fromString("00002902-0000-1000-8000-00805F9B34FB");
+    public static int PERMISSIONS_CLIENT_CONFIG =
+            BluetoothGattDescriptor.PERMISSION_READ
+                    | BluetoothGattDescriptor.PERMISSION_WRITE;
+
+    /*
+     * Small indices for our attributes, so traces can record which
+     * one a request was for without keeping the UUID around
+     */
+    public static int ATTRIBUTE_UNKNOWN = 0;
+    public static int ATTRIBUTE_ELAPSED = 1;
+    public static int ATTRIBUTE_OFFSET = 2;
+    public static int ATTRIBUTE_INTERVAL = 3;
+    public static int ATTRIBUTE_BATCH = 4;
+    public static int ATTRIBUTE_ENCODING = 5;
+    public static int ATTRIBUTE_STATS = 6;
+    public static int ATTRIBUTE_CLIENT_CONFIG = 7;
+    public static int ATTRIBUTE_CLOCK = 8;
+    public static int ATTRIBUTE_SCHEDULE = 9;
+    public static int ATTRIBUTE_HISTORY = 10;
+    public static int ATTRIBUTE_VERSION = 11;
+    public static int ATTRIBUTE_SERVICE_CHANGED = 12;
+
+    private static final String[] ATTRIBUTE_NAMES = {
+            "unknown", "elapsed", "offset", "interval",
+            "batch", "encoding", "stats", "client-config", "clock",
+            "schedule", "history", "version", "service-changed"
+    };
+
+    public static int getAttributeIndex(UUID uuid) {
+        if (UUID_CHARACTERISTIC_ELAPSED.equals(uuid)) return ATTRIBUTE_ELAPSED;
+        if (UUID_CHARACTERISTIC_OFFSET.equals(uuid)) return ATTRIBUTE_OFFSET;
+        if (UUID_CHARACTERISTIC_INTERVAL.equals(uuid)) return ATTRIBUTE_INTERVAL;
+        if (UUID_CHARACTERISTIC_BATCH.equals(uuid)) return ATTRIBUTE_BATCH;
+        if (UUID_CHARACTERISTIC_ENCODING.equals(uuid)) return ATTRIBUTE_ENCODING;
+        if (UUID_CHARACTERISTIC_STATS.equals(uuid)) return ATTRIBUTE_STATS;
+        if (UUID_CHARACTERISTIC_CLOCK.equals(uuid)) return ATTRIBUTE_CLOCK;
+        if (UUID_CHARACTERISTIC_SCHEDULE.equals(uuid)) return ATTRIBUTE_SCHEDULE;
+        if (UUID_CHARACTERISTIC_HISTORY.equals(uuid)) return ATTRIBUTE_HISTORY;
+        if (UUID_CHARACTERISTIC_VERSION.equals(uuid)) return ATTRIBUTE_VERSION;
+        if (UUID_CHARACTERISTIC_SERVICE_CHANGED.equals(uuid)) {
+            return ATTRIBUTE_SERVICE_CHANGED;
+        }
+        if (UUID_DESCRIPTOR_CLIENT_CONFIG.equals(uuid)) {
+            return ATTRIBUTE_CLIENT_CONFIG;
+        }
+        return ATTRIBUTE_UNKNOWN;
+    }
+
+    public static String getAttributeName(int index) {
+        return index >= 0 && index < ATTRIBUTE_NAMES.length
+                ? ATTRIBUTE_NAMES[index] : "attribute " + index;
+    }
+
     public static String getStateDescription(int state) {
         switch (state) {
             case BluetoothProfile.STATE_CONNECTED:
@@ -63,27 +284,246 @@ public class TimerGattProfile {
         }
     }
 
-    public static byte[] getShiftedTimeValue(int timeOffset) {
-        int value = Math.max(0,
-                (int)(System.currentTimeMillis()/1000) - timeOffset);
-        return bytesFromInt(value);
+    public static int getShiftedTime(long nowSeconds, int timeOffset) {
+        return Math.max(0, (int) nowSeconds - timeOffset);
+    }
+
+    /*
+     * Hash of characteristic and descriptor UUIDs and properties, in
+     * the order the service lists them. Servers publish it in the
+     * version characteristic; it changes whenever the layout does.
+     */
+    public static int getServiceHash(BluetoothGattService service) {
+        int hash = service.getUuid().hashCode();
+        for (BluetoothGattCharacteristic characteristic
+                : service.getCharacteristics()) {
+            hash = 31 * hash + characteristic.getUuid().hashCode();
+            hash = 31 * hash + characteristic.getProperties();
+            for (BluetoothGattDescriptor descriptor
+                    : characteristic.getDescriptors()) {
+                hash = 31 * hash + descriptor.getUuid().hashCode();
+            }
+        }
+        return hash;
+    }
+
+    /*
+     * Payload bytes that fit in one notification at this MTU. An
+     * attribute value never exceeds 512 bytes, even at an MTU of 517.
+     */
+    public static int getNotificationCapacity(int mtu) {
+        return Math.min(mtu - NOTIFICATION_OVERHEAD, MAX_ATTRIBUTE_LENGTH);
+    }
+
+    /** Compact elapsed notifications */
+
+    public static byte[] encodeCompactKeyframe(int value) {
+        byte[] raw = new byte[COMPACT_KEYFRAME_SIZE];
+        raw[0] = (byte) COMPACT_KEYFRAME;
+        writeUInt32(raw, 1, value);
+        return raw;
+    }
+
+    /*
+     * Delta from the keyframe's value, or null when the change is too
+     * large for one and a new keyframe is needed
+     */
+    public static byte[] encodeCompactDelta(int base, int value) {
+        int delta = zigzag(value - base);
+        if ((delta & ~COMPACT_MAX_DELTA) != 0) return null;
+
+        byte[] raw = new byte[1 + varIntSize(delta)];
+        raw[0] = (byte) COMPACT_DELTA;
+        writeVarInt(raw, 1, delta);
+        return raw;
+    }
+
+    public static boolean isCompactKeyframe(byte[] raw) {
+        return raw != null && raw.length == COMPACT_KEYFRAME_SIZE
+                && raw[0] == COMPACT_KEYFRAME;
+    }
+
+    public static boolean isCompactDelta(byte[] raw) {
+        return raw != null && raw.length > 1 && raw[0] == COMPACT_DELTA;
+    }
+
+    public static int decodeCompactKeyframe(byte[] raw) {
+        if (!isCompactKeyframe(raw))
+            throw new IllegalArgumentException("Not a compact keyframe");
+        return readUInt32(raw, 1);
+    }
+
+    //The value a delta stands for, given its keyframe's value
+    public static int decodeCompactDelta(byte[] raw, int base) {
+        if (!isCompactDelta(raw))
+            throw new IllegalArgumentException("Not a compact delta");
+        return base + unzigzag(readVarInt(raw, 1));
+    }
+
+    public static boolean isCompactBatch(byte[] raw) {
+        return raw != null && raw.length > 0
+                && (raw[0] & BATCH_COMPACT_FLAG) != 0;
+    }
+
+    /*
+     * Decode either batch layout into caller-supplied arrays, which
+     * must hold BATCH_MAX_COUNT samples. Times are server uptime in ms,
+     * truncated to 32 bits. Returns the number of samples.
+     */
+    public static int decodeBatch(byte[] raw, int[] times, int[] values) {
+        if (raw == null || raw.length < BATCH_HEADER_SIZE)
+            throw new IllegalArgumentException("Cannot convert raw data to batch");
+
+        final int count = raw[0] & BATCH_MAX_COUNT;
+        if (count == 0) return 0;
+
+        int time = readUInt32(raw, 1);
+        if (!isCompactBatch(raw)) {
+            if (raw.length < BATCH_HEADER_SIZE + count * BATCH_SAMPLE_SIZE)
+                throw new IllegalArgumentException("Truncated batch");
+            for (int i = 0; i < count; i++) {
+                int sample = BATCH_HEADER_SIZE + i * BATCH_SAMPLE_SIZE;
+                times[i] = time + readUInt16(raw, sample);
+                values[i] = readUInt32(raw, sample + 2);
+            }
+            return count;
+        }
+
+        if (raw.length < BATCH_COMPACT_HEADER_SIZE)
+            throw new IllegalArgumentException("Truncated batch");
+        int value = readUInt32(raw, BATCH_HEADER_SIZE);
+        times[0] = time;
+        values[0] = value;
+
+        int offset = BATCH_COMPACT_HEADER_SIZE;
+        try {
+            for (int i = 1; i < count; i++) {
+                int delta = readVarInt(raw, offset);
+                offset += varIntSize(delta);
+                time += delta;
+
+                delta = readVarInt(raw, offset);
+                offset += varIntSize(delta);
+                value += unzigzag(delta);
+
+                times[i] = time;
+                values[i] = value;
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Truncated batch");
+        }
+        return count;
+    }
+
+    /** Variable length integers, 7 bits per byte, low bits first */
+
+    public static int zigzag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    public static int unzigzag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    public static int varIntSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    //Returns the offset just past the encoded value
+    public static int writeVarInt(byte[] dest, int offset, int value) {
+        while ((value & ~0x7F) != 0) {
+            dest[offset++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        dest[offset++] = (byte) value;
+        return offset;
+    }
+
+    /*
+     * Decode one value; its length is varIntSize() of the result,
+     * as encoders never emit padding bytes.
+     */
+    public static int readVarInt(byte[] src, int offset) {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = src[offset++];
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new IllegalArgumentException("Malformed varint");
     }
 
     public static int unsignedIntFromBytes(byte[] raw) {
-        if (raw.length < 4)
+        if (raw == null || raw.length < 4)
             throw new IllegalArgumentException("Cannot convert raw data to int");
 
-        return ((raw[0] & 0xFF)
-                + ((raw[1] & 0xFF) << 8)
-                + ((raw[2] & 0xFF) << 16)
-                + ((raw[3] & 0xFF) << 24));
+        return readUInt32(raw, 0);
+    }
+
+    public static int readUInt16(byte[] src, int offset) {
+        return (src[offset] & 0xFF) + ((src[offset + 1] & 0xFF) << 8);
+    }
+
+    public static void writeUInt16(byte[] dest, int offset, int value) {
+        dest[offset] = (byte) value;
+        dest[offset + 1] = (byte) (value >>> 8);
+    }
+
+    public static int readUInt32(byte[] src, int offset) {
+        return ((src[offset] & 0xFF)
+                + ((src[offset + 1] & 0xFF) << 8)
+                + ((src[offset + 2] & 0xFF) << 16)
+                + ((src[offset + 3] & 0xFF) << 24));
+    }
+
+    //GATT APIs expect LE order
+    public static void writeUInt32(byte[] dest, int offset, int value) {
+        dest[offset] = (byte) value;
+        dest[offset + 1] = (byte) (value >>> 8);
+        dest[offset + 2] = (byte) (value >>> 16);
+        dest[offset + 3] = (byte) (value >>> 24);
+    }
+
+    public static long readUInt64(byte[] src, int offset) {
+        return (readUInt32(src, offset) & 0xFFFFFFFFL)
+                | ((long) readUInt32(src, offset + 4) << 32);
+    }
+
+    public static void writeUInt64(byte[] dest, int offset, long value) {
+        writeUInt32(dest, offset, (int) value);
+        writeUInt32(dest, offset + 4, (int) (value >>> 32));
     }
 
     public static byte[] bytesFromInt(int value) {
         //Convert result into raw bytes. GATT APIs expect LE order
-        return ByteBuffer.allocate(4)
-                .order(ByteOrder.LITTLE_ENDIAN)
-                .putInt(value)
-                .array();
+        byte[] raw = new byte[4];
+        writeUInt32(raw, 0, value);
+        return raw;
+    }
+
+    /*
+     * Parse "AA:BB:CC:DD:EE:FF" into 48 bits without allocating,
+     * or 0 when malformed
+     */
+    public static long packAddress(String address) {
+        if (address == null) return 0;
+
+        long packed = 0;
+        int digits = 0;
+        for (int i = 0; i < address.length(); i++) {
+            int digit = Character.digit(address.charAt(i), 16);
+            if (digit >= 0) {
+                packed = (packed << 4) | digit;
+                digits++;
+            } else if (address.charAt(i) != ':') {
+                return 0;
+            }
+        }
+        return digits == 12 ? packed : 0;
     }
 }
@@ -4,8 +4,6 @@ import android.app.Activity;
 import android.app.TimePickerDialog;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothGatt;
-import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothManager;
 import android.bluetooth.le.ScanCallback;
 import android.bluetooth.le.ScanFilter;
@@ -14,9 +12,10 @@ import android.bluetooth.le.ScanSettings;
 import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.os.Bundle;
+import android.os.Handler;
 import android.os.ParcelUuid;
+import android.os.SystemClock;
 import android.util.Log;
-import android.util.SparseArray;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
@@ -29,22 +28,44 @@ import com.example.android.bluetoothgatt.R;
 import java.text.DateFormat;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import static com.example.android.bluetoothgatt.TimerGattProfile.*;
 
 public class ClientActivity extends Activity
-        implements TimeClientCallback.ClientStatusListener {
+        implements ConnectionManager.DeviceStatusListener {
     private static final String TAG = ClientActivity.class.getSimpleName();
 
+    //Stop scanning after this long to save power
+    private static final long SCAN_PERIOD = 10000;
+    //Hardware batching delay, where the controller supports it
+    private static final long REPORT_DELAY = 1000;
+    //Fastest rate at which the device menu is rebuilt
+    private static final long PUBLISH_INTERVAL = 500;
+    //Peripherals not heard from for this long leave the menu
+    private static final long EXPIRY_NANOS = TimeUnit.SECONDS.toNanos(5);
+    //Refresh rate of the locally extrapolated elapsed value
+    private static final long DISPLAY_INTERVAL = 100;
+
     private BluetoothManager mBluetoothManager;
     private BluetoothAdapter mBluetoothAdapter;
 
-    private SparseArray<BluetoothDevice> mDevices;
+    private Handler mHandler = new Handler();
+    private ScanAggregator mScanAggregator;
+    //Peripherals shown in the menu; item ids index into this list
+    private List<ScanAggregator.Peripheral> mPeripherals =
+            Collections.emptyList();
+    private boolean mScanning;
 
-    private BluetoothGatt mConnectedGatt;
-    private TimeClientCallback mGattCallback;
+    //Every connected timer server, each with its own callback
+    private ConnectionManager mConnectionManager;
+    //Device whose values are shown and whose offset is edited
+    private String mSelectedAddress;
+    //Whether new connections extrapolate elapsed time locally
+    private boolean mClockSyncEnabled;
 
     /* Client UI elements */
     private TextView mLatestValue;
@@ -67,8 +88,8 @@ public class ClientActivity extends Activity
                 (BluetoothManager) getSystemService(BLUETOOTH_SERVICE);
         mBluetoothAdapter = mBluetoothManager.getAdapter();
 
-        mDevices = new SparseArray<BluetoothDevice>();
-        mGattCallback = new TimeClientCallback(this);
+        mScanAggregator = new ScanAggregator(EXPIRY_NANOS);
+        mConnectionManager = new ConnectionManager(this, this);
     }
 
     @Override
@@ -105,22 +126,37 @@ public class ClientActivity extends Activity
     @Override
     protected void onStop() {
         super.onStop();
+        mHandler.removeCallbacks(mDisplayRunnable);
+        mDisplayScheduled = false;
         //Stop any active scans
         stopScan();
-        //Disconnect from any active connection
-        if (mConnectedGatt != null) {
-            mConnectedGatt.disconnect();
-            mConnectedGatt = null;
-        }
+        //Disconnect from any active connections
+        mConnectionManager.disconnectAll();
+        mSelectedAddress = null;
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        mConnectionManager.shutdown();
+    }
+
+    //Callback of the selected device, or null if it is not connected
+    private TimeClientCallback getSelectedConnection() {
+        return mSelectedAddress != null
+                ? mConnectionManager.getConnection(mSelectedAddress)
+                : null;
     }
 
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         getMenuInflater().inflate(R.menu.scan, menu);
+        menu.findItem(R.id.action_clock_sync).setChecked(mClockSyncEnabled);
         //Add any device elements we've discovered to the overflow menu
-        for (int i=0; i < mDevices.size(); i++) {
-            BluetoothDevice device = mDevices.valueAt(i);
-            menu.add(0, mDevices.keyAt(i), 0, device.getName());
+        for (int i=0; i < mPeripherals.size(); i++) {
+            ScanAggregator.Peripheral peripheral = mPeripherals.get(i);
+            menu.add(0, i, 0, peripheral.getDevice().getName()
+                    + " (" + peripheral.getRssi() + " dBm)");
         }
 
         return true;
@@ -130,21 +166,39 @@ public class ClientActivity extends Activity
     public boolean onOptionsItemSelected(MenuItem item) {
         switch (item.getItemId()) {
             case R.id.action_scan:
-                mDevices.clear();
+                mScanAggregator.clear();
+                publishPeripherals();
                 startScan();
                 return true;
+            case R.id.action_clock_sync:
+                //Applies to devices connected from now on
+                mClockSyncEnabled = !mClockSyncEnabled;
+                mConnectionManager.setClockSyncEnabled(mClockSyncEnabled);
+                item.setChecked(mClockSyncEnabled);
+                return true;
             default:
+                if (item.getItemId() < 0
+                        || item.getItemId() >= mPeripherals.size()) {
+                    return super.onOptionsItemSelected(item);
+                }
                 //Obtain the discovered device to connect with
-                BluetoothDevice device = mDevices.get(item.getItemId());
+                BluetoothDevice device =
+                        mPeripherals.get(item.getItemId()).getDevice();
+                stopScan();
                 Log.i(TAG, "Connecting to " + device.getName());
                 /*
-                 * Make a connection with the device using the special
-                 * LE-specific connectGatt() method, passing in a callback
-                 * for GATT events
+                 * Add the device to the connected set, keeping any
+                 * other connections, and show its values from now on
                  */
-                mConnectedGatt = device.connectGatt(this,
-                        false,
-                        mGattCallback);
+                if (mConnectionManager.connect(device) == null) {
+                    Toast.makeText(this, "Too many connections.",
+                            Toast.LENGTH_SHORT).show();
+                } else if (!device.getAddress().equals(mSelectedAddress)) {
+                    mSelectedAddress = device.getAddress();
+                    mShownValue = -1;
+                    mShownTenths = -1;
+                    mShownOffset = -1;
+                }
                 return super.onOptionsItemSelected(item);
         }
     }
@@ -154,7 +208,7 @@ public class ClientActivity extends Activity
      * on the GATT Server. Then write to the characteristic.
      */
     public void onUpdateClick(View v) {
-        if (mConnectedGatt != null) {
+        if (getSelectedConnection() != null) {
             final Calendar now = Calendar.getInstance();
             TimePickerDialog dialog = new TimePickerDialog(this,
                     mTimeSetListener,
@@ -177,16 +231,13 @@ public class ClientActivity extends Activity
             now.set(Calendar.SECOND, 0);
             now.set(Calendar.MILLISECOND, 0);
 
-            BluetoothGattCharacteristic characteristic =
-                    mConnectedGatt.getService(UUID_SERVICE_TIMER)
-                            .getCharacteristic(UUID_CHARACTERISTIC_OFFSET);
-
             int selected = (int) (now.getTimeInMillis() / 1000);
-            byte[] value = bytesFromInt(selected);
-            Log.d(TAG, "Writing value of size " + value.length);
-            characteristic.setValue(value);
-
-            mConnectedGatt.writeCharacteristic(characteristic);
+            Log.d(TAG, "Writing offset " + selected);
+            //Queued behind any request already in flight
+            TimeClientCallback connection = getSelectedConnection();
+            if (connection != null) {
+                connection.writeOffset(selected);
+            }
         }
     };
 
@@ -194,12 +245,8 @@ public class ClientActivity extends Activity
      * Retrieve the current value of the time offset
      */
     public void onGetOffsetClick(View v) {
-        if (mConnectedGatt != null) {
-            BluetoothGattCharacteristic characteristic = mConnectedGatt
-                    .getService(UUID_SERVICE_TIMER)
-                    .getCharacteristic(UUID_CHARACTERISTIC_OFFSET);
-
-            mConnectedGatt.readCharacteristic(characteristic);
+        TimeClientCallback connection = getSelectedConnection();
+        if (connection != null && connection.readOffset()) {
             mCurrentOffset.setText("---");
         }
     }
@@ -216,18 +263,63 @@ public class ClientActivity extends Activity
         ArrayList<ScanFilter> filters = new ArrayList<ScanFilter>();
         filters.add(scanFilter);
 
-        ScanSettings settings = new ScanSettings.Builder()
-                .setScanMode(ScanSettings.SCAN_MODE_BALANCED)
-                .build();
+        ScanSettings.Builder settings = new ScanSettings.Builder()
+                .setScanMode(ScanSettings.SCAN_MODE_BALANCED);
+        //Let the controller queue results instead of waking us for each
+        if (mBluetoothAdapter.isOffloadedScanBatchingSupported()) {
+            settings.setReportDelay(REPORT_DELAY);
+        }
+
+        stopScan();
         mBluetoothAdapter.getBluetoothLeScanner()
-                .startScan(filters, settings, mScanCallback);
+                .startScan(filters, settings.build(), mScanCallback);
+        mScanning = true;
+        mHandler.postDelayed(mStopScanRunnable, SCAN_PERIOD);
+        mHandler.postDelayed(mPublishRunnable, PUBLISH_INTERVAL);
     }
 
     /*
      * Terminate any active scans
      */
     private void stopScan() {
+        mHandler.removeCallbacks(mStopScanRunnable);
+        mHandler.removeCallbacks(mPublishRunnable);
+        if (!mScanning) return;
+
+        mScanning = false;
         mBluetoothAdapter.getBluetoothLeScanner().stopScan(mScanCallback);
+        //Deliver whatever arrived since the last publish
+        publishPeripherals();
+    }
+
+    private Runnable mStopScanRunnable = new Runnable() {
+        @Override
+        public void run() {
+            stopScan();
+        }
+    };
+
+    /*
+     * Rebuild the device menu at a fixed rate while scanning,
+     * and only when the aggregate has changed
+     */
+    private Runnable mPublishRunnable = new Runnable() {
+        @Override
+        public void run() {
+            publishPeripherals();
+            if (mScanning) {
+                mHandler.postDelayed(this, PUBLISH_INTERVAL);
+            }
+        }
+    };
+
+    private void publishPeripherals() {
+        mScanAggregator.expire(SystemClock.elapsedRealtimeNanos());
+        if (!mScanAggregator.isDirty()) return;
+
+        mPeripherals = mScanAggregator.snapshot();
+        //Update the overflow menu
+        invalidateOptionsMenu();
     }
 
     /*
@@ -238,15 +330,11 @@ public class ClientActivity extends Activity
     private ScanCallback mScanCallback = new ScanCallback() {
         @Override
         public void onScanResult(int callbackType, ScanResult result) {
-            Log.d(TAG, "onScanResult");
-
             processResult(result);
         }
 
         @Override
         public void onBatchScanResults(List<ScanResult> results) {
-            Log.d(TAG, "onBatchScanResults: "+results.size()+" results");
-
             for (ScanResult result : results) {
                 processResult(result);
             }
@@ -257,31 +345,80 @@ public class ClientActivity extends Activity
             Log.w(TAG, "LE Scan Failed: "+errorCode);
         }
 
+        /*
+         * Only folds the result into the aggregate; the menu is
+         * rebuilt by mPublishRunnable
+         */
         private void processResult(ScanResult result) {
-            BluetoothDevice device = result.getDevice();
-            Log.i(TAG, "New LE Device: "
-                    + device.getName() + " @ " + result.getRssi());
-            //Add it to the collection
-            mDevices.put(device.hashCode(), device);
-            //Update the overflow menu
-            invalidateOptionsMenu();
-
-            stopScan();
+            mScanAggregator.onResult(result.getDevice(),
+                    result.getRssi(),
+                    result.getTimestampNanos());
         }
     };
 
     /** UI Handlers for events from the GATT client instance */
 
-    @Override
-    public void onTimeValueChanged(int value) {
-        mLatestValue.setText(String.valueOf(value));
-    }
+    //Last values drawn, so unchanged frames skip formatting entirely
+    private int mShownValue = -1;
+    private long mShownOffset = -1;
+    private long mShownCoalesced;
+    private long mShownTenths = -1;
+    //Whether mDisplayRunnable is running
+    private boolean mDisplayScheduled;
 
     @Override
-    public void onTimeOffsetChanged(long offset) {
-        updateDateText(offset);
+    public void onDeviceStatusChanged(BluetoothDevice device,
+                                      ClientStatus status) {
+        //Other connections keep running in the background
+        if (!device.getAddress().equals(mSelectedAddress)) return;
+
+        TimeClientCallback connection = getSelectedConnection();
+        if (connection != null && connection.isClockSyncActive()) {
+            //The estimate is drawn to a tenth of a second instead
+            if (!mDisplayScheduled) {
+                mDisplayScheduled = true;
+                mShownTenths = -1;
+                mHandler.post(mDisplayRunnable);
+            }
+        } else if (status.hasTimeValue()
+                && status.getTimeValue() != mShownValue) {
+            mShownValue = status.getTimeValue();
+            mLatestValue.setText(String.valueOf(mShownValue));
+        }
+        if (status.hasTimeOffset() && status.getTimeOffset() != mShownOffset) {
+            mShownOffset = status.getTimeOffset();
+            updateDateText(mShownOffset);
+        }
+        if (status.getCoalescedUpdates() != mShownCoalesced) {
+            mShownCoalesced = status.getCoalescedUpdates();
+            Log.v(TAG, "Coalesced updates: " + mShownCoalesced);
+        }
     }
 
+    /*
+     * Show the selected server's elapsed value from its clock estimate,
+     * to a tenth of a second, without any radio traffic. Only runs
+     * while that connection is in clock sync mode.
+     */
+    private Runnable mDisplayRunnable = new Runnable() {
+        @Override
+        public void run() {
+            TimeClientCallback connection = getSelectedConnection();
+            if (connection == null || !connection.isClockSyncActive()) {
+                mDisplayScheduled = false;
+                //Notified values take over the display again
+                mShownValue = -1;
+                return;
+            }
+            long elapsed = connection.getEstimatedElapsedMillis();
+            if (elapsed >= 0 && elapsed / 100 != mShownTenths) {
+                mShownTenths = elapsed / 100;
+                mLatestValue.setText(mShownTenths / 10 + "." + mShownTenths % 10);
+            }
+            mHandler.postDelayed(this, DISPLAY_INTERVAL);
+        }
+    };
+
     private void updateDateText(long offset) {
         Date date = new Date(offset);
         String dateString = DateFormat.getDateTimeInstance().format(date);
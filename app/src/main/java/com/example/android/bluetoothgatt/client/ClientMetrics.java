@@ -0,0 +1,56 @@
+package com.example.android.bluetoothgatt.client;
+
+import com.example.android.bluetoothgatt.metrics.LatencyHistogram;
+
+/*
+ * Point-in-time copy of the client's request and notification metrics.
+ * Request latency is the round trip from starting a queued operation
+ * to its callback; handling time is spent inside our own callbacks.
+ */
+public final class ClientMetrics {
+    private final long mReads;
+    private final long mNotifications;
+    private final double mNotificationsPerSecond;
+    private final LatencyHistogram.Snapshot mRequestLatency;
+    private final LatencyHistogram.Snapshot mReadHandling;
+    private final LatencyHistogram.Snapshot mNotificationHandling;
+
+    ClientMetrics(long reads,
+                  long notifications,
+                  double notificationsPerSecond,
+                  LatencyHistogram.Snapshot requestLatency,
+                  LatencyHistogram.Snapshot readHandling,
+                  LatencyHistogram.Snapshot notificationHandling) {
+        mReads = reads;
+        mNotifications = notifications;
+        mNotificationsPerSecond = notificationsPerSecond;
+        mRequestLatency = requestLatency;
+        mReadHandling = readHandling;
+        mNotificationHandling = notificationHandling;
+    }
+
+    public long getReads() {
+        return mReads;
+    }
+
+    public long getNotifications() {
+        return mNotifications;
+    }
+
+    //Average since the current connection was made
+    public double getNotificationsPerSecond() {
+        return mNotificationsPerSecond;
+    }
+
+    public LatencyHistogram.Snapshot getRequestLatency() {
+        return mRequestLatency;
+    }
+
+    public LatencyHistogram.Snapshot getReadHandling() {
+        return mReadHandling;
+    }
+
+    public LatencyHistogram.Snapshot getNotificationHandling() {
+        return mNotificationHandling;
+    }
+}
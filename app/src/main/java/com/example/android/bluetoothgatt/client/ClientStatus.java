@@ -0,0 +1,47 @@
+package com.example.android.bluetoothgatt.client;
+
+/*
+ * Immutable snapshot of what the client knows about the server,
+ * handed to the user interface once per frame. Changes that arrive
+ * faster than that are coalesced into the latest snapshot.
+ */
+public final class ClientStatus {
+    private final boolean mHasTimeValue;
+    private final int mTimeValue;
+    private final boolean mHasTimeOffset;
+    private final long mTimeOffset;
+    private final long mCoalescedUpdates;
+
+    ClientStatus(boolean hasTimeValue, int timeValue,
+                 boolean hasTimeOffset, long timeOffset,
+                 long coalescedUpdates) {
+        mHasTimeValue = hasTimeValue;
+        mTimeValue = timeValue;
+        mHasTimeOffset = hasTimeOffset;
+        mTimeOffset = timeOffset;
+        mCoalescedUpdates = coalescedUpdates;
+    }
+
+    public boolean hasTimeValue() {
+        return mHasTimeValue;
+    }
+
+    //Latest elapsed seconds reported by the server
+    public int getTimeValue() {
+        return mTimeValue;
+    }
+
+    public boolean hasTimeOffset() {
+        return mHasTimeOffset;
+    }
+
+    //Latest offset read from the server, in milliseconds since the epoch
+    public long getTimeOffset() {
+        return mTimeOffset;
+    }
+
+    //Total updates replaced by a newer one before the UI drew them
+    public long getCoalescedUpdates() {
+        return mCoalescedUpdates;
+    }
+}
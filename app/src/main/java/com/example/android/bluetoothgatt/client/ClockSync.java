@@ -0,0 +1,132 @@
+package com.example.android.bluetoothgatt.client;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Estimates the server's wall clock from timed reads of its clock
+ * characteristic, in the manner of NTP. Each sync round takes several
+ * reads and keeps the one with the shortest round trip, assuming the
+ * server read its clock halfway through. Reads that waited in a queue
+ * only lengthen their round trip, so they lose to the others.
+ *
+ * Between rounds the server time is extrapolated from the local
+ * elapsed clock, corrected for the drift measured between rounds. The
+ * error bound grows with time since the last round, and a new round is
+ * due once it passes the limit.
+ *
+ * Local times are SystemClock.elapsedRealtimeNanos() values.
+ */
+final class ClockSync {
+    //Timed reads per round
+    static final int ROUND_SAMPLES = 8;
+    //Drift assumed before two rounds have measured it
+    static final double UNKNOWN_DRIFT = 100e-6;
+    //Rounds closer together than this are too noisy to measure drift
+    static final long MIN_DRIFT_BASELINE_NANOS = TimeUnit.MINUTES.toNanos(1);
+    //Never resync more often than this, however poor the last round was
+    static final long MIN_RESYNC_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    private static final long NANOS_PER_MILLI = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final long mMaxErrorNanos;
+
+    //Best sample of the round in progress
+    private int mRoundSamples;
+    private long mBestDelay = Long.MAX_VALUE;
+    private long mBestLocal;
+    private long mBestOffset;
+
+    //Result of the last completed round; offset is server minus local
+    private boolean mSynced;
+    private long mRefLocal;
+    private long mRefOffset;
+    private long mRefError;
+    //Change of the offset per local nanosecond, and how far off it may be
+    private double mDrift;
+    private double mDriftError;
+    private boolean mHasDrift;
+
+    ClockSync(long maxErrorNanos) {
+        mMaxErrorNanos = maxErrorNanos;
+    }
+
+    synchronized void startRound() {
+        mRoundSamples = 0;
+        mBestDelay = Long.MAX_VALUE;
+    }
+
+    /*
+     * Add one read, sent and answered at the given local times.
+     * Returns true once the round has enough samples.
+     */
+    synchronized boolean addSample(long sendNanos, long receiveNanos,
+                                   long serverMillis) {
+        final long delay = receiveNanos - sendNanos;
+        if (delay >= 0 && delay < mBestDelay) {
+            final long midpoint = sendNanos + delay / 2;
+            mBestDelay = delay;
+            mBestLocal = midpoint;
+            mBestOffset = serverMillis * NANOS_PER_MILLI - midpoint;
+        }
+        return ++mRoundSamples >= ROUND_SAMPLES;
+    }
+
+    /*
+     * Adopt the best sample of the round, measuring drift against the
+     * previous round when they are far enough apart. Either offset may
+     * be off by its round's error, so the drift may be off by their sum
+     * over the baseline; a measurement worse than assuming no drift at
+     * all is not used.
+     */
+    synchronized void finishRound() {
+        if (mBestDelay == Long.MAX_VALUE) return;
+
+        //Half the round trip, plus the server's millisecond resolution
+        final long error = mBestDelay / 2 + NANOS_PER_MILLI;
+        final long baseline = mBestLocal - mRefLocal;
+        if (mSynced && baseline >= MIN_DRIFT_BASELINE_NANOS) {
+            final double driftError = (double) (mRefError + error) / baseline;
+            if (driftError < UNKNOWN_DRIFT) {
+                mDrift = (double) (mBestOffset - mRefOffset) / baseline;
+                mDriftError = driftError;
+                mHasDrift = true;
+            }
+        }
+        mRefLocal = mBestLocal;
+        mRefOffset = mBestOffset;
+        mRefError = error;
+        mSynced = true;
+    }
+
+    synchronized boolean isSynced() {
+        return mSynced;
+    }
+
+    synchronized long getServerTimeMillis(long localNanos) {
+        final long offset = mRefOffset
+                + (long) (mDrift * (localNanos - mRefLocal));
+        return (localNanos + offset) / NANOS_PER_MILLI;
+    }
+
+    synchronized long getErrorBoundNanos(long localNanos) {
+        if (!mSynced) return Long.MAX_VALUE;
+
+        return mRefError
+                + (long) (getDriftBound() * Math.abs(localNanos - mRefLocal));
+    }
+
+    /*
+     * Time left until the error bound passes the limit
+     */
+    synchronized long getNanosUntilResync(long localNanos) {
+        if (!mSynced) return 0;
+
+        final long budget = mMaxErrorNanos - mRefError;
+        final long due = mRefLocal + (long) (budget / getDriftBound());
+        return Math.max(MIN_RESYNC_NANOS, due - localNanos);
+    }
+
+    private double getDriftBound() {
+        return mHasDrift ? mDriftError : UNKNOWN_DRIFT;
+    }
+}
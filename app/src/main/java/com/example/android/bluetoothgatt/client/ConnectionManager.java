@@ -0,0 +1,190 @@
+package com.example.android.bluetoothgatt.client;
+
+import android.bluetooth.BluetoothDevice;
+import android.content.Context;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/*
+ * Keeps GATT connections to several timer servers at once. Each
+ * connection has its own TimeClientCallback, with its own state and
+ * operation queue, and all of them share one GATT thread and one
+ * OperationScheduler so requests are issued to the connections in
+ * turn. Status updates from every connection reach a single listener,
+ * tagged with the device they came from. Service layouts found by
+ * discovery are remembered in a DiscoveryCache shared by all of them.
+ *
+ * Each device's link is kept up by a ReconnectEngine until it is
+ * disconnected here. The cap counts devices being kept up, whether or
+ * not their link currently is.
+ */
+public class ConnectionManager {
+    private static final String TAG = ConnectionManager.class.getSimpleName();
+
+    public static final int DEFAULT_MAX_CONNECTIONS = 4;
+    //Requests in flight across all connections
+    private static final int SCHEDULER_SLOTS = 1;
+
+    public interface DeviceStatusListener {
+        //Called on the main thread with the latest state of one device
+        void onDeviceStatusChanged(BluetoothDevice device,
+                                   ClientStatus status);
+    }
+
+    private final ReconnectEngine.Connector mConnector;
+    private final DeviceStatusListener mListener;
+    private final HandlerThread mHandlerThread;
+    private final OperationScheduler mScheduler;
+    private final DiscoveryCache mDiscoveryCache;
+    private final ConnectionTimings mTimings;
+    //Spreads the retries of devices that dropped together
+    private final Random mRandom;
+    //Keyed by device address, in connection order
+    private final Map<String, ReconnectEngine> mConnections;
+    private int mMaxConnections;
+    private volatile boolean mClockSyncEnabled;
+    private volatile boolean mBatchingEnabled;
+    private volatile boolean mCompactEncodingEnabled;
+
+    public ConnectionManager(Context context, DeviceStatusListener listener) {
+        this(context, listener, DEFAULT_MAX_CONNECTIONS);
+    }
+
+    public ConnectionManager(Context context,
+                             DeviceStatusListener listener,
+                             int maxConnections) {
+        this(ReconnectEngine.newGattConnector(context.getApplicationContext()),
+                listener, maxConnections);
+    }
+
+    //Connects through the given connector, e.g. to a loopback server
+    ConnectionManager(ReconnectEngine.Connector connector,
+                      DeviceStatusListener listener,
+                      int maxConnections) {
+        mConnector = connector;
+        mListener = listener;
+        mMaxConnections = maxConnections;
+        mScheduler = new OperationScheduler(SCHEDULER_SLOTS);
+        mTimings = new ConnectionTimings();
+        mRandom = new Random();
+        mConnections = new LinkedHashMap<String, ReconnectEngine>();
+
+        mHandlerThread = new HandlerThread(TAG,
+                Process.THREAD_PRIORITY_FOREGROUND);
+        mHandlerThread.start();
+        mDiscoveryCache = new DiscoveryCache();
+    }
+
+    public synchronized void setMaxConnections(int maxConnections) {
+        mMaxConnections = maxConnections;
+    }
+
+    public synchronized int getMaxConnections() {
+        return mMaxConnections;
+    }
+
+    //Applies to connections made afterwards
+    public void setClockSyncEnabled(boolean enabled) {
+        mClockSyncEnabled = enabled;
+    }
+
+    //Applies to connections made afterwards
+    public void setBatchingEnabled(boolean enabled) {
+        mBatchingEnabled = enabled;
+    }
+
+    //Applies to connections made afterwards
+    public void setCompactEncodingEnabled(boolean enabled) {
+        mCompactEncodingEnabled = enabled;
+    }
+
+    public ConnectionTimings getConnectionTimings() {
+        return mTimings;
+    }
+
+    /*
+     * Connect to a device, or return its existing connection. Returns
+     * null when the connection cap has been reached.
+     */
+    public synchronized TimeClientCallback connect(
+            final BluetoothDevice device) {
+        ReconnectEngine connection = mConnections.get(device.getAddress());
+        if (connection != null) {
+            return connection.getCallback();
+        }
+        if (mConnections.size() >= mMaxConnections) {
+            Log.w(TAG, "Connection cap of " + mMaxConnections + " reached");
+            return null;
+        }
+
+        TimeClientCallback callback = new TimeClientCallback(
+                new TimeClientCallback.ClientStatusListener() {
+                    @Override
+                    public void onClientStatusChanged(ClientStatus status) {
+                        mListener.onDeviceStatusChanged(device, status);
+                    }
+                },
+                mHandlerThread.getLooper(),
+                mScheduler);
+        callback.setDiscoveryCache(mDiscoveryCache);
+        callback.setClockSyncEnabled(mClockSyncEnabled);
+        callback.setBatchingEnabled(mBatchingEnabled);
+        callback.setCompactEncodingEnabled(mCompactEncodingEnabled);
+        connection = new ReconnectEngine(mConnector, device, callback,
+                mHandlerThread.getLooper(), mTimings, mRandom);
+        mConnections.put(device.getAddress(), connection);
+        connection.start();
+        return callback;
+    }
+
+    /*
+     * Stop keeping a device connected and release its handle
+     */
+    public synchronized void disconnect(String address) {
+        ReconnectEngine connection = mConnections.remove(address);
+        if (connection != null) {
+            connection.stop();
+        }
+    }
+
+    public synchronized void disconnectAll() {
+        for (ReconnectEngine connection : mConnections.values()) {
+            connection.stop();
+        }
+        mConnections.clear();
+    }
+
+    /*
+     * Disconnect everything and stop the shared GATT thread
+     */
+    public void shutdown() {
+        disconnectAll();
+        mHandlerThread.quitSafely();
+    }
+
+    //Callback for a device, or null if it is not connected
+    public synchronized TimeClientCallback getConnection(String address) {
+        ReconnectEngine connection = mConnections.get(address);
+        return connection != null ? connection.getCallback() : null;
+    }
+
+    public synchronized List<BluetoothDevice> getDevices() {
+        List<BluetoothDevice> devices =
+                new ArrayList<BluetoothDevice>(mConnections.size());
+        for (ReconnectEngine connection : mConnections.values()) {
+            devices.add(connection.getDevice());
+        }
+        return devices;
+    }
+
+    public synchronized int size() {
+        return mConnections.size();
+    }
+}
@@ -0,0 +1,70 @@
+package com.example.android.bluetoothgatt.client;
+
+import com.example.android.bluetoothgatt.metrics.LatencyHistogram;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Connection setup times across every device of a ConnectionManager,
+ * for tuning reconnect behaviour against real drop rates. Connect time
+ * runs from starting an attempt to the link coming up; discovery and
+ * first notification are measured from the link coming up.
+ */
+public final class ConnectionTimings {
+    private final LatencyHistogram mConnect = new LatencyHistogram();
+    private final LatencyHistogram mDiscover = new LatencyHistogram();
+    private final LatencyHistogram mFirstNotification = new LatencyHistogram();
+    private final AtomicLong mAttempts = new AtomicLong();
+    private final AtomicLong mDrops = new AtomicLong();
+    private final AtomicLong mCachedSetups = new AtomicLong();
+
+    void recordAttempt() {
+        mAttempts.incrementAndGet();
+    }
+
+    void recordDrop() {
+        mDrops.incrementAndGet();
+    }
+
+    void recordCachedSetup() {
+        mCachedSetups.incrementAndGet();
+    }
+
+    void recordConnect(long nanos) {
+        mConnect.recordNanos(nanos);
+    }
+
+    void recordDiscover(long nanos) {
+        mDiscover.recordNanos(nanos);
+    }
+
+    void recordFirstNotification(long nanos) {
+        mFirstNotification.recordNanos(nanos);
+    }
+
+    public long getAttempts() {
+        return mAttempts.get();
+    }
+
+    //Links lost without being asked to disconnect
+    public long getDrops() {
+        return mDrops.get();
+    }
+
+    //Links set up from services kept by the handle, without discovery
+    public long getCachedSetups() {
+        return mCachedSetups.get();
+    }
+
+    public LatencyHistogram.Snapshot getConnectTime() {
+        return mConnect.snapshot();
+    }
+
+    public LatencyHistogram.Snapshot getDiscoverTime() {
+        return mDiscover.snapshot();
+    }
+
+    public LatencyHistogram.Snapshot getFirstNotificationTime() {
+        return mFirstNotification.snapshot();
+    }
+}
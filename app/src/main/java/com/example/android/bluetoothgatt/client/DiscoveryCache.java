@@ -0,0 +1,61 @@
+package com.example.android.bluetoothgatt.client;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+ * Remembers, per device address, the layout version the server
+ * published when its services were last discovered. A handle that
+ * reconnects still holds the services it discovered before; the client
+ * reads the version characteristic from them, and when the server
+ * still reports the cached version it subscribes straight away instead
+ * of discovering again. Entries are dropped when the version differs,
+ * the server indicates Service Changed, or a subscription fails.
+ *
+ * The framework gives a new handle no services until it discovers, so
+ * only a reconnecting handle can use an entry. Entries are kept in
+ * memory for that reason; nothing is written to disk.
+ */
+public class DiscoveryCache {
+    private static final int MAX_ENTRIES = 64;
+
+    //Least recently used first
+    private final Map<String, Integer> mEntries =
+            new LinkedHashMap<String, Integer>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(
+                        Map.Entry<String, Integer> eldest) {
+                    return size() > MAX_ENTRIES;
+                }
+            };
+
+    //Whether there is anything to check the server's version against
+    public synchronized boolean contains(String address) {
+        return address != null && mEntries.containsKey(address);
+    }
+
+    /*
+     * Whether the server still reports the version it had when this
+     * device was last discovered
+     */
+    public synchronized boolean isValid(String address, int version) {
+        if (address == null) return false;
+
+        Integer cached = mEntries.get(address);
+        return cached != null && cached == version;
+    }
+
+    public synchronized void put(String address, int version) {
+        if (address == null) return;
+
+        mEntries.put(address, version);
+    }
+
+    public synchronized void invalidate(String address) {
+        mEntries.remove(address);
+    }
+
+    public synchronized int size() {
+        return mEntries.size();
+    }
+}
@@ -0,0 +1,381 @@
+package com.example.android.bluetoothgatt.client;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.example.android.bluetoothgatt.metrics.LatencyHistogram;
+import com.example.android.bluetoothgatt.transport.GattClientTransport;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.example.android.bluetoothgatt.TimerGattProfile.*;
+
+/*
+ * Serializes GATT operations on one connection. The stack only allows
+ * a single outstanding request, and silently drops anything issued
+ * while one is in flight, so callers enqueue here instead and each
+ * operation starts once the previous one's callback has arrived.
+ *
+ * Redundant work is merged while still queued: a read of the attribute
+ * last queued is dropped, and a write replaces the value of a write
+ * last queued for the same attribute. Anything queued in between keeps
+ * its place, so merging never reorders operations.
+ *
+ * Queues of several connections may share an OperationScheduler, in
+ * which case each operation also waits for a slot from the scheduler.
+ *
+ * An operation the stack refuses to start, or that gets no answer
+ * before the timeout, is failed through the same transport callback
+ * that reports errors from the server, so callers waiting on its
+ * result are never left hanging.
+ */
+class GattOperationQueue {
+    private static final String TAG = GattOperationQueue.class.getSimpleName();
+
+    public static final long DEFAULT_TIMEOUT = 5000;
+
+    private static final int OP_READ = 1;
+    private static final int OP_WRITE = 2;
+    private static final int OP_WRITE_DESCRIPTOR = 3;
+    private static final int OP_MTU = 4;
+    private static final int OP_DISCOVER = 5;
+
+    private static class Operation {
+        final int type;
+        final Object target;
+        byte[] value;
+
+        Operation(int type, Object target, byte[] value) {
+            this.type = type;
+            this.target = target;
+            this.value = value;
+        }
+    }
+
+    private final GattClientTransport mTransport;
+    //Receives the failure of every operation the stack rejects
+    private final GattClientTransport.Callback mCallback;
+    private final Handler mHandler;
+    private final long mTimeoutMillis;
+    //Round trip of each operation, from start to callback or timeout
+    private final LatencyHistogram mLatency;
+    //Optional, shared with the queues of other connections
+    private final OperationScheduler mScheduler;
+
+    private final ArrayDeque<Operation> mPending;
+    private Operation mCurrent;
+    private long mCurrentStart;
+    //Whether this queue holds one of the scheduler's slots
+    private boolean mHoldsSlot;
+    //Whether a slot handed over by the scheduler waits on the handler
+    private final AtomicBoolean mResumePending = new AtomicBoolean();
+    //Thread reporting a failure, whose completion calls are ignored
+    private volatile Thread mFailingThread;
+
+    public GattOperationQueue(GattClientTransport transport,
+                              GattClientTransport.Callback callback,
+                              Handler handler,
+                              long timeoutMillis,
+                              LatencyHistogram latency) {
+        this(transport, callback, handler, timeoutMillis, latency, null);
+    }
+
+    public GattOperationQueue(GattClientTransport transport,
+                              GattClientTransport.Callback callback,
+                              Handler handler,
+                              long timeoutMillis,
+                              LatencyHistogram latency,
+                              OperationScheduler scheduler) {
+        mTransport = transport;
+        mCallback = callback;
+        mHandler = handler;
+        mTimeoutMillis = timeoutMillis;
+        mLatency = latency;
+        mScheduler = scheduler;
+        mPending = new ArrayDeque<Operation>();
+    }
+
+    public GattClientTransport getTransport() {
+        return mTransport;
+    }
+
+    public void read(BluetoothGattCharacteristic characteristic) {
+        enqueue(OP_READ, characteristic, null);
+    }
+
+    public void write(BluetoothGattCharacteristic characteristic,
+                      byte[] value) {
+        enqueue(OP_WRITE, characteristic, value);
+    }
+
+    public void writeDescriptor(BluetoothGattDescriptor descriptor,
+                                byte[] value) {
+        enqueue(OP_WRITE_DESCRIPTOR, descriptor, value);
+    }
+
+    /*
+     * The exchange applies to the whole connection, so the
+     * transport itself is the target.
+     */
+    public void requestMtu(int mtu) {
+        enqueue(OP_MTU, mTransport, bytesFromInt(mtu));
+    }
+
+    //Like the MTU exchange, discovery covers the whole connection
+    public void discoverServices() {
+        enqueue(OP_DISCOVER, mTransport, null);
+    }
+
+    public synchronized int size() {
+        return mPending.size() + (mCurrent != null ? 1 : 0);
+    }
+
+    /*
+     * Drop everything, e.g. when the connection goes away
+     */
+    public synchronized void clear() {
+        mHandler.removeCallbacks(mTimeoutRunnable);
+        mPending.clear();
+        mCurrent = null;
+        if (mScheduler != null) {
+            mScheduler.remove(this);
+            //A slot on its way here would never arrive
+            if (mResumePending.getAndSet(false)) {
+                mHandler.removeCallbacks(mResumeRunnable);
+                mScheduler.release();
+            }
+        }
+        releaseSlot();
+    }
+
+    /*
+     * Called by the scheduler when it hands this queue a slot. Returns
+     * false if the queue cannot take it, e.g. because its looper quit
+     * or another slot is already on its way, so the scheduler passes
+     * it on instead.
+     */
+    boolean resume() {
+        if (mResumePending.getAndSet(true)) return false;
+        if (mHandler.post(mResumeRunnable)) return true;
+        mResumePending.set(false);
+        return false;
+    }
+
+    /*
+     * When the read in flight on the characteristic was handed to the
+     * stack, or -1 if it is not the one in flight, e.g. after it timed
+     * out. Only meaningful before the read is completed.
+     */
+    public synchronized long getReadStartNanos(
+            BluetoothGattCharacteristic characteristic) {
+        if (mCurrent == null || mCurrent.type != OP_READ
+                || mCurrent.target != characteristic) {
+            return -1;
+        }
+        return mCurrentStart;
+    }
+
+    /** Completion, called from the matching transport callbacks */
+
+    public void onCharacteristicRead(BluetoothGattCharacteristic characteristic,
+                                     int status) {
+        complete(OP_READ, characteristic, status);
+    }
+
+    public void onCharacteristicWrite(BluetoothGattCharacteristic characteristic,
+                                      int status) {
+        complete(OP_WRITE, characteristic, status);
+    }
+
+    public void onDescriptorWrite(BluetoothGattDescriptor descriptor,
+                                  int status) {
+        complete(OP_WRITE_DESCRIPTOR, descriptor, status);
+    }
+
+    public void onMtuChanged(int status) {
+        complete(OP_MTU, mTransport, status);
+    }
+
+    public void onServicesDiscovered(int status) {
+        complete(OP_DISCOVER, mTransport, status);
+    }
+
+    private synchronized void enqueue(int type, Object target, byte[] value) {
+        Operation last = mPending.peekLast();
+        if (last != null && last.type == type && last.target == target) {
+            //Same request still waiting; keep only the newest value
+            last.value = value;
+            return;
+        }
+
+        mPending.addLast(new Operation(type, target, value));
+        if (mCurrent == null) {
+            startNext();
+        }
+    }
+
+    private synchronized void complete(int type, Object target, int status) {
+        if (mFailingThread == Thread.currentThread()) {
+            //Passed back from fail(); the operation is no longer current
+            return;
+        }
+        if (mCurrent == null
+                || mCurrent.type != type
+                || mCurrent.target != target) {
+            //Late callback for an operation that already timed out
+            return;
+        }
+        if (status != BluetoothGatt.GATT_SUCCESS) {
+            Log.w(TAG, "Operation " + type + " failed: " + status);
+        }
+
+        mHandler.removeCallbacks(mTimeoutRunnable);
+        mLatency.recordNanos(SystemClock.elapsedRealtimeNanos() - mCurrentStart);
+        mCurrent = null;
+        //Give other connections their turn before our next operation
+        releaseSlot();
+        startNext();
+    }
+
+    private synchronized void startNext() {
+        while (mCurrent == null && !mPending.isEmpty()) {
+            if (!mHoldsSlot) {
+                if (mScheduler != null && !mScheduler.acquire(this)) {
+                    //Resumed once another connection hands over a slot
+                    return;
+                }
+                mHoldsSlot = true;
+            }
+
+            Operation op = mPending.removeFirst();
+            mCurrentStart = SystemClock.elapsedRealtimeNanos();
+            if (start(op)) {
+                mCurrent = op;
+                mHandler.postDelayed(mTimeoutRunnable, mTimeoutMillis);
+            } else {
+                Log.w(TAG, "Operation " + op.type + " rejected by the stack");
+                fail(op);
+            }
+        }
+        if (mCurrent == null) {
+            releaseSlot();
+        }
+    }
+
+    private void releaseSlot() {
+        if (!mHoldsSlot) return;
+
+        mHoldsSlot = false;
+        if (mScheduler != null) {
+            mScheduler.release();
+        }
+    }
+
+    private boolean start(Operation op) {
+        switch (op.type) {
+            case OP_READ:
+                return mTransport.readCharacteristic(
+                        (BluetoothGattCharacteristic) op.target);
+            case OP_WRITE:
+                BluetoothGattCharacteristic characteristic =
+                        (BluetoothGattCharacteristic) op.target;
+                characteristic.setValue(op.value);
+                return mTransport.writeCharacteristic(characteristic);
+            case OP_WRITE_DESCRIPTOR:
+                BluetoothGattDescriptor descriptor =
+                        (BluetoothGattDescriptor) op.target;
+                descriptor.setValue(op.value);
+                return mTransport.writeDescriptor(descriptor);
+            case OP_MTU:
+                return mTransport.requestMtu(unsignedIntFromBytes(op.value));
+            case OP_DISCOVER:
+                return mTransport.discoverServices();
+            default:
+                return false;
+        }
+    }
+
+    /*
+     * Report the operation as failed, once the lock is released. It is
+     * no longer current, so the completion the callback passes back to
+     * this queue is ignored, even if the next operation has the same
+     * target.
+     */
+    private void fail(final Operation op) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mFailingThread = Thread.currentThread();
+                try {
+                    report(op, BluetoothGatt.GATT_FAILURE);
+                } finally {
+                    mFailingThread = null;
+                }
+            }
+        });
+    }
+
+    private void report(Operation op, int status) {
+        switch (op.type) {
+            case OP_READ:
+                mCallback.onCharacteristicRead(mTransport,
+                        (BluetoothGattCharacteristic) op.target, status);
+                break;
+            case OP_WRITE:
+                mCallback.onCharacteristicWrite(mTransport,
+                        (BluetoothGattCharacteristic) op.target, status);
+                break;
+            case OP_WRITE_DESCRIPTOR:
+                mCallback.onDescriptorWrite(mTransport,
+                        (BluetoothGattDescriptor) op.target, status);
+                break;
+            case OP_MTU:
+                mCallback.onMtuChanged(mTransport, DEFAULT_MTU, status);
+                break;
+            case OP_DISCOVER:
+                mCallback.onServicesDiscovered(mTransport, status);
+                break;
+        }
+    }
+
+    private Runnable mTimeoutRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (GattOperationQueue.this) {
+                if (mCurrent == null) return;
+
+                Log.w(TAG, "Operation " + mCurrent.type + " timed out");
+                mLatency.recordNanos(
+                        SystemClock.elapsedRealtimeNanos() - mCurrentStart);
+                //Whoever waits on the result hears it failed
+                fail(mCurrent);
+                mCurrent = null;
+                releaseSlot();
+                startNext();
+            }
+        }
+    };
+
+    private Runnable mResumeRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (GattOperationQueue.this) {
+                //Cleared meanwhile, and the slot went back with it
+                if (!mResumePending.getAndSet(false)) return;
+                if (mHoldsSlot) {
+                    //Took a free slot meanwhile; this one is surplus
+                    mScheduler.release();
+                    return;
+                }
+                mHoldsSlot = true;
+                //Hands the slot straight back if nothing is pending
+                startNext();
+            }
+        }
+    };
+}
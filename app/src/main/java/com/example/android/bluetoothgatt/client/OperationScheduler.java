@@ -0,0 +1,68 @@
+package com.example.android.bluetoothgatt.client;
+
+import java.util.ArrayDeque;
+
+/*
+ * Shares a fixed number of in-flight GATT operations between the
+ * operation queues of several connections. A queue takes a slot for
+ * each operation and gives it back when the operation completes; when
+ * other queues are waiting, the slot passes to the one that has waited
+ * longest. Each connection therefore gets one operation per turn, and
+ * a busy connection cannot starve a quiet one.
+ */
+class OperationScheduler {
+
+    private final ArrayDeque<GattOperationQueue> mWaiting;
+    private int mAvailable;
+
+    /*
+     * The stack runs one request at a time per adapter, so more than
+     * one slot mostly adds contention
+     */
+    public OperationScheduler(int slots) {
+        if (slots < 1) {
+            throw new IllegalArgumentException("At least one slot required");
+        }
+        mAvailable = slots;
+        mWaiting = new ArrayDeque<GattOperationQueue>();
+    }
+
+    /*
+     * Returns true if the queue may start an operation now. Otherwise
+     * the queue is put in line and resumed once a slot is handed to it.
+     */
+    public synchronized boolean acquire(GattOperationQueue queue) {
+        if (mAvailable > 0 && mWaiting.isEmpty()) {
+            mAvailable--;
+            return true;
+        }
+        if (!mWaiting.contains(queue)) {
+            mWaiting.addLast(queue);
+        }
+        return false;
+    }
+
+    /*
+     * Return a slot, handing it straight to the next queue in line.
+     * Queues that cannot take it, e.g. once their looper quit, lose
+     * their place and the slot goes to the one after.
+     */
+    public synchronized void release() {
+        GattOperationQueue next;
+        while ((next = mWaiting.pollFirst()) != null) {
+            if (next.resume()) return;
+        }
+        mAvailable++;
+    }
+
+    /*
+     * Take a queue out of line, e.g. when its connection is gone
+     */
+    public synchronized void remove(GattOperationQueue queue) {
+        mWaiting.remove(queue);
+    }
+
+    public synchronized int getWaitingCount() {
+        return mWaiting.size();
+    }
+}
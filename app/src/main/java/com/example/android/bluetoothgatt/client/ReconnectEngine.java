@@ -0,0 +1,248 @@
+package com.example.android.bluetoothgatt.client;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.example.android.bluetoothgatt.transport.AndroidGattClientTransport;
+import com.example.android.bluetoothgatt.transport.GattClientTransport;
+
+import java.util.Random;
+
+/*
+ * Owns the client handle of one device and keeps the link up until
+ * stopped. After a drop it first makes a few quick attempts, each
+ * abandoned after a timeout, then background attempts spaced by
+ * jittered exponential backoff.
+ *
+ * The first attempt after a drop reconnects the handle that was up.
+ * It keeps the services it discovered, so the callback can skip
+ * discovery when the server still reports the version the
+ * DiscoveryCache holds for them. Only once that attempt fails is the
+ * handle closed; the remaining quick attempts open new direct handles,
+ * which know no services and discover them again. Background attempts
+ * reuse whatever handle there is, opening a new one only when there is
+ * none or it refuses to reconnect.
+ * Subscriptions are restored by the callback, which sets up the
+ * service on every new link.
+ *
+ * Events arrive on the GATT thread; start() and stop() may be called
+ * from any thread.
+ */
+class ReconnectEngine implements TimeClientCallback.ConnectionListener {
+    private static final String TAG = ReconnectEngine.class.getSimpleName();
+
+    //Attempts with a timeout before falling back to backoff
+    static final int FAST_ATTEMPTS = 2;
+    //A quick attempt that has not come up by now is abandoned
+    static final long FAST_TIMEOUT_MILLIS = 10000;
+    static final long BASE_BACKOFF_MILLIS = 1000;
+    static final long MAX_BACKOFF_MILLIS = 60000;
+
+    /*
+     * Opens a new handle to the device: the framework's in the app,
+     * a loopback central in tests
+     */
+    interface Connector {
+        GattClientTransport connect(BluetoothDevice device,
+                                    boolean autoConnect,
+                                    TimeClientCallback callback);
+    }
+
+    private final Connector mConnector;
+    private final BluetoothDevice mDevice;
+    private final TimeClientCallback mCallback;
+    private final Handler mHandler;
+    private final ConnectionTimings mTimings;
+    private final Random mRandom;
+
+    private GattClientTransport mGatt;
+    //The handle has been up, so it holds the services it discovered
+    private boolean mHandleUsed;
+    private boolean mStopped = true;
+    private boolean mLinkUp;
+    //Whether the current link discovered rather than used cached services
+    private boolean mLinkDiscovered;
+    //Consecutive attempts since the link was last up
+    private int mAttempts;
+    private long mAttemptStart;
+    private long mLinkUpTime;
+
+    //Opens framework handles
+    static Connector newGattConnector(final Context context) {
+        return new Connector() {
+            @Override
+            public GattClientTransport connect(BluetoothDevice device,
+                                               boolean autoConnect,
+                                               TimeClientCallback callback) {
+                BluetoothGatt gatt =
+                        device.connectGatt(context, autoConnect, callback);
+                return gatt != null
+                        ? new AndroidGattClientTransport(gatt) : null;
+            }
+        };
+    }
+
+    ReconnectEngine(Connector connector,
+                    BluetoothDevice device,
+                    TimeClientCallback callback,
+                    Looper looper,
+                    ConnectionTimings timings,
+                    Random random) {
+        mConnector = connector;
+        mDevice = device;
+        mCallback = callback;
+        mHandler = new Handler(looper);
+        mTimings = timings;
+        mRandom = random;
+        mCallback.setConnectionListener(this);
+    }
+
+    public BluetoothDevice getDevice() {
+        return mDevice;
+    }
+
+    public TimeClientCallback getCallback() {
+        return mCallback;
+    }
+
+    public synchronized void start() {
+        if (!mStopped) return;
+
+        mStopped = false;
+        mAttempts = 0;
+        connect();
+    }
+
+    /*
+     * Disconnect for good, releasing the handle
+     */
+    public synchronized void stop() {
+        mStopped = true;
+        mHandler.removeCallbacks(mConnectRunnable);
+        mHandler.removeCallbacks(mTimeoutRunnable);
+        if (mGatt != null) {
+            mGatt.disconnect();
+        }
+        closeHandle();
+        mLinkUp = false;
+        mCallback.shutdown();
+    }
+
+    @Override
+    public synchronized void onConnectionStateChanged(
+            TimeClientCallback callback, int state, int status) {
+        if (mStopped) return;
+
+        final long now = SystemClock.elapsedRealtimeNanos();
+        switch (state) {
+            case TimeClientCallback.STATE_DISCOVERING:
+            case TimeClientCallback.STATE_READY:
+                if (!mLinkUp) {
+                    mLinkUp = true;
+                    mHandleUsed = true;
+                    mLinkDiscovered = false;
+                    mLinkUpTime = now;
+                    mAttempts = 0;
+                    mHandler.removeCallbacks(mTimeoutRunnable);
+                    mTimings.recordConnect(now - mAttemptStart);
+                }
+                if (state == TimeClientCallback.STATE_DISCOVERING) {
+                    mLinkDiscovered = true;
+                } else {
+                    mTimings.recordDiscover(now - mLinkUpTime);
+                    if (!mLinkDiscovered) {
+                        mTimings.recordCachedSetup();
+                    }
+                }
+                break;
+            case TimeClientCallback.STATE_STREAMING:
+                mTimings.recordFirstNotification(now - mLinkUpTime);
+                break;
+            case TimeClientCallback.STATE_DISCONNECTED:
+                mHandler.removeCallbacks(mTimeoutRunnable);
+                if (mLinkUp) {
+                    mLinkUp = false;
+                    mTimings.recordDrop();
+                }
+                Log.i(TAG, "Lost " + mDevice.getAddress()
+                        + " with status " + status);
+                scheduleRetry();
+                break;
+        }
+    }
+
+    private void connect() {
+        final boolean direct = mAttempts < FAST_ATTEMPTS;
+        //Right after a drop, or in the background, keep the old handle
+        final boolean reuse = mGatt != null
+                && (!direct || (mAttempts == 0 && mHandleUsed));
+        mAttempts++;
+        mTimings.recordAttempt();
+        mAttemptStart = SystemClock.elapsedRealtimeNanos();
+        if (!reuse || !mGatt.connect()) {
+            closeHandle();
+            mGatt = mConnector.connect(mDevice, !direct, mCallback);
+        }
+        if (direct) {
+            mHandler.postDelayed(mTimeoutRunnable, FAST_TIMEOUT_MILLIS);
+        }
+    }
+
+    private void scheduleRetry() {
+        long delay = mAttempts < FAST_ATTEMPTS
+                ? 0 : getBackoff(mAttempts - FAST_ATTEMPTS);
+        mHandler.removeCallbacks(mConnectRunnable);
+        mHandler.postDelayed(mConnectRunnable, delay);
+    }
+
+    /*
+     * Half of the doubled delay is fixed and half random, so devices
+     * that dropped together do not all retry at the same moment
+     */
+    private long getBackoff(int retry) {
+        long ceiling = Math.min(MAX_BACKOFF_MILLIS,
+                BASE_BACKOFF_MILLIS << Math.min(retry, 16));
+        return ceiling / 2 + (long) (mRandom.nextDouble() * (ceiling / 2));
+    }
+
+    private void closeHandle() {
+        if (mGatt != null) {
+            mGatt.close();
+            mGatt = null;
+        }
+        mHandleUsed = false;
+    }
+
+    private Runnable mConnectRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (ReconnectEngine.this) {
+                if (!mStopped) {
+                    connect();
+                }
+            }
+        }
+    };
+
+    private Runnable mTimeoutRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (ReconnectEngine.this) {
+                if (mStopped || mLinkUp) return;
+
+                Log.i(TAG, "Connect to " + mDevice.getAddress()
+                        + " timed out");
+                //Abandon the attempt; the next one decides on the handle
+                if (mGatt != null) {
+                    mGatt.disconnect();
+                }
+                scheduleRetry();
+            }
+        }
+    };
+}
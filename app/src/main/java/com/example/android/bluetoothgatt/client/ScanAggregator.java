@@ -0,0 +1,157 @@
+package com.example.android.bluetoothgatt.client;
+
+import android.bluetooth.BluetoothDevice;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+
+/*
+ * Folds a stream of scan results into one entry per peripheral,
+ * keyed by address. Each entry keeps an exponentially smoothed RSSI
+ * and the time it was last seen, and entries not heard from within
+ * the expiry window are dropped. Results only mark the aggregate
+ * dirty; callers take snapshots at their own pace.
+ *
+ * Not thread-safe; scan callbacks and snapshots must share a thread.
+ */
+final class ScanAggregator {
+
+    //Weight of each new RSSI reading in the smoothed value
+    private static final double RSSI_ALPHA = 0.25;
+
+    /*
+     * Immutable view of one peripheral at snapshot time
+     */
+    public static final class Peripheral {
+        private final BluetoothDevice mDevice;
+        private final int mRssi;
+        private final long mLastSeenNanos;
+        private final int mSightings;
+
+        Peripheral(BluetoothDevice device, int rssi,
+                   long lastSeenNanos, int sightings) {
+            mDevice = device;
+            mRssi = rssi;
+            mLastSeenNanos = lastSeenNanos;
+            mSightings = sightings;
+        }
+
+        public BluetoothDevice getDevice() {
+            return mDevice;
+        }
+
+        //Smoothed signal strength in dBm
+        public int getRssi() {
+            return mRssi;
+        }
+
+        //Elapsed realtime of the latest result, in nanoseconds
+        public long getLastSeenNanos() {
+            return mLastSeenNanos;
+        }
+
+        public int getSightings() {
+            return mSightings;
+        }
+    }
+
+    private static class Entry {
+        BluetoothDevice device;
+        double rssi;
+        long lastSeenNanos;
+        int sightings;
+    }
+
+    //Strongest signal first
+    private static final Comparator<Peripheral> BY_RSSI =
+            new Comparator<Peripheral>() {
+        @Override
+        public int compare(Peripheral lhs, Peripheral rhs) {
+            //RSSI is a small range of dBm, so this cannot overflow
+            return rhs.getRssi() - lhs.getRssi();
+        }
+    };
+
+    private final long mExpiryNanos;
+    private final HashMap<String, Entry> mEntries;
+    private boolean mDirty;
+
+    public ScanAggregator(long expiryNanos) {
+        mExpiryNanos = expiryNanos;
+        mEntries = new HashMap<String, Entry>();
+    }
+
+    public void onResult(BluetoothDevice device, int rssi, long timestampNanos) {
+        Entry entry = mEntries.get(device.getAddress());
+        if (entry == null) {
+            entry = new Entry();
+            entry.rssi = rssi;
+            mEntries.put(device.getAddress(), entry);
+            mDirty = true;
+        } else {
+            int shown = (int) Math.round(entry.rssi);
+            entry.rssi += RSSI_ALPHA * (rssi - entry.rssi);
+            //Only a visible change needs a new snapshot
+            mDirty |= shown != (int) Math.round(entry.rssi);
+        }
+
+        //Batched results may arrive out of order
+        if (timestampNanos >= entry.lastSeenNanos) {
+            entry.lastSeenNanos = timestampNanos;
+        }
+        entry.device = device;
+        entry.sightings++;
+    }
+
+    /*
+     * Drop peripherals not seen within the expiry window.
+     * Returns how many were removed.
+     */
+    public int expire(long nowNanos) {
+        int removed = 0;
+        Iterator<Entry> it = mEntries.values().iterator();
+        while (it.hasNext()) {
+            if (nowNanos - it.next().lastSeenNanos > mExpiryNanos) {
+                it.remove();
+                removed++;
+            }
+        }
+        mDirty |= removed > 0;
+        return removed;
+    }
+
+    public boolean isDirty() {
+        return mDirty;
+    }
+
+    public int size() {
+        return mEntries.size();
+    }
+
+    public void clear() {
+        mDirty |= !mEntries.isEmpty();
+        mEntries.clear();
+    }
+
+    /*
+     * Current peripherals, strongest first
+     */
+    public List<Peripheral> snapshot() {
+        ArrayList<Peripheral> peripherals =
+                new ArrayList<Peripheral>(mEntries.size());
+        for (Entry entry : mEntries.values()) {
+            peripherals.add(new Peripheral(entry.device,
+                    (int) Math.round(entry.rssi),
+                    entry.lastSeenNanos,
+                    entry.sightings));
+        }
+        Collections.sort(peripherals, BY_RSSI);
+
+        mDirty = false;
+        return Collections.unmodifiableList(peripherals);
+    }
+}
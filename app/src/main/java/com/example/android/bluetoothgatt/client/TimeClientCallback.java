@@ -3,107 +3,926 @@ package com.example.android.bluetoothgatt.client;
 import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCallback;
 import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
 import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothProfile;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
 import android.util.Log;
+import android.view.Choreographer;
+
+import com.example.android.bluetoothgatt.metrics.LatencyHistogram;
+import com.example.android.bluetoothgatt.metrics.TraceLog;
+import com.example.android.bluetoothgatt.transport.AndroidGattClientTransport;
+import com.example.android.bluetoothgatt.transport.GattClientTransport;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static com.example.android.bluetoothgatt.TimerGattProfile.*;
 
 /*
  * Callback handles GATT client events, such as results from
  * reading or writing a characteristic value on the server.
+ * Framework events are forwarded to the transport-based handlers,
+ * which can also be driven directly by a loopback transport.
  */
-public class TimeClientCallback extends BluetoothGattCallback {
+public class TimeClientCallback extends BluetoothGattCallback
+        implements GattClientTransport.Callback {
     private static final String TAG = TimeClientCallback.class.getSimpleName();
 
+    //Events kept by the trace log
+    private static final int TRACE_CAPACITY = 256;
+    //Largest error allowed in the local clock estimate before a resync
+    private static final long MAX_CLOCK_ERROR_NANOS =
+            TimeUnit.MILLISECONDS.toNanos(50);
+
+    //Connection states, as seen from the GATT thread
+    public static final int STATE_DISCONNECTED = 0;
+    public static final int STATE_DISCOVERING = 1;
+    public static final int STATE_READY = 2;
+    //Subscribed and the first notification has arrived
+    public static final int STATE_STREAMING = 3;
+
     //Simple callback interface to notify the user interface of events
     public interface ClientStatusListener {
-        void onTimeValueChanged(int value);
-        void onTimeOffsetChanged(long offset);
+        //Called on the main thread with the latest client state
+        void onClientStatusChanged(ClientStatus status);
     }
 
-    private Handler mHandler = new Handler(Looper.getMainLooper());
+    public interface ConnectionListener {
+        //Called on the GATT thread with one of the STATE_ values
+        void onConnectionStateChanged(TimeClientCallback callback,
+                                      int state, int status);
+    }
+
+    /*
+     * Connection handling and operation timeouts run on a GATT thread,
+     * never the main thread. The user interface only receives
+     * coalesced status snapshots.
+     */
+    private HandlerThread mHandlerThread;
+    private Handler mHandler;
+    private Handler mUiHandler = new Handler(Looper.getMainLooper());
     private ClientStatusListener mStatusListener;
 
+    //Binary event trace in place of per-callback log lines
+    private final TraceLog mTrace =
+            new TraceLog(TRACE_CAPACITY, TraceLog.LEVEL_EVENTS);
+
+    //Wrapper for the framework handle of the current connection
+    private AndroidGattClientTransport mTransport;
+    //Serializes all requests on the current connection
+    private volatile GattOperationQueue mQueue;
+    //Shares request slots with other connections, may be null
+    private final OperationScheduler mScheduler;
+    private volatile int mConnectionState = STATE_DISCONNECTED;
+    private volatile ConnectionListener mConnectionListener;
+    //Set once subscribed, cleared by the first notification
+    private final AtomicBoolean mAwaitingNotification = new AtomicBoolean();
+
+    //Skips discovery for layouts seen before, may be null
+    private volatile DiscoveryCache mDiscoveryCache;
+    //Whether this connection's services came from the cache
+    private boolean mServicesCached;
+    //Set while the server's version is read to check cached services
+    private boolean mVerifyingLayout;
+    //Resolved once per connection rather than on every request
+    private volatile BluetoothGattCharacteristic mOffsetCharacteristic;
+
+    /*
+     * Clock sync mode: the client estimates the server clock and
+     * extrapolates the elapsed value itself, instead of streaming it.
+     * The estimate survives reconnects; the rest is GATT thread only.
+     */
+    private volatile boolean mClockSyncEnabled;
+    //Whether the last set up link chose clock sync over streaming
+    private volatile boolean mClockSyncActive;
+    private final ClockSync mClockSync = new ClockSync(MAX_CLOCK_ERROR_NANOS);
+    private BluetoothGattCharacteristic mClockCharacteristic;
+
+    //Batch mode: several elapsed samples per notification
+    private volatile boolean mBatchingEnabled;
+    //Compact mode: keyframes and small deltas instead of full values
+    private volatile boolean mCompactEncodingEnabled;
+
+    //Last compact keyframe, reset on connect; GATT thread only
+    private boolean mHasCompactBase;
+    private int mCompactBase;
+    //Scratch space for notifications, which arrive one at a time
+    private final int[] mBatchTimes = new int[BATCH_MAX_COUNT];
+    private final int[] mBatchValues = new int[BATCH_MAX_COUNT];
+
     public TimeClientCallback(ClientStatusListener listener) {
+        this(listener, null);
+    }
+
+    /*
+     * Share an existing GATT looper, e.g. across many connections.
+     * With a null looper the callback starts and owns its own thread.
+     */
+    public TimeClientCallback(ClientStatusListener listener, Looper looper) {
+        this(listener, looper, null);
+    }
+
+    /*
+     * Connections sharing a scheduler take turns issuing requests
+     */
+    public TimeClientCallback(ClientStatusListener listener, Looper looper,
+                              OperationScheduler scheduler) {
         mStatusListener = listener;
+        mScheduler = scheduler;
+
+        if (looper == null) {
+            mHandlerThread = new HandlerThread(TAG,
+                    Process.THREAD_PRIORITY_FOREGROUND);
+            mHandlerThread.start();
+            looper = mHandlerThread.getLooper();
+        }
+        mHandler = new Handler(looper);
+    }
+
+    /*
+     * Drop queued requests and stop the GATT thread, if this callback
+     * owns one. A closed handle reports no disconnect, so the queue is
+     * cleared here to hand back any scheduler slot it holds.
+     */
+    public void shutdown() {
+        GattOperationQueue queue = mQueue;
+        if (queue != null) {
+            queue.clear();
+            mQueue = null;
+        }
+        mConnectionState = STATE_DISCONNECTED;
+        mAwaitingNotification.set(false);
+        mOffsetCharacteristic = null;
+        mClockSyncActive = false;
+        mHandler.removeCallbacks(mResyncRunnable);
+        mUiHandler.removeCallbacks(mScheduleFrameRunnable);
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            mTrace.dumpToLog(TAG);
+        }
+        if (mHandlerThread != null) {
+            mHandlerThread.quitSafely();
+        }
     }
 
+    public TraceLog getTraceLog() {
+        return mTrace;
+    }
+
+    public int getConnectionState() {
+        return mConnectionState;
+    }
+
+    public void setDiscoveryCache(DiscoveryCache cache) {
+        mDiscoveryCache = cache;
+    }
+
+    public void setConnectionListener(ConnectionListener listener) {
+        mConnectionListener = listener;
+    }
+
+    /*
+     * Applies from the next connection. Servers without a clock
+     * characteristic keep streaming elapsed values.
+     */
+    public void setClockSyncEnabled(boolean enabled) {
+        mClockSyncEnabled = enabled;
+    }
+
+    /*
+     * Whether elapsed values come from the local clock estimate, read
+     * through getEstimatedElapsedMillis(), rather than notifications.
+     * Stays set across a drop, as the estimate does.
+     */
+    public boolean isClockSyncActive() {
+        return mClockSyncActive;
+    }
+
+    /*
+     * Applies from the next connection. Servers without a batch
+     * characteristic keep notifying each elapsed value on its own.
+     */
+    public void setBatchingEnabled(boolean enabled) {
+        mBatchingEnabled = enabled;
+    }
+
+    /*
+     * Applies from the next connection. Servers without an encoding
+     * characteristic keep sending full values.
+     */
+    public void setCompactEncodingEnabled(boolean enabled) {
+        mCompactEncodingEnabled = enabled;
+    }
+
+    /*
+     * The server's elapsed value in milliseconds, extrapolated from
+     * the local clock, or -1 until both the clock and offset are known
+     */
+    public long getEstimatedElapsedMillis() {
+        if (!mClockSync.isSynced()) return -1;
+
+        final long offset;
+        synchronized (this) {
+            if (!mHasTimeOffset) return -1;
+            offset = mTimeOffset;
+        }
+        return Math.max(0, mClockSync.getServerTimeMillis(
+                SystemClock.elapsedRealtimeNanos()) - offset);
+    }
+
+    //GATT thread only
+    private void setConnectionState(int state, int status) {
+        mConnectionState = state;
+        ConnectionListener listener = mConnectionListener;
+        if (listener != null) {
+            listener.onConnectionStateChanged(this, state, status);
+        }
+    }
+
+    private static String addressOf(GattClientTransport gatt) {
+        return gatt.getDevice() != null ? gatt.getDevice().getAddress() : null;
+    }
+
+    private synchronized GattClientTransport transportFor(BluetoothGatt gatt) {
+        if (mTransport == null || mTransport.getGatt() != gatt) {
+            mTransport = new AndroidGattClientTransport(gatt);
+        }
+        return mTransport;
+    }
+
+    /*
+     * Request the server's current time offset. Returns false
+     * if there is no connection to queue the read on.
+     */
+    public boolean readOffset() {
+        BluetoothGattCharacteristic characteristic = mOffsetCharacteristic;
+        GattOperationQueue queue = mQueue;
+        if (characteristic == null || queue == null) return false;
+
+        queue.read(characteristic);
+        return true;
+    }
+
+    /*
+     * Set the server's time offset, in seconds since the epoch
+     */
+    public boolean writeOffset(int offset) {
+        BluetoothGattCharacteristic characteristic = mOffsetCharacteristic;
+        GattOperationQueue queue = mQueue;
+        if (characteristic == null || queue == null) return false;
+
+        queue.write(characteristic, bytesFromInt(offset));
+        return true;
+    }
+
+    private void completeRead(BluetoothGattCharacteristic characteristic,
+                              int status) {
+        GattOperationQueue queue = mQueue;
+        if (queue != null) {
+            queue.onCharacteristicRead(characteristic, status);
+        }
+    }
+
+    /** Framework callbacks */
+
     @Override
     public void onConnectionStateChange(BluetoothGatt gatt,
                                         int status,
                                         int newState) {
-        super.onConnectionStateChange(gatt, status, newState);
-        Log.d(TAG, "onConnectionStateChange "
-                + getStatusDescription(status) + " "
-                + getStateDescription(newState));
+        onConnectionStateChange(transportFor(gatt), status, newState);
+    }
+
+    @Override
+    public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+        onServicesDiscovered(transportFor(gatt), status);
+    }
+
+    @Override
+    public void onCharacteristicRead(BluetoothGatt gatt,
+                                     BluetoothGattCharacteristic characteristic,
+                                     int status) {
+        onCharacteristicRead(transportFor(gatt), characteristic, status);
+    }
+
+    @Override
+    public void onCharacteristicWrite(BluetoothGatt gatt,
+                                      BluetoothGattCharacteristic characteristic,
+                                      int status) {
+        onCharacteristicWrite(transportFor(gatt), characteristic, status);
+    }
+
+    @Override
+    public void onCharacteristicChanged(BluetoothGatt gatt,
+                                        BluetoothGattCharacteristic characteristic) {
+        onCharacteristicChanged(transportFor(gatt), characteristic);
+    }
+
+    @Override
+    public void onDescriptorWrite(BluetoothGatt gatt,
+                                  BluetoothGattDescriptor descriptor,
+                                  int status) {
+        onDescriptorWrite(transportFor(gatt), descriptor, status);
+    }
+
+    @Override
+    public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+        onMtuChanged(transportFor(gatt), mtu, status);
+    }
+
+    /** Transport callbacks */
+
+    @Override
+    public void onConnectionStateChange(final GattClientTransport gatt,
+                                        final int status,
+                                        final int newState) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                handleConnectionStateChange(gatt, status, newState);
+            }
+        });
+    }
+
+    private void handleConnectionStateChange(GattClientTransport gatt,
+                                             int status,
+                                             int newState) {
+        mTrace.record(TraceLog.LEVEL_EVENTS, TraceLog.EVENT_CONNECTION,
+                addressOf(gatt), ATTRIBUTE_UNKNOWN, newState);
+        if (status != BluetoothGatt.GATT_SUCCESS) {
+            Log.w(TAG, "onConnectionStateChange "
+                    + getStatusDescription(status) + " "
+                    + getStateDescription(newState));
+        }
 
         if (newState == BluetoothProfile.STATE_CONNECTED) {
-            gatt.discoverServices();
+            mHasCompactBase = false;
+            mConnectedTime = SystemClock.uptimeMillis();
+            mNotifications.set(0);
+            /*
+             * A handle closed without a disconnect, as on a reconnect
+             * attempt, never reports one; its queue would keep any
+             * scheduler slot and time out against the closed transport
+             */
+            GattOperationQueue previous = mQueue;
+            if (previous != null) {
+                previous.clear();
+            }
+            mQueue = new GattOperationQueue(gatt, this, mHandler,
+                    GattOperationQueue.DEFAULT_TIMEOUT, mRequestLatency,
+                    mScheduler);
+            BluetoothGattService known = gatt.getService(UUID_SERVICE_TIMER);
+            BluetoothGattCharacteristic version = known != null
+                    ? known.getCharacteristic(UUID_CHARACTERISTIC_VERSION)
+                    : null;
+            DiscoveryCache cache = mDiscoveryCache;
+            if (cache != null && version != null
+                    && cache.contains(addressOf(gatt))) {
+                //The handle kept the services from its last discovery;
+                //only use them if the server still has the same layout
+                mVerifyingLayout = true;
+                mQueue.read(version);
+            } else {
+                rediscover(gatt);
+            }
+        } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+            mVerifyingLayout = false;
+            mAwaitingNotification.set(false);
+            mOffsetCharacteristic = null;
+            mClockCharacteristic = null;
+            mHandler.removeCallbacks(mResyncRunnable);
+            GattOperationQueue queue = mQueue;
+            if (queue != null && queue.getTransport() == gatt) {
+                queue.clear();
+                mQueue = null;
+            }
+            setConnectionState(STATE_DISCONNECTED, status);
         }
     }
 
     @Override
-    public void onServicesDiscovered(BluetoothGatt gatt, int status) {
-        super.onServicesDiscovered(gatt, status);
-        Log.d(TAG, "onServicesDiscovered:");
+    public void onServicesDiscovered(final GattClientTransport gatt,
+                                     final int status) {
+        GattOperationQueue queue = mQueue;
+        if (queue != null) {
+            queue.onServicesDiscovered(status);
+        }
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                handleServicesDiscovered(gatt, status);
+            }
+        });
+    }
+
+    private void handleServicesDiscovered(GattClientTransport gatt,
+                                          int status) {
+        mTrace.record(TraceLog.LEVEL_EVENTS, TraceLog.EVENT_SERVICES,
+                addressOf(gatt), ATTRIBUTE_UNKNOWN, status);
+        GattOperationQueue queue = mQueue;
+        if (queue == null) return;
+
+        BluetoothGattService service = gatt.getService(UUID_SERVICE_TIMER);
+        BluetoothGattCharacteristic version = service != null
+                ? service.getCharacteristic(UUID_CHARACTERISTIC_VERSION)
+                : null;
+        if (status == BluetoothGatt.GATT_SUCCESS && version != null
+                && mDiscoveryCache != null) {
+            //Remembered once read, ahead of the setup requests
+            queue.read(version);
+        }
+        setupService(gatt, queue, service);
+    }
 
-        for (BluetoothGattService service : gatt.getServices()) {
-            Log.d(TAG, "Service: "+service.getUuid());
+    //Through the queue, as the stack refuses it while a request is out
+    private void rediscover(GattClientTransport gatt) {
+        GattOperationQueue queue = mQueue;
+        if (queue == null) return;
+
+        mServicesCached = false;
+        setConnectionState(STATE_DISCOVERING, BluetoothGatt.GATT_SUCCESS);
+        queue.discoverServices();
+    }
+
+    /*
+     * The server's layout version, read either to check the services
+     * a reconnected handle kept, or to remember a fresh discovery
+     */
+    private void handleLayoutVersion(GattClientTransport gatt,
+                                     boolean success,
+                                     int version) {
+        GattOperationQueue queue = mQueue;
+        if (queue == null || queue.getTransport() != gatt) return;
+
+        final String address = addressOf(gatt);
+        DiscoveryCache cache = mDiscoveryCache;
+        if (!mVerifyingLayout) {
+            if (success && cache != null) {
+                cache.put(address, version);
+            }
+            return;
+        }
 
-            if (UUID_SERVICE_TIMER.equals(service.getUuid())) {
-                //Read the current characteristic's value
-                gatt.readCharacteristic(service
-                        .getCharacteristic(UUID_CHARACTERISTIC_ELAPSED));
+        mVerifyingLayout = false;
+        if (success && cache != null && cache.isValid(address, version)) {
+            mServicesCached = true;
+            mTrace.record(TraceLog.LEVEL_EVENTS,
+                    TraceLog.EVENT_SERVICES_CACHED,
+                    address, ATTRIBUTE_VERSION, 0);
+            setupService(gatt, queue, gatt.getService(UUID_SERVICE_TIMER));
+        } else {
+            if (cache != null) {
+                cache.invalidate(address);
             }
+            rediscover(gatt);
+        }
+    }
+
+    /*
+     * The server added, removed or changed attributes. Whatever this
+     * handle holds is stale, so forget it and discover again.
+     */
+    private void handleServicesChanged(GattClientTransport gatt) {
+        GattOperationQueue queue = mQueue;
+        if (queue == null || queue.getTransport() != gatt) return;
+
+        Log.i(TAG, "Server services changed, discovering again");
+        DiscoveryCache cache = mDiscoveryCache;
+        if (cache != null) {
+            cache.invalidate(addressOf(gatt));
+        }
+        mVerifyingLayout = false;
+        rediscover(gatt);
+    }
+
+    /*
+     * Resolve the characteristics used later on and subscribe to
+     * updates, whether the services were just discovered or kept
+     * from before
+     */
+    private void setupService(GattClientTransport gatt,
+                              GattOperationQueue queue,
+                              BluetoothGattService service) {
+        setConnectionState(STATE_READY, BluetoothGatt.GATT_SUCCESS);
+
+        //Ask for room to batch several samples into each notification
+        queue.requestMtu(PREFERRED_MTU);
+
+        //Hear about layout changes while connected; sent as indications
+        BluetoothGattService generic =
+                gatt.getService(UUID_SERVICE_GENERIC_ATTRIBUTE);
+        BluetoothGattCharacteristic changed = generic != null
+                ? generic.getCharacteristic(UUID_CHARACTERISTIC_SERVICE_CHANGED)
+                : null;
+        if (changed != null) {
+            subscribe(gatt, queue, changed,
+                    BluetoothGattDescriptor.ENABLE_INDICATION_VALUE);
+        }
+        if (service == null) return;
+
+        mOffsetCharacteristic =
+                service.getCharacteristic(UUID_CHARACTERISTIC_OFFSET);
+
+        mClockCharacteristic =
+                service.getCharacteristic(UUID_CHARACTERISTIC_CLOCK);
+        if (mClockSyncEnabled && mClockCharacteristic != null
+                && mOffsetCharacteristic != null) {
+            //Only offset changes are sent; elapsed is computed locally
+            subscribe(gatt, queue, mOffsetCharacteristic);
+            queue.read(mOffsetCharacteristic);
+            mClockSyncActive = true;
+            startClockSync();
+            return;
+        }
+        mClockCharacteristic = null;
+        mClockSyncActive = false;
+
+        //Ask for compact notifications when the server has them
+        BluetoothGattCharacteristic encoding =
+                service.getCharacteristic(UUID_CHARACTERISTIC_ENCODING);
+        if (mCompactEncodingEnabled && encoding != null) {
+            queue.write(encoding,
+                    new byte[] {(byte) ENCODING_COMPACT});
+        }
+
+        BluetoothGattCharacteristic elapsed =
+                service.getCharacteristic(UUID_CHARACTERISTIC_ELAPSED);
+        //Read the current characteristic's value
+        queue.read(elapsed);
+
+        BluetoothGattCharacteristic batch =
+                service.getCharacteristic(UUID_CHARACTERISTIC_BATCH);
+        subscribe(gatt, queue,
+                mBatchingEnabled && batch != null ? batch : elapsed);
+        mAwaitingNotification.set(true);
+    }
+
+    private void subscribe(GattClientTransport gatt,
+                           GattOperationQueue queue,
+                           BluetoothGattCharacteristic characteristic) {
+        subscribe(gatt, queue, characteristic,
+                BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
+    }
+
+    private void subscribe(GattClientTransport gatt,
+                           GattOperationQueue queue,
+                           BluetoothGattCharacteristic characteristic,
+                           byte[] enableValue) {
+        //Register for further updates as notifications
+        gatt.setCharacteristicNotification(characteristic, true);
+        //The server only notifies clients that enable it remotely
+        BluetoothGattDescriptor config =
+                characteristic.getDescriptor(UUID_DESCRIPTOR_CLIENT_CONFIG);
+        if (config != null) {
+            queue.writeDescriptor(config, enableValue);
         }
     }
 
     @Override
-    public void onCharacteristicRead(BluetoothGatt gatt,
+    public void onCharacteristicRead(GattClientTransport gatt,
                                      BluetoothGattCharacteristic characteristic,
                                      int status) {
-        super.onCharacteristicRead(gatt, characteristic, status);
-        final int charValue = characteristic
-                .getIntValue(BluetoothGattCharacteristic.FORMAT_UINT32, 0);
+        final long start = SystemClock.elapsedRealtimeNanos();
+        mReads.incrementAndGet();
+        mTrace.record(TraceLog.LEVEL_EVENTS, TraceLog.EVENT_READ,
+                addressOf(gatt), getAttributeIndex(characteristic.getUuid()),
+                status);
+        if (status != BluetoothGatt.GATT_SUCCESS) {
+            completeRead(characteristic, status);
+            if (UUID_CHARACTERISTIC_CLOCK.equals(characteristic.getUuid())) {
+                //Try the whole round again later
+                mHandler.postDelayed(mResyncRunnable, TimeUnit.NANOSECONDS
+                        .toMillis(ClockSync.MIN_RESYNC_NANOS));
+            } else if (UUID_CHARACTERISTIC_VERSION.equals(
+                    characteristic.getUuid())) {
+                postLayoutVersion(gatt, false, 0);
+            }
+            return;
+        }
+        if (UUID_CHARACTERISTIC_VERSION.equals(characteristic.getUuid())) {
+            final int version = unsignedIntFromBytes(characteristic.getValue());
+            completeRead(characteristic, status);
+            postLayoutVersion(gatt, true, version);
+            return;
+        }
+        if (UUID_CHARACTERISTIC_CLOCK.equals(characteristic.getUuid())) {
+            final long serverMillis = readUInt64(characteristic.getValue(), 0);
+            GattOperationQueue queue = mQueue;
+            final long sent = queue != null
+                    ? queue.getReadStartNanos(characteristic) : -1;
+            completeRead(characteristic, status);
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    handleClockSample(sent, start, serverMillis);
+                }
+            });
+            return;
+        }
+        //Decode straight from the characteristic's backing array
+        final int charValue = unsignedIntFromBytes(characteristic.getValue());
+        //Value is captured, so the next queued request may start
+        completeRead(characteristic, status);
+        mReadHandling.recordNanos(SystemClock.elapsedRealtimeNanos() - start);
 
         if (UUID_CHARACTERISTIC_ELAPSED.equals(characteristic.getUuid())) {
+            setTimeValue(charValue);
+        }
+
+        if (UUID_CHARACTERISTIC_OFFSET.equals(characteristic.getUuid())) {
+            setTimeOffset((long)charValue * 1000);
+        }
+    }
+
+    private void postLayoutVersion(final GattClientTransport gatt,
+                                   final boolean success,
+                                   final int version) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                handleLayoutVersion(gatt, success, version);
+            }
+        });
+    }
+
+    @Override
+    public void onCharacteristicWrite(GattClientTransport gatt,
+                                      BluetoothGattCharacteristic characteristic,
+                                      int status) {
+        GattOperationQueue queue = mQueue;
+        if (queue != null) {
+            queue.onCharacteristicWrite(characteristic, status);
+        }
+    }
+
+    @Override
+    public void onCharacteristicChanged(final GattClientTransport gatt,
+                                        BluetoothGattCharacteristic characteristic) {
+        //Not a value update, so kept out of the metrics
+        if (UUID_CHARACTERISTIC_SERVICE_CHANGED.equals(
+                characteristic.getUuid())) {
             mHandler.post(new Runnable() {
                 @Override
                 public void run() {
-                    mStatusListener.onTimeValueChanged(charValue);
+                    handleServicesChanged(gatt);
                 }
             });
+            return;
+        }
+        final long start = SystemClock.elapsedRealtimeNanos();
+        mNotifications.incrementAndGet();
+        if (mAwaitingNotification.get()
+                && mAwaitingNotification.compareAndSet(true, false)) {
+            mHandler.post(mStreamingRunnable);
+        }
+        mTrace.record(TraceLog.LEVEL_VERBOSE, TraceLog.EVENT_NOTIFICATION,
+                addressOf(gatt), getAttributeIndex(characteristic.getUuid()),
+                BluetoothGatt.GATT_SUCCESS);
+        //Decode straight from the characteristic's backing array
+        final byte[] raw = characteristic.getValue();
+        if (UUID_CHARACTERISTIC_OFFSET.equals(characteristic.getUuid())) {
+            //Clock sync clients only hear about offset changes
+            setTimeOffset((long) unsignedIntFromBytes(raw) * 1000);
+        } else if (UUID_CHARACTERISTIC_BATCH.equals(characteristic.getUuid())) {
+            //Only the newest sample of a batch is shown
+            int count = decodeBatch(raw, mBatchTimes, mBatchValues);
+            if (count > 0) {
+                setTimeValue(mBatchValues[count - 1]);
+            }
+        } else if (raw.length == 4) {
+            setTimeValue(unsignedIntFromBytes(raw));
+        } else {
+            //Applied against link state, in order with connection changes
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    decodeCompact(raw);
+                }
+            });
+        }
+        mNotificationHandling.recordNanos(
+                SystemClock.elapsedRealtimeNanos() - start);
+    }
 
-            //Register for further updates as notifications
-            gatt.setCharacteristicNotification(characteristic, true);
+    private Runnable mStreamingRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (mConnectionState == STATE_READY) {
+                setConnectionState(STATE_STREAMING,
+                        BluetoothGatt.GATT_SUCCESS);
+            }
         }
+    };
 
-        if (UUID_CHARACTERISTIC_OFFSET.equals(characteristic.getUuid())) {
-            Log.d(TAG, "Current time offset: "+charValue);
+    /*
+     * Compact elapsed values; keyframes and deltas are told apart
+     * from full values by their length. Each notification brings a new
+     * value array, so the one captured here is not overwritten.
+     */
+    private void decodeCompact(byte[] raw) {
+        if (isCompactKeyframe(raw)) {
+            mCompactBase = decodeCompactKeyframe(raw);
+            mHasCompactBase = true;
+            setTimeValue(mCompactBase);
+        } else if (isCompactDelta(raw)) {
+            if (!mHasCompactBase) {
+                Log.w(TAG, "Delta before any keyframe, ignored");
+                return;
+            }
+            setTimeValue(decodeCompactDelta(raw, mCompactBase));
+        } else {
+            Log.w(TAG, "Unknown elapsed encoding, length " + raw.length);
+        }
+    }
+
+    @Override
+    public void onDescriptorWrite(final GattClientTransport gatt,
+                                  BluetoothGattDescriptor descriptor,
+                                  int status) {
+        GattOperationQueue queue = mQueue;
+        if (queue != null) {
+            queue.onDescriptorWrite(descriptor, status);
+        }
+
+        if (status != BluetoothGatt.GATT_SUCCESS
+                && !UUID_CHARACTERISTIC_SERVICE_CHANGED.equals(
+                        descriptor.getCharacteristic().getUuid())) {
+            //Without Service Changed the version check still applies
             mHandler.post(new Runnable() {
                 @Override
                 public void run() {
-                    mStatusListener.onTimeOffsetChanged((long)charValue * 1000);
+                    handleSubscribeFailed(gatt);
                 }
             });
         }
     }
 
+    /*
+     * A subscription failing on a cached layout means the server's
+     * attributes changed since; forget them and discover again. On a
+     * freshly discovered layout nothing would ever be streamed, so the
+     * link is dropped and set up again from scratch.
+     */
+    private void handleSubscribeFailed(GattClientTransport gatt) {
+        if (mQueue == null) return;
+
+        DiscoveryCache cache = mDiscoveryCache;
+        if (mServicesCached && cache != null) {
+            Log.w(TAG, "Cached services are stale, discovering again");
+            cache.invalidate(addressOf(gatt));
+            rediscover(gatt);
+            return;
+        }
+        Log.w(TAG, "Unable to subscribe, reconnecting");
+        gatt.disconnect();
+    }
+
     @Override
-    public void onCharacteristicChanged(BluetoothGatt gatt,
-                                        BluetoothGattCharacteristic characteristic) {
-        super.onCharacteristicChanged(gatt, characteristic);
-        Log.i(TAG, "Notification of time characteristic changed on server.");
-        final int charValue = characteristic
-                .getIntValue(BluetoothGattCharacteristic.FORMAT_UINT32, 0);
-        mHandler.post(new Runnable() {
-            @Override
-            public void run() {
-                mStatusListener.onTimeValueChanged(charValue);
+    public void onMtuChanged(GattClientTransport gatt, int mtu, int status) {
+        mTrace.record(TraceLog.LEVEL_EVENTS, TraceLog.EVENT_MTU,
+                addressOf(gatt), ATTRIBUTE_UNKNOWN, mtu);
+        GattOperationQueue queue = mQueue;
+        if (queue != null) {
+            queue.onMtuChanged(status);
+        }
+    }
+
+    /** Clock sync, GATT thread only */
+
+    private void startClockSync() {
+        mHandler.removeCallbacks(mResyncRunnable);
+        mClockSync.startRound();
+        readClock();
+    }
+
+    private void readClock() {
+        GattOperationQueue queue = mQueue;
+        if (queue == null || mClockCharacteristic == null) return;
+
+        queue.read(mClockCharacteristic);
+    }
+
+    /*
+     * The send time is when the queue handed the read to the stack, so
+     * time spent waiting behind other requests is not counted
+     */
+    private void handleClockSample(long sendNanos, long receiveNanos,
+                                   long serverMillis) {
+        if (mClockCharacteristic == null) return;
+
+        if (sendNanos < 0) {
+            //Too late; its timeout already failed it and set up a retry
+            return;
+        }
+        if (!mClockSync.addSample(sendNanos, receiveNanos, serverMillis)) {
+            readClock();
+            return;
+        }
+        mClockSync.finishRound();
+
+        //Stay quiet until the estimate could be off by too much
+        final long wait = mClockSync.getNanosUntilResync(
+                SystemClock.elapsedRealtimeNanos());
+        mHandler.postDelayed(mResyncRunnable,
+                TimeUnit.NANOSECONDS.toMillis(wait));
+
+        if (mConnectionState == STATE_READY) {
+            setConnectionState(STATE_STREAMING, BluetoothGatt.GATT_SUCCESS);
+        }
+        publishStatus();
+    }
+
+    private Runnable mResyncRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (mClockCharacteristic != null) {
+                startClockSync();
             }
-        });
+        }
+    };
+
+    /** Metrics, recorded without locks or allocation on the hot paths */
+
+    private AtomicLong mReads = new AtomicLong();
+    private AtomicLong mNotifications = new AtomicLong();
+    private volatile long mConnectedTime = SystemClock.uptimeMillis();
+    private LatencyHistogram mRequestLatency = new LatencyHistogram();
+    private LatencyHistogram mReadHandling = new LatencyHistogram();
+    private LatencyHistogram mNotificationHandling = new LatencyHistogram();
+
+    public ClientMetrics getMetrics() {
+        long notifications = mNotifications.get();
+        long connected = Math.max(1,
+                SystemClock.uptimeMillis() - mConnectedTime);
+        return new ClientMetrics(mReads.get(),
+                notifications,
+                notifications * 1000.0 / connected,
+                mRequestLatency.snapshot(),
+                mReadHandling.snapshot(),
+                mNotificationHandling.snapshot());
     }
+
+    /**
+     * Status reporting to the user interface.
+     * Binder threads overwrite the latest values in place and count
+     * the update; the main thread drains the mailbox at most once per
+     * frame. Only the first update since the last drain posts anything.
+     */
+
+    private boolean mHasTimeValue;
+    private int mTimeValue;
+    private boolean mHasTimeOffset;
+    private long mTimeOffset;
+    private AtomicInteger mPendingUpdates = new AtomicInteger();
+    //Updates superseded before the UI saw them, main thread only
+    private long mCoalescedUpdates;
+
+    private synchronized void setTimeValue(int value) {
+        mHasTimeValue = true;
+        mTimeValue = value;
+        publishStatus();
+    }
+
+    private synchronized void setTimeOffset(long offset) {
+        mHasTimeOffset = true;
+        mTimeOffset = offset;
+        publishStatus();
+    }
+
+    private void publishStatus() {
+        if (mPendingUpdates.getAndIncrement() == 0) {
+            mUiHandler.post(mScheduleFrameRunnable);
+        }
+    }
+
+    //Choreographer is per-thread, so register from the main thread
+    private Runnable mScheduleFrameRunnable = new Runnable() {
+        @Override
+        public void run() {
+            Choreographer.getInstance().postFrameCallback(mFrameCallback);
+        }
+    };
+
+    private Choreographer.FrameCallback mFrameCallback =
+            new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            ClientStatus status;
+            synchronized (TimeClientCallback.this) {
+                int updates = mPendingUpdates.getAndSet(0);
+                if (updates == 0) return;
+
+                mCoalescedUpdates += updates - 1;
+                status = new ClientStatus(mHasTimeValue, mTimeValue,
+                        mHasTimeOffset, mTimeOffset, mCoalescedUpdates);
+            }
+            mStatusListener.onClientStatusChanged(status);
+        }
+    };
 }
@@ -0,0 +1,141 @@
+package com.example.android.bluetoothgatt.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * Log-linear histogram of durations in microseconds, in the style of
+ * HdrHistogram: every power of two is split into eight linear buckets,
+ * so any recorded value is reported within 12.5%. Recording is a few
+ * atomic adds on preallocated arrays, safe from any thread and free of
+ * allocation; only snapshot() copies.
+ */
+public final class LatencyHistogram {
+    //Linear buckets per power of two, as a shift
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    //Values are clamped to 2^36 us, a little over 19 hours
+    private static final int MAX_EXPONENT = 36;
+    private static final int BUCKETS =
+            (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mSum = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong();
+
+    public void recordNanos(long nanos) {
+        record(nanos / 1000);
+    }
+
+    public void record(long micros) {
+        if (micros < 0) micros = 0;
+
+        mCounts.incrementAndGet(indexOf(micros));
+        mCount.incrementAndGet();
+        mSum.addAndGet(micros);
+
+        long max;
+        do {
+            max = mMax.get();
+        } while (micros > max && !mMax.compareAndSet(max, micros));
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            mCounts.set(i, 0);
+        }
+        mCount.set(0);
+        mSum.set(0);
+        mMax.set(0);
+    }
+
+    /*
+     * Copy of the current counts. Values recorded while copying may
+     * or may not be included.
+     */
+    public Snapshot snapshot() {
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = mCounts.get(i);
+            total += counts[i];
+        }
+        return new Snapshot(counts, total, mSum.get(), mMax.get());
+    }
+
+    static int indexOf(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) micros;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+        int sub = (int) (micros >>> (exponent - SUB_BUCKET_BITS))
+                & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    //Smallest value that falls into a bucket
+    static long lowerBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long sub = index % SUB_BUCKETS;
+        return (SUB_BUCKETS + sub) << (exponent - SUB_BUCKET_BITS);
+    }
+
+    /*
+     * Immutable view of a histogram at one point in time
+     */
+    public static final class Snapshot {
+        private final long[] mCounts;
+        private final long mCount;
+        private final long mSum;
+        private final long mMax;
+
+        Snapshot(long[] counts, long count, long sum, long max) {
+            mCounts = counts;
+            mCount = count;
+            mSum = sum;
+            mMax = max;
+        }
+
+        public long getCount() {
+            return mCount;
+        }
+
+        //Largest value recorded, in microseconds
+        public long getMax() {
+            return mMax;
+        }
+
+        public long getMean() {
+            return mCount > 0 ? mSum / mCount : 0;
+        }
+
+        /*
+         * Upper end of the bucket holding the given percentile,
+         * in microseconds, never more than the recorded maximum
+         */
+        public long getPercentile(double percentile) {
+            if (mCount == 0) return 0;
+
+            long rank = (long) Math.ceil(mCount * percentile / 100.0);
+            rank = Math.max(1, Math.min(mCount, rank));
+
+            long seen = 0;
+            for (int i = 0; i < mCounts.length; i++) {
+                seen += mCounts[i];
+                if (seen >= rank) {
+                    long upper = i + 1 < mCounts.length
+                            ? lowerBound(i + 1) - 1 : mMax;
+                    return Math.min(upper, mMax);
+                }
+            }
+            return mMax;
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package com.example.android.bluetoothgatt.metrics;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static com.example.android.bluetoothgatt.TimerGattProfile.*;
+
+/*
+ * Fixed-size ring of binary GATT events, replacing log lines on the
+ * request and notification paths. Each event is three longs in a
+ * preallocated array: a timestamp, the device address and the packed
+ * type, attribute and status. Recording only claims a slot and stores
+ * numbers; text is produced by dump().
+ *
+ * Writers on different threads never block each other. Each slot
+ * carries the sequence number of its event, cleared while the event is
+ * written, so dump() can skip slots that change under it. When the
+ * ring wraps, the oldest events are overwritten.
+ */
+public final class TraceLog {
+
+    //Levels, each including the ones before it
+    public static final int LEVEL_OFF = 0;
+    public static final int LEVEL_EVENTS = 1;
+    public static final int LEVEL_VERBOSE = 2;
+
+    //Event types
+    public static final int EVENT_CONNECTION = 1;
+    public static final int EVENT_SERVICES = 2;
+    public static final int EVENT_MTU = 3;
+    public static final int EVENT_READ = 4;
+    public static final int EVENT_WRITE = 5;
+    public static final int EVENT_DESCRIPTOR_READ = 6;
+    public static final int EVENT_DESCRIPTOR_WRITE = 7;
+    public static final int EVENT_NOTIFY = 8;
+    public static final int EVENT_NOTIFICATION = 9;
+    public static final int EVENT_SERVICES_CACHED = 10;
+    public static final int EVENT_EXECUTE_WRITE = 11;
+
+    private static final String[] EVENT_NAMES = {
+            "?", "CONNECTION", "SERVICES", "MTU", "READ", "WRITE",
+            "DESCRIPTOR_READ", "DESCRIPTOR_WRITE", "NOTIFY", "NOTIFICATION",
+            "SERVICES_CACHED", "EXECUTE_WRITE"
+    };
+
+    private static final int SLOT_LONGS = 3;
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    private final long[] mRing;
+    private final AtomicLongArray mSequences;
+    private final int mMask;
+    private final AtomicLong mNext = new AtomicLong();
+    private volatile int mLevel;
+
+    /*
+     * Capacity is rounded up to a power of two events
+     */
+    public TraceLog(int capacity, int level) {
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        mRing = new long[size * SLOT_LONGS];
+        mSequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            mSequences.set(i, -1);
+        }
+        mMask = size - 1;
+        mLevel = level;
+    }
+
+    public void setLevel(int level) {
+        mLevel = level;
+    }
+
+    public boolean isEnabled(int level) {
+        return level <= mLevel;
+    }
+
+    /*
+     * Attribute is one of the profile's ATTRIBUTE_ indices; status is
+     * a GATT status, connection state or other small value.
+     */
+    public void record(int level, int event,
+                       String address, int attribute, int status) {
+        if (level > mLevel) return;
+
+        final long sequence = mNext.getAndIncrement();
+        final int index = (int) (sequence & mMask);
+        final int slot = index * SLOT_LONGS;
+        //Mark the slot as being written before touching its contents
+        mSequences.set(index, -1);
+        mRing[slot] = SystemClock.elapsedRealtimeNanos();
+        mRing[slot + 1] = packAddress(address);
+        mRing[slot + 2] = ((long) event << 40)
+                | ((long) (attribute & 0xFF) << 32)
+                | (status & 0xFFFFFFFFL);
+        //Volatile store publishes the contents along with the sequence
+        mSequences.set(index, sequence);
+    }
+
+    public long getRecordedCount() {
+        return mNext.get();
+    }
+
+    /*
+     * Decode the retained events, oldest first. Events overwritten
+     * or still being written while dumping are skipped.
+     */
+    public void dump(Appendable out) throws IOException {
+        final long end = mNext.get();
+        final long start = Math.max(0, end - (mMask + 1));
+
+        long origin = -1;
+        for (long sequence = start; sequence < end; sequence++) {
+            final int index = (int) (sequence & mMask);
+            final int slot = index * SLOT_LONGS;
+            if (mSequences.get(index) != sequence) continue;
+            long time = mRing[slot];
+            long address = mRing[slot + 1];
+            long packed = mRing[slot + 2];
+            //Overwritten while copying
+            if (mSequences.get(index) != sequence) continue;
+
+            if (origin < 0) origin = time;
+
+            int event = (int) (packed >>> 40) & 0xFF;
+            out.append('+').append(String.valueOf((time - origin) / 1000))
+                    .append("us ")
+                    .append(event < EVENT_NAMES.length
+                            ? EVENT_NAMES[event] : String.valueOf(event))
+                    .append(' ').append(formatAddress(address))
+                    .append(' ')
+                    .append(getAttributeName((int) (packed >>> 32) & 0xFF))
+                    .append(" status=").append(String.valueOf((int) packed))
+                    .append('\n');
+        }
+    }
+
+    public void dumpToLog(String tag) {
+        StringBuilder text = new StringBuilder();
+        try {
+            dump(text);
+        } catch (IOException e) {
+            //StringBuilder does not throw
+        }
+        Log.d(tag, text.toString());
+    }
+
+    static String formatAddress(long packed) {
+        StringBuilder address = new StringBuilder(17);
+        for (int shift = 40; shift >= 0; shift -= 8) {
+            int octet = (int) (packed >>> shift) & 0xFF;
+            address.append(HEX_DIGITS[octet >> 4])
+                    .append(HEX_DIGITS[octet & 0xF]);
+            if (shift > 0) address.append(':');
+        }
+        return address.toString();
+    }
+}
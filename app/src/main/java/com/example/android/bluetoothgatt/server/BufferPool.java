@@ -0,0 +1,44 @@
+package com.example.android.bluetoothgatt.server;
+
+/*
+ * Fixed-size byte buffers shared by every central, created on demand
+ * up to a limit and reused after release. The limit bounds the memory
+ * that queued writes can hold no matter how many centrals use them.
+ */
+final class BufferPool {
+    private final int mBufferSize;
+    private final int mMaxBuffers;
+    private final byte[][] mFree;
+    private int mFreeCount;
+    private int mCreated;
+
+    BufferPool(int bufferSize, int maxBuffers) {
+        mBufferSize = bufferSize;
+        mMaxBuffers = maxBuffers;
+        mFree = new byte[maxBuffers][];
+    }
+
+    //A free buffer, or null when all of them are in use
+    synchronized byte[] acquire() {
+        if (mFreeCount > 0) {
+            byte[] buffer = mFree[--mFreeCount];
+            mFree[mFreeCount] = null;
+            return buffer;
+        }
+        if (mCreated == mMaxBuffers) return null;
+
+        mCreated++;
+        return new byte[mBufferSize];
+    }
+
+    synchronized void release(byte[] buffer) {
+        if (buffer == null || buffer.length != mBufferSize
+                || mFreeCount == mMaxBuffers) return;
+
+        mFree[mFreeCount++] = buffer;
+    }
+
+    synchronized int getAvailable() {
+        return mFreeCount + mMaxBuffers - mCreated;
+    }
+}
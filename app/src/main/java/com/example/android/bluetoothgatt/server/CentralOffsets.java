@@ -0,0 +1,159 @@
+package com.example.android.bluetoothgatt.server;
+
+import java.util.Arrays;
+
+/*
+ * Offsets of centrals that keep their own timer, keyed by the address
+ * packed into a long. An open-addressing table of primitive arrays
+ * with linear probing, so every lookup is a few array reads and no
+ * operation allocates. Removal shifts later entries back instead of
+ * leaving tombstones, so probe chains never grow with churn.
+ *
+ * An entry outlives its central's link for a grace period, so a quick
+ * reconnect finds its offset again. Disconnected entries are removed
+ * by evictExpired() once their time is up.
+ */
+final class CentralOffsets {
+    //Returned by get() for a central without an offset of its own
+    static final long MISSING = -1;
+
+    //Packed addresses use 48 bits, so this never collides with one
+    private static final long EMPTY = -1;
+
+    private final long[] mKeys;
+    private final int[] mOffsets;
+    //Uptime at which a disconnected entry goes; 0 while connected
+    private final long[] mExpiry;
+    private final int mMask;
+    private final int mMaxSize;
+    private int mSize;
+
+    CentralOffsets(int maxSize) {
+        //At most half full, which keeps probe chains short
+        int capacity =
+                Integer.highestOneBit(Math.max(1, maxSize) * 2 - 1) << 1;
+        mKeys = new long[capacity];
+        mOffsets = new int[capacity];
+        mExpiry = new long[capacity];
+        mMask = capacity - 1;
+        mMaxSize = maxSize;
+        Arrays.fill(mKeys, EMPTY);
+    }
+
+    //The central's offset as an unsigned value, or MISSING
+    synchronized long get(long key) {
+        int slot = find(key);
+        return slot >= 0 ? mOffsets[slot] & 0xFFFFFFFFL : MISSING;
+    }
+
+    /*
+     * Set the central's offset. Returns false when the table is full.
+     */
+    synchronized boolean put(long key, int offset) {
+        int slot = find(key);
+        if (slot < 0) {
+            if (mSize == mMaxSize) return false;
+
+            slot = home(key);
+            while (mKeys[slot] != EMPTY) {
+                slot = (slot + 1) & mMask;
+            }
+            mKeys[slot] = key;
+            mSize++;
+        }
+        mOffsets[slot] = offset;
+        mExpiry[slot] = 0;
+        return true;
+    }
+
+    //Whether put() would succeed for the central
+    synchronized boolean canPut(long key) {
+        return mSize < mMaxSize || find(key) >= 0;
+    }
+
+    //The central is back; keep its entry for good
+    synchronized void onConnected(long key) {
+        int slot = find(key);
+        if (slot >= 0) {
+            mExpiry[slot] = 0;
+        }
+    }
+
+    //Keep the entry until the given uptime, unless the central returns
+    synchronized void onDisconnected(long key, long expiry) {
+        int slot = find(key);
+        if (slot >= 0) {
+            mExpiry[slot] = Math.max(1, expiry);
+        }
+    }
+
+    /*
+     * Remove the entries whose grace period has ended. Returns the
+     * uptime of the next expiry, or 0 if none is pending.
+     */
+    synchronized long evictExpired(long now) {
+        long next = 0;
+        int slot = 0;
+        while (slot <= mMask) {
+            final long expiry = mExpiry[slot];
+            if (mKeys[slot] != EMPTY && expiry != 0) {
+                if (expiry <= now) {
+                    //Another entry may shift into this slot; look again
+                    removeAt(slot);
+                    continue;
+                }
+                if (next == 0 || expiry < next) {
+                    next = expiry;
+                }
+            }
+            slot++;
+        }
+        return next;
+    }
+
+    synchronized int size() {
+        return mSize;
+    }
+
+    synchronized void clear() {
+        Arrays.fill(mKeys, EMPTY);
+        mSize = 0;
+    }
+
+    private int find(long key) {
+        int slot = home(key);
+        while (mKeys[slot] != EMPTY) {
+            if (mKeys[slot] == key) return slot;
+            slot = (slot + 1) & mMask;
+        }
+        return -1;
+    }
+
+    //Slot where the key's probe chain starts
+    int home(long key) {
+        int hash = (int) (key ^ (key >>> 32)) * 0x9E3779B1;
+        return (hash ^ (hash >>> 16)) & mMask;
+    }
+
+    /*
+     * Empty the slot, moving back any later entry of the same probe
+     * chain that would otherwise become unreachable
+     */
+    private void removeAt(int slot) {
+        int hole = slot;
+        int next = (hole + 1) & mMask;
+        while (mKeys[next] != EMPTY) {
+            int home = home(mKeys[next]);
+            if (((next - home) & mMask) >= ((next - hole) & mMask)) {
+                mKeys[hole] = mKeys[next];
+                mOffsets[hole] = mOffsets[next];
+                mExpiry[hole] = mExpiry[next];
+                hole = next;
+            }
+            next = (next + 1) & mMask;
+        }
+        mKeys[hole] = EMPTY;
+        mExpiry[hole] = 0;
+        mSize--;
+    }
+}
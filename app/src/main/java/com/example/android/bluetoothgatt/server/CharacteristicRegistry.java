@@ -0,0 +1,222 @@
+package com.example.android.bluetoothgatt.server;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+
+import com.example.android.bluetoothgatt.transport.GattServerTransport;
+
+import java.nio.ByteBuffer;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/*
+ * Read and write handlers for each attribute the server exposes,
+ * registered once when the service is built. Requests arrive with
+ * the same attribute instances that were registered, so dispatch is
+ * a single identity lookup no matter how many attributes exist.
+ *
+ * Dispatch sends exactly one response for every request that needs
+ * one, including requests for attributes nobody registered.
+ *
+ * Values longer than one response are read in parts. The read at
+ * offset 0 keeps the value for the central, and each blob read that
+ * follows is answered with a slice of it rather than a fresh read or
+ * a copy. The central keeps reading until a part comes back shorter
+ * than a full response, which for a value that fills its last part
+ * exactly is an empty one, so the value is only let go then.
+ */
+class CharacteristicRegistry {
+
+    public interface ReadHandler {
+        //Return the current value, or null to fail the request
+        byte[] onRead(BluetoothDevice device);
+    }
+
+    public interface WriteHandler {
+        /*
+         * Return the GATT status writing the value would have, without
+         * applying it. Anything onWrite() would refuse is refused here.
+         */
+        int check(BluetoothDevice device, byte[] value);
+
+        //Apply a value check() accepted and return a GATT status code
+        int onWrite(BluetoothDevice device, byte[] value);
+    }
+
+    private static class Entry {
+        final ReadHandler reader;
+        final WriteHandler writer;
+
+        Entry(ReadHandler reader, WriteHandler writer) {
+            this.reader = reader;
+            this.writer = writer;
+        }
+    }
+
+    //Filled before the service is published, read-only afterwards
+    private final Map<Object, Entry> mEntries;
+
+    public CharacteristicRegistry() {
+        mEntries = new IdentityHashMap<Object, Entry>();
+    }
+
+    public void register(BluetoothGattCharacteristic characteristic,
+                         ReadHandler reader, WriteHandler writer) {
+        mEntries.put(characteristic, new Entry(reader, writer));
+    }
+
+    public void register(BluetoothGattDescriptor descriptor,
+                         ReadHandler reader, WriteHandler writer) {
+        mEntries.put(descriptor, new Entry(reader, writer));
+    }
+
+    //Returns the status sent in the response
+    public int dispatchRead(GattServerTransport server,
+                             DeviceState state,
+                             int requestId,
+                             Object attribute,
+                             int offset) {
+        Entry entry = mEntries.get(attribute);
+        if (entry == null || entry.reader == null) {
+            return sendReadFailure(server, state, requestId, offset,
+                    BluetoothGatt.GATT_READ_NOT_PERMITTED);
+        }
+
+        DeviceState.ReadSnapshot snapshot = state.readSnapshot;
+        ByteBuffer value;
+        if (offset > 0 && snapshot != null
+                && snapshot.attribute == attribute) {
+            value = snapshot.value;
+        } else {
+            //A new read, or a blob read nobody kept a value for
+            byte[] raw = entry.reader.onRead(state.device);
+            if (raw == null) {
+                return sendReadFailure(server, state, requestId, offset,
+                        BluetoothGatt.GATT_FAILURE);
+            }
+            value = ByteBuffer.wrap(raw);
+        }
+        if (offset < 0 || offset > value.limit()) {
+            return sendReadFailure(server, state, requestId, offset,
+                    BluetoothGatt.GATT_INVALID_OFFSET);
+        }
+
+        //The read response opcode takes one byte of the MTU
+        final int end = Math.min(value.limit(), offset + state.mtu - 1);
+        if (end - offset < state.mtu - 1) {
+            //A short part, which ends the sequence
+            state.readSnapshot = null;
+        } else if (snapshot == null || snapshot.value != value) {
+            state.readSnapshot = new DeviceState.ReadSnapshot(attribute, value);
+        }
+
+        ByteBuffer slice = value.duplicate();
+        slice.limit(end);
+        slice.position(offset);
+        server.sendResponse(state.device, requestId,
+                BluetoothGatt.GATT_SUCCESS, offset, slice);
+        return BluetoothGatt.GATT_SUCCESS;
+    }
+
+    private static int sendReadFailure(GattServerTransport server,
+                                       DeviceState state,
+                                       int requestId,
+                                       int offset,
+                                       int status) {
+        state.readSnapshot = null;
+        server.sendResponse(state.device, requestId, status, offset,
+                (byte[]) null);
+        return status;
+    }
+
+    //Returns the resulting status, whether or not a response was needed
+    public int dispatchWrite(GattServerTransport server,
+                              BluetoothDevice device,
+                              int requestId,
+                              Object attribute,
+                              boolean responseNeeded,
+                              int offset,
+                              byte[] value) {
+        //Only prepared writes may start past the beginning of a value
+        int status = offset != 0
+                ? BluetoothGatt.GATT_INVALID_OFFSET
+                : write(device, attribute, value);
+
+        if (responseNeeded) {
+            server.sendResponse(device, requestId, status, 0,
+                    status == BluetoothGatt.GATT_SUCCESS ? value : null);
+        }
+        return status;
+    }
+
+    /*
+     * Queue one part of a long write. The response echoes the part, so
+     * the central can check it arrived intact.
+     */
+    public int dispatchPrepare(GattServerTransport server,
+                               PreparedWriteQueue queue,
+                               BufferPool pool,
+                               BluetoothDevice device,
+                               int requestId,
+                               Object attribute,
+                               boolean responseNeeded,
+                               int offset,
+                               byte[] value) {
+        Entry entry = mEntries.get(attribute);
+
+        int status;
+        if (entry == null || entry.writer == null) {
+            status = BluetoothGatt.GATT_WRITE_NOT_PERMITTED;
+        } else {
+            status = queue.prepare(pool, attribute, offset, value);
+        }
+
+        if (responseNeeded) {
+            server.sendResponse(device, requestId, status, offset,
+                    status == BluetoothGatt.GATT_SUCCESS ? value : null);
+        }
+        return status;
+    }
+
+    //Commit or cancel every prepared write of the central
+    public int dispatchExecute(GattServerTransport server,
+                               PreparedWriteQueue queue,
+                               BufferPool pool,
+                               BluetoothDevice device,
+                               int requestId,
+                               boolean execute) {
+        int status = BluetoothGatt.GATT_SUCCESS;
+        if (execute) {
+            status = queue.execute(this, pool, device);
+        } else {
+            queue.clear(pool);
+        }
+
+        server.sendResponse(device, requestId, status, 0, (byte[]) null);
+        return status;
+    }
+
+    //Apply a complete value and return a GATT status code
+    int write(BluetoothDevice device, Object attribute, byte[] value) {
+        int status = check(device, attribute, value);
+        if (status != BluetoothGatt.GATT_SUCCESS) return status;
+
+        return mEntries.get(attribute).writer.onWrite(device, value);
+    }
+
+    //The status write() would return, without side effects
+    int check(BluetoothDevice device, Object attribute, byte[] value) {
+        Entry entry = mEntries.get(attribute);
+        if (entry == null || entry.writer == null) {
+            return BluetoothGatt.GATT_WRITE_NOT_PERMITTED;
+        }
+        try {
+            return entry.writer.check(device, value);
+        } catch (IllegalArgumentException e) {
+            //Value could not be decoded
+            return BluetoothGatt.GATT_INVALID_ATTRIBUTE_LENGTH;
+        }
+    }
+}
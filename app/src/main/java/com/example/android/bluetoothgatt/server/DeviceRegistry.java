@@ -0,0 +1,57 @@
+package com.example.android.bluetoothgatt.server;
+
+import android.bluetooth.BluetoothDevice;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * Connected centrals keyed by address. Connect, disconnect and lookup
+ * are constant time from any thread, and iterating devices() never
+ * locks or throws while devices come and go; a fan-out simply may or
+ * may not see a device that connects during the loop.
+ *
+ * Only a connect adds a device. Requests look theirs up with get(),
+ * so a late callback after the disconnect cannot bring it back.
+ */
+class DeviceRegistry {
+
+    private final ConcurrentHashMap<String, DeviceState> mDevices;
+
+    public DeviceRegistry() {
+        mDevices = new ConcurrentHashMap<String, DeviceState>();
+    }
+
+    /*
+     * State for a device, created if this is the first we've seen of it.
+     * For connection events only.
+     */
+    public DeviceState obtain(BluetoothDevice device) {
+        DeviceState state = mDevices.get(device.getAddress());
+        if (state != null) return state;
+
+        DeviceState created = new DeviceState(device);
+        state = mDevices.putIfAbsent(created.address, created);
+        return state != null ? state : created;
+    }
+
+    public DeviceState get(BluetoothDevice device) {
+        return mDevices.get(device.getAddress());
+    }
+
+    public DeviceState remove(BluetoothDevice device) {
+        return mDevices.remove(device.getAddress());
+    }
+
+    public Collection<DeviceState> devices() {
+        return mDevices.values();
+    }
+
+    public int size() {
+        return mDevices.size();
+    }
+
+    public void clear() {
+        mDevices.clear();
+    }
+}
@@ -0,0 +1,119 @@
+package com.example.android.bluetoothgatt.server;
+
+import android.bluetooth.BluetoothDevice;
+import android.os.SystemClock;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static com.example.android.bluetoothgatt.TimerGattProfile.*;
+
+/*
+ * Everything the server tracks about one connected central. Fields
+ * are written from binder threads and read during fan-out on the
+ * handler thread, so each one is individually volatile or atomic.
+ */
+final class DeviceState {
+    //Subscription flags, one per notifying characteristic
+    static final int SUBSCRIBED_ELAPSED = 1;
+    static final int SUBSCRIBED_BATCH = 2;
+    //Periodic subscriptions, which keep the device on the timing wheel
+    static final int SUBSCRIBED_ANY = SUBSCRIBED_ELAPSED | SUBSCRIBED_BATCH;
+    //Only notified when the offset is written
+    static final int SUBSCRIBED_OFFSET = 4;
+
+    //ATT default until the central negotiates a larger one
+    static final int DEFAULT_MTU = 23;
+
+    final BluetoothDevice device;
+    final String address;
+    //Address packed into a long, a compact key for primitive tables
+    final long addressKey;
+
+    volatile int mtu = DEFAULT_MTU;
+    volatile int notifyInterval = DEFAULT_NOTIFY_INTERVAL;
+    //Notifications handed to the stack but not yet reported sent
+    final AtomicInteger inFlight = new AtomicInteger();
+    //Uptime of the last notification handed to the stack
+    volatile long lastSentTime;
+    //Uptime when the central connected, and notifications sent since
+    final long connectedTime = SystemClock.uptimeMillis();
+    final AtomicLong notificationsSent = new AtomicLong();
+    //Newest value held back while the in-flight window is full
+    final AtomicReference<byte[]> pendingValue = new AtomicReference<byte[]>();
+    //Samples awaiting the next batch notification, handler thread only
+    SampleBatch batch;
+    //Long writes waiting for the central to execute them
+    final PreparedWriteQueue preparedWrites = new PreparedWriteQueue();
+    //Last offset change this central has seen, as a history sequence
+    volatile int historyCursor;
+    //Timer state for the central's own offset, in per-central mode
+    volatile TimerSnapshot snapshot;
+    //Value of a long read in progress, until a short part is sent
+    volatile ReadSnapshot readSnapshot;
+
+    //Notification encoding chosen by the central
+    volatile int encoding = ENCODING_FULL;
+    //Keyframe the central has acknowledged, which compact deltas refer to
+    volatile boolean hasCompactBase;
+    volatile int compactBase;
+    //A keyframe is on its way; nothing else is sent until it is reported
+    volatile boolean keyframeInFlight;
+
+    private final AtomicInteger mSubscriptions = new AtomicInteger();
+
+    /*
+     * Value read at offset 0, kept so the blob reads that follow see
+     * the same value even if it changes in between
+     */
+    static final class ReadSnapshot {
+        final Object attribute;
+        final ByteBuffer value;
+
+        ReadSnapshot(Object attribute, ByteBuffer value) {
+            this.attribute = attribute;
+            this.value = value;
+        }
+    }
+
+    DeviceState(BluetoothDevice device) {
+        this.device = device;
+        this.address = device.getAddress();
+        this.addressKey = packAddress(address);
+    }
+
+    boolean isSubscribed(int flag) {
+        return (mSubscriptions.get() & flag) != 0;
+    }
+
+    void setSubscribed(int flag, boolean subscribed) {
+        int current;
+        do {
+            current = mSubscriptions.get();
+        } while (!mSubscriptions.compareAndSet(current,
+                subscribed ? current | flag : current & ~flag));
+    }
+
+    /*
+     * Release one slot of the in-flight window, never going below zero
+     * if the stack reports more sends than we counted.
+     */
+    void releaseInFlight() {
+        int current;
+        do {
+            current = inFlight.get();
+            if (current == 0) return;
+        } while (!inFlight.compareAndSet(current, current - 1));
+    }
+
+    /*
+     * Forget the compact base, so the next elapsed value is sent
+     * as a keyframe
+     */
+    void resetCompactBase() {
+        hasCompactBase = false;
+        keyframeInFlight = false;
+    }
+}
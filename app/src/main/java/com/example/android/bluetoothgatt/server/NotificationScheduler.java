@@ -0,0 +1,171 @@
+package com.example.android.bluetoothgatt.server;
+
+import android.bluetooth.BluetoothDevice;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ * Hashed timing wheel tracking when each subscribed device is due
+ * for its next notification. Each tick only visits the entries hashed
+ * into the current slot, so devices that are not yet due cost nothing.
+ *
+ * Not thread-safe; all calls must come from the server's handler thread.
+ */
+class NotificationScheduler {
+
+    //Callback for each device whose interval has elapsed on a tick
+    public interface DueListener {
+        void onNotificationDue(BluetoothDevice device);
+    }
+
+    private static class Entry {
+        final BluetoothDevice device;
+        int intervalTicks;
+        int rounds;
+        int slot;
+        Entry prev;
+        Entry next;
+
+        Entry(BluetoothDevice device) {
+            this.device = device;
+        }
+    }
+
+    private final long mTickMillis;
+    private final Entry[] mWheel;
+    private final Map<BluetoothDevice, Entry> mEntries;
+    //Reused on every tick so firing due devices doesn't allocate
+    private final ArrayList<Entry> mDue;
+
+    //Absolute index of the next tick to process, and the uptime it is due
+    private long mTick;
+    private long mNextTickTime;
+
+    public NotificationScheduler(long tickMillis, int wheelSize) {
+        mTickMillis = tickMillis;
+        mWheel = new Entry[wheelSize];
+        mEntries = new HashMap<BluetoothDevice, Entry>();
+        mDue = new ArrayList<Entry>();
+    }
+
+    public boolean isEmpty() {
+        return mEntries.isEmpty();
+    }
+
+    public boolean isScheduled(BluetoothDevice device) {
+        return mEntries.containsKey(device);
+    }
+
+    public long getNextTickTime() {
+        return mNextTickTime;
+    }
+
+    /*
+     * Add a device, or move an existing one to a new interval.
+     * The first notification falls due one interval from now.
+     */
+    public void schedule(BluetoothDevice device, int intervalMillis, long now) {
+        if (mEntries.isEmpty()) {
+            //Wheel was idle; restart its clock from now
+            mNextTickTime = now + mTickMillis;
+        }
+
+        Entry entry = mEntries.get(device);
+        if (entry == null) {
+            entry = new Entry(device);
+            mEntries.put(device, entry);
+        } else {
+            unlink(entry);
+        }
+
+        entry.intervalTicks = Math.max(1,
+                (int) ((intervalMillis + mTickMillis - 1) / mTickMillis));
+        //The pending tick fires within one tick period, so count it
+        insert(entry, mTick + entry.intervalTicks - 1, mTick);
+    }
+
+    public void cancel(BluetoothDevice device) {
+        Entry entry = mEntries.remove(device);
+        if (entry != null) {
+            unlink(entry);
+        }
+    }
+
+    public void clear() {
+        mEntries.clear();
+        for (int i = 0; i < mWheel.length; i++) {
+            mWheel[i] = null;
+        }
+    }
+
+    /*
+     * Process every slot whose time has passed, reporting due devices
+     * to the listener. Returns the uptime of the next pending tick.
+     */
+    public long advance(long now, DueListener listener) {
+        while (mNextTickTime <= now && !mEntries.isEmpty()) {
+            final long tick = mTick;
+            final int slot = (int) (tick % mWheel.length);
+
+            //Split the slot into entries due now and those on a later lap
+            Entry entry = mWheel[slot];
+            while (entry != null) {
+                Entry next = entry.next;
+                if (entry.rounds > 0) {
+                    entry.rounds--;
+                } else {
+                    unlink(entry);
+                    mDue.add(entry);
+                }
+                entry = next;
+            }
+
+            //Reschedule before firing, so listeners may safely cancel
+            for (int i = 0; i < mDue.size(); i++) {
+                Entry due = mDue.get(i);
+                insert(due, tick + due.intervalTicks, tick + 1);
+            }
+            for (int i = 0; i < mDue.size(); i++) {
+                listener.onNotificationDue(mDue.get(i).device);
+            }
+            mDue.clear();
+
+            mTick = tick + 1;
+            mNextTickTime += mTickMillis;
+        }
+
+        return mNextTickTime;
+    }
+
+    /*
+     * Hash an entry into the slot for its due tick. Rounds count the
+     * full laps the wheel makes, starting from the base tick, before
+     * that slot is visited at the right time.
+     */
+    private void insert(Entry entry, long dueTick, long baseTick) {
+        entry.slot = (int) (dueTick % mWheel.length);
+        entry.rounds = (int) ((dueTick - baseTick) / mWheel.length);
+
+        entry.prev = null;
+        entry.next = mWheel[entry.slot];
+        if (entry.next != null) {
+            entry.next.prev = entry;
+        }
+        mWheel[entry.slot] = entry;
+    }
+
+    private void unlink(Entry entry) {
+        if (entry.prev != null) {
+            entry.prev.next = entry.next;
+        } else if (mWheel[entry.slot] == entry) {
+            mWheel[entry.slot] = entry.next;
+        }
+        if (entry.next != null) {
+            entry.next.prev = entry.prev;
+        }
+        entry.prev = null;
+        entry.next = null;
+    }
+}
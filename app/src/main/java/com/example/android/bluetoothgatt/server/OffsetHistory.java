@@ -0,0 +1,82 @@
+package com.example.android.bluetoothgatt.server;
+
+import static com.example.android.bluetoothgatt.TimerGattProfile.*;
+
+/*
+ * Most recent offset changes, each with the wall clock time, the
+ * address of the central that wrote it and a sequence number. Entries
+ * live in parallel primitive arrays used as a ring, so recording one
+ * allocates nothing and the oldest is overwritten once it is full.
+ *
+ * Sequence numbers keep counting from the base given to reset(), so
+ * they can continue across server restarts even though the entries
+ * themselves do not.
+ */
+final class OffsetHistory {
+    private final long[] mTimes;
+    private final long[] mWriters;
+    private final int[] mOffsets;
+
+    //Sequence of the newest entry, and how many are retained
+    private int mLatest;
+    private int mCount;
+
+    OffsetHistory(int capacity) {
+        mTimes = new long[capacity];
+        mWriters = new long[capacity];
+        mOffsets = new int[capacity];
+    }
+
+    /*
+     * Forget every entry and continue numbering after the given sequence
+     */
+    synchronized void reset(int latestSequence) {
+        mLatest = latestSequence;
+        mCount = 0;
+    }
+
+    //Returns the sequence number of the new entry
+    synchronized int record(long timeMillis, long writer, int offset) {
+        final int sequence = ++mLatest;
+        final int index = getIndex(sequence);
+        mTimes[index] = timeMillis;
+        mWriters[index] = writer;
+        mOffsets[index] = offset;
+        if (mCount < mOffsets.length) {
+            mCount++;
+        }
+        return sequence;
+    }
+
+    /*
+     * Encode the header and the oldest entries after the given sequence,
+     * as many as fit in the length
+     */
+    synchronized byte[] encodeAfter(int sequence, int maxLength) {
+        final int oldest = mLatest - mCount + 1;
+        final int first = Math.max(oldest, sequence + 1);
+        final int available = Math.max(0, mLatest - first + 1);
+        final int count = Math.min(available,
+                (maxLength - HISTORY_HEADER_SIZE) / HISTORY_ENTRY_SIZE);
+
+        byte[] raw = new byte[HISTORY_HEADER_SIZE + count * HISTORY_ENTRY_SIZE];
+        writeUInt32(raw, 0, mLatest);
+        writeUInt32(raw, 4, oldest);
+        for (int i = 0; i < count; i++) {
+            final int index = getIndex(first + i);
+            final int entry = HISTORY_HEADER_SIZE + i * HISTORY_ENTRY_SIZE;
+            writeUInt32(raw, entry, first + i);
+            writeUInt64(raw, entry + 4, mTimes[index]);
+            writeUInt32(raw, entry + 12, (int) mWriters[index]);
+            writeUInt16(raw, entry + 16, (int) (mWriters[index] >>> 32));
+            writeUInt32(raw, entry + 18, mOffsets[index]);
+        }
+        return raw;
+    }
+
+    private int getIndex(int sequence) {
+        //Sequences only grow, but the int may eventually wrap
+        return ((sequence % mOffsets.length) + mOffsets.length)
+                % mOffsets.length;
+    }
+}
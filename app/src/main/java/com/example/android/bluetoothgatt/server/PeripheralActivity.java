@@ -29,6 +29,8 @@ public class PeripheralActivity extends Activity
     private BluetoothLeAdvertiser mBluetoothLeAdvertiser;
 
     private TimeServerCallback mGattServerCallback;
+    //Outlives each server, so the offset survives a pause
+    private StateStore mStateStore;
 
     private ArrayAdapter<BluetoothDevice> mConnectedDevicesAdapter;
 
@@ -49,6 +51,14 @@ public class PeripheralActivity extends Activity
         BluetoothManager manager =
                 (BluetoothManager) getSystemService(BLUETOOTH_SERVICE);
         mBluetoothAdapter = manager.getAdapter();
+
+        mStateStore = new StateStore(getFilesDir());
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        mStateStore.close();
     }
 
     @Override
@@ -94,6 +104,10 @@ public class PeripheralActivity extends Activity
 
         mBluetoothLeAdvertiser = mBluetoothAdapter.getBluetoothLeAdvertiser();
         mGattServerCallback = new TimeServerCallback(this);
+        //Let fleet devices be inspected over the air
+        mGattServerCallback.setStatsEnabled(true);
+        mGattServerCallback.setStateStore(mStateStore);
+        mLastOffsetUpdates = 0;
 
         mGattServerCallback.initServer(this);
         startAdvertising();
@@ -104,6 +118,8 @@ public class PeripheralActivity extends Activity
         super.onPause();
         stopAdvertising();
         mGattServerCallback.shutdownServer();
+        //We may not get another chance before the process is killed
+        mStateStore.flush();
     }
 
     /*
@@ -169,19 +185,20 @@ public class PeripheralActivity extends Activity
 
     /** UI Handlers for events from the GATT server instance */
 
-    @Override
-    public void onDeviceConnected(BluetoothDevice device) {
-        mConnectedDevicesAdapter.add(device);
-    }
+    private int mLastOffsetUpdates;
 
     @Override
-    public void onDeviceDisconnected(BluetoothDevice device) {
-        mConnectedDevicesAdapter.remove(device);
-    }
-
-    @Override
-    public void onTimeOffsetUpdated() {
-        Toast.makeText(this, "Time Offset Updated", Toast.LENGTH_SHORT)
-                .show();
+    public void onServerStatusChanged(ServerStatus status) {
+        mConnectedDevicesAdapter.setNotifyOnChange(false);
+        mConnectedDevicesAdapter.clear();
+        mConnectedDevicesAdapter.addAll(status.getConnectedDevices());
+        mConnectedDevicesAdapter.notifyDataSetChanged();
+
+        //Several writes may have been coalesced into this snapshot
+        if (status.getOffsetUpdateCount() != mLastOffsetUpdates) {
+            mLastOffsetUpdates = status.getOffsetUpdateCount();
+            Toast.makeText(this, "Time Offset Updated", Toast.LENGTH_SHORT)
+                    .show();
+        }
     }
 }
@@ -0,0 +1,112 @@
+package com.example.android.bluetoothgatt.server;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+
+import java.util.Arrays;
+
+import static com.example.android.bluetoothgatt.TimerGattProfile.*;
+
+/*
+ * Prepared writes of one central, waiting for it to execute or cancel
+ * them. The parts written to each attribute are reassembled in a
+ * pooled buffer, so a long value costs no allocation until it is
+ * committed. A central may queue a few attributes at once, and the
+ * pool bounds the total across all centrals.
+ *
+ * The central sends its requests one at a time, but they arrive on
+ * different binder threads and a disconnect may clear the queue at
+ * any point, so every method locks.
+ */
+final class PreparedWriteQueue {
+    //Attributes one central may have queued at once
+    static final int MAX_ATTRIBUTES = 4;
+
+    private final Object[] mAttributes = new Object[MAX_ATTRIBUTES];
+    private final byte[][] mBuffers = new byte[MAX_ATTRIBUTES][];
+    private final int[] mLengths = new int[MAX_ATTRIBUTES];
+    private int mCount;
+
+    /*
+     * Add one part of a value. Parts must continue or overwrite what
+     * has been written so far. Returns a GATT status code.
+     */
+    synchronized int prepare(BufferPool pool, Object attribute,
+                             int offset, byte[] value) {
+        final int length = value != null ? value.length : 0;
+        int index = indexOf(attribute);
+        final int written = index >= 0 ? mLengths[index] : 0;
+        if (offset < 0 || offset > written) {
+            return BluetoothGatt.GATT_INVALID_OFFSET;
+        }
+        if (offset + length > MAX_ATTRIBUTE_LENGTH) {
+            return BluetoothGatt.GATT_INVALID_ATTRIBUTE_LENGTH;
+        }
+
+        if (index < 0) {
+            if (mCount == MAX_ATTRIBUTES) return GATT_PREPARE_QUEUE_FULL;
+            byte[] buffer = pool.acquire();
+            if (buffer == null) return GATT_PREPARE_QUEUE_FULL;
+
+            index = mCount++;
+            mAttributes[index] = attribute;
+            mBuffers[index] = buffer;
+            mLengths[index] = 0;
+        }
+        if (length > 0) {
+            System.arraycopy(value, 0, mBuffers[index], offset, length);
+        }
+        mLengths[index] = Math.max(written, offset + length);
+        return BluetoothGatt.GATT_SUCCESS;
+    }
+
+    /*
+     * Hand each reassembled value to its handler in a single write, in
+     * the order the attributes were first prepared. Every value is
+     * checked up front, so a value that cannot be decoded or would be
+     * refused stops the execute before anything is applied. A handler
+     * can still fail its write after the checks passed, for instance
+     * when the central disconnects in between; the values before it
+     * stay applied and the rest are dropped. Returns the first failing
+     * status. Empties the queue either way.
+     */
+    synchronized int execute(CharacteristicRegistry registry,
+                             BufferPool pool,
+                             BluetoothDevice device) {
+        //Handlers may keep the value, so it cannot be a pooled buffer
+        final byte[][] values = new byte[mCount][];
+        int status = BluetoothGatt.GATT_SUCCESS;
+        for (int i = 0; i < mCount && status == BluetoothGatt.GATT_SUCCESS;
+                i++) {
+            values[i] = Arrays.copyOf(mBuffers[i], mLengths[i]);
+            status = registry.check(device, mAttributes[i], values[i]);
+        }
+        for (int i = 0; i < mCount && status == BluetoothGatt.GATT_SUCCESS;
+                i++) {
+            status = registry.write(device, mAttributes[i], values[i]);
+        }
+        clear(pool);
+        return status;
+    }
+
+    //Drop every queued part, returning the buffers to the pool
+    synchronized void clear(BufferPool pool) {
+        for (int i = 0; i < mCount; i++) {
+            pool.release(mBuffers[i]);
+            mAttributes[i] = null;
+            mBuffers[i] = null;
+        }
+        mCount = 0;
+    }
+
+    synchronized boolean isEmpty() {
+        return mCount == 0;
+    }
+
+    private int indexOf(Object attribute) {
+        for (int i = 0; i < mCount; i++) {
+            if (mAttributes[i] == attribute) return i;
+        }
+        return -1;
+    }
+}
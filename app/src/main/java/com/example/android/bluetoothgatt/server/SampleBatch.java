@@ -0,0 +1,158 @@
+package com.example.android.bluetoothgatt.server;
+
+import static com.example.android.bluetoothgatt.TimerGattProfile.*;
+
+/*
+ * Elapsed samples collected for one central between batch
+ * notifications. Each drain packs as many samples as the central's
+ * MTU allows into a single payload, in either batch layout.
+ *
+ * Not thread-safe; only used on the server's handler thread.
+ */
+final class SampleBatch {
+    //Sample offsets are sent as 16 bit milliseconds
+    static final long MAX_SPAN_MILLIS = 0xFFFF;
+
+    private final long[] mTimes;
+    private final int[] mValues;
+    //Compact size of each sample's deltas against the one before it
+    private final int[] mCompactSizes;
+    private int mCount;
+    //Compact size of samples after the first, kept as samples come and go
+    private int mCompactBytes;
+
+    SampleBatch(int maxSamples) {
+        mTimes = new long[maxSamples];
+        mValues = new int[maxSamples];
+        mCompactSizes = new int[maxSamples];
+    }
+
+    int size() {
+        return mCount;
+    }
+
+    //Time spanned by the buffered samples if one were taken now
+    long getSpan(long now) {
+        return mCount > 0 ? now - mTimes[0] : 0;
+    }
+
+    /*
+     * Buffer a sample. When full, the newest sample is replaced and
+     * false is returned.
+     */
+    boolean add(long time, int value) {
+        boolean added = mCount < mTimes.length;
+        int index = added ? mCount++ : mCount - 1;
+        mTimes[index] = time;
+        mValues[index] = value;
+
+        if (index > 0) {
+            if (!added) {
+                mCompactBytes -= mCompactSizes[index];
+            }
+            mCompactSizes[index] = compactSize(index);
+            mCompactBytes += mCompactSizes[index];
+        }
+        return added;
+    }
+
+    /*
+     * Whether another sample might no longer fit in maxBytes
+     */
+    boolean isFull(int maxBytes, boolean compact) {
+        if (mCount >= Math.min(mTimes.length, BATCH_MAX_COUNT)) {
+            return true;
+        }
+        return getEncodedSize(mCount, compact) + BATCH_SAMPLE_SIZE > maxBytes;
+    }
+
+    /*
+     * Encode as many of the oldest samples as fit in maxBytes, and
+     * remove them
+     */
+    byte[] drain(int maxBytes, boolean compact) {
+        int count = Math.min(mCount, BATCH_MAX_COUNT);
+        while (count > 1 && getEncodedSize(count, compact) > maxBytes) {
+            count--;
+        }
+
+        byte[] raw = compact ? encodeCompact(count) : encodeFull(count);
+        remove(count);
+        return raw;
+    }
+
+    void clear() {
+        mCount = 0;
+        mCompactBytes = 0;
+    }
+
+    private byte[] encodeFull(int count) {
+        byte[] raw = new byte[BATCH_HEADER_SIZE + count * BATCH_SAMPLE_SIZE];
+
+        raw[0] = (byte) count;
+        final long base = count > 0 ? mTimes[0] : 0;
+        writeUInt32(raw, 1, (int) base);
+        for (int i = 0; i < count; i++) {
+            int sample = BATCH_HEADER_SIZE + i * BATCH_SAMPLE_SIZE;
+            writeUInt16(raw, sample,
+                    (int) Math.min(MAX_SPAN_MILLIS, mTimes[i] - base));
+            writeUInt32(raw, sample + 2, mValues[i]);
+        }
+        return raw;
+    }
+
+    private byte[] encodeCompact(int count) {
+        byte[] raw = new byte[getEncodedSize(count, true)];
+
+        raw[0] = (byte) (count | BATCH_COMPACT_FLAG);
+        if (count == 0) {
+            return raw;
+        }
+        writeUInt32(raw, 1, (int) mTimes[0]);
+        writeUInt32(raw, BATCH_HEADER_SIZE, mValues[0]);
+
+        int offset = BATCH_COMPACT_HEADER_SIZE;
+        for (int i = 1; i < count; i++) {
+            offset = writeVarInt(raw, offset,
+                    (int) (mTimes[i] - mTimes[i - 1]));
+            offset = writeVarInt(raw, offset,
+                    zigzag(mValues[i] - mValues[i - 1]));
+        }
+        return raw;
+    }
+
+    private int getEncodedSize(int count, boolean compact) {
+        if (!compact) {
+            return BATCH_HEADER_SIZE + count * BATCH_SAMPLE_SIZE;
+        }
+        if (count == 0) {
+            return BATCH_HEADER_SIZE;
+        }
+        int size = BATCH_COMPACT_HEADER_SIZE;
+        if (count == mCount) {
+            return size + mCompactBytes;
+        }
+        for (int i = 1; i < count; i++) {
+            size += mCompactSizes[i];
+        }
+        return size;
+    }
+
+    private int compactSize(int index) {
+        return varIntSize((int) (mTimes[index] - mTimes[index - 1]))
+                + varIntSize(zigzag(mValues[index] - mValues[index - 1]));
+    }
+
+    private void remove(int count) {
+        mCount -= count;
+        System.arraycopy(mTimes, count, mTimes, 0, mCount);
+        System.arraycopy(mValues, count, mValues, 0, mCount);
+        System.arraycopy(mCompactSizes, count, mCompactSizes, 0, mCount);
+
+        //The new first sample carries no deltas
+        mCompactBytes = 0;
+        for (int i = 1; i < mCount; i++) {
+            mCompactBytes += mCompactSizes[i];
+        }
+    }
+}
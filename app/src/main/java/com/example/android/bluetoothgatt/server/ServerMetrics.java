@@ -0,0 +1,92 @@
+package com.example.android.bluetoothgatt.server;
+
+import com.example.android.bluetoothgatt.metrics.LatencyHistogram;
+
+import java.util.Collections;
+import java.util.List;
+
+/*
+ * Point-in-time copy of the server's request and notification metrics.
+ * Latencies are measured from the request callback to its response
+ * being handed to the stack, in microseconds.
+ */
+public final class ServerMetrics {
+
+    //Notification rate to one central since it connected
+    public static final class DeviceRate {
+        private final String mAddress;
+        private final long mNotifications;
+        private final double mPerSecond;
+
+        DeviceRate(String address, long notifications, double perSecond) {
+            mAddress = address;
+            mNotifications = notifications;
+            mPerSecond = perSecond;
+        }
+
+        public String getAddress() {
+            return mAddress;
+        }
+
+        public long getNotifications() {
+            return mNotifications;
+        }
+
+        public double getPerSecond() {
+            return mPerSecond;
+        }
+    }
+
+    private final long mReadRequests;
+    private final long mWriteRequests;
+    private final long mNotificationsSent;
+    private final LatencyHistogram.Snapshot mReadLatency;
+    private final LatencyHistogram.Snapshot mWriteLatency;
+    private final LatencyHistogram.Snapshot mFanoutDuration;
+    private final List<DeviceRate> mDeviceRates;
+
+    ServerMetrics(long readRequests,
+                  long writeRequests,
+                  long notificationsSent,
+                  LatencyHistogram.Snapshot readLatency,
+                  LatencyHistogram.Snapshot writeLatency,
+                  LatencyHistogram.Snapshot fanoutDuration,
+                  List<DeviceRate> deviceRates) {
+        mReadRequests = readRequests;
+        mWriteRequests = writeRequests;
+        mNotificationsSent = notificationsSent;
+        mReadLatency = readLatency;
+        mWriteLatency = writeLatency;
+        mFanoutDuration = fanoutDuration;
+        mDeviceRates = Collections.unmodifiableList(deviceRates);
+    }
+
+    public long getReadRequests() {
+        return mReadRequests;
+    }
+
+    public long getWriteRequests() {
+        return mWriteRequests;
+    }
+
+    public long getNotificationsSent() {
+        return mNotificationsSent;
+    }
+
+    public LatencyHistogram.Snapshot getReadLatency() {
+        return mReadLatency;
+    }
+
+    public LatencyHistogram.Snapshot getWriteLatency() {
+        return mWriteLatency;
+    }
+
+    //Time to push one value to every subscriber
+    public LatencyHistogram.Snapshot getFanoutDuration() {
+        return mFanoutDuration;
+    }
+
+    public List<DeviceRate> getDeviceRates() {
+        return mDeviceRates;
+    }
+}
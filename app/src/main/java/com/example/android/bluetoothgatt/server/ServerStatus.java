@@ -0,0 +1,63 @@
+package com.example.android.bluetoothgatt.server;
+
+import android.bluetooth.BluetoothDevice;
+
+import java.util.Collections;
+import java.util.List;
+
+/*
+ * Immutable snapshot of the server handed to the user interface.
+ * Several changes in quick succession are coalesced into the latest
+ * snapshot, so counters are used to tell what happened in between.
+ */
+public final class ServerStatus {
+    private final List<BluetoothDevice> mConnectedDevices;
+    private final int mTimeOffset;
+    private final int mOffsetUpdates;
+    private final long mNotificationsSent;
+    private final long mNotificationsCoalesced;
+    private final long mNotificationsDropped;
+
+    ServerStatus(List<BluetoothDevice> connectedDevices,
+                 int timeOffset,
+                 int offsetUpdates,
+                 long notificationsSent,
+                 long notificationsCoalesced,
+                 long notificationsDropped) {
+        mConnectedDevices = Collections.unmodifiableList(connectedDevices);
+        mTimeOffset = timeOffset;
+        mOffsetUpdates = offsetUpdates;
+        mNotificationsSent = notificationsSent;
+        mNotificationsCoalesced = notificationsCoalesced;
+        mNotificationsDropped = notificationsDropped;
+    }
+
+    public List<BluetoothDevice> getConnectedDevices() {
+        return mConnectedDevices;
+    }
+
+    //Seconds since the epoch that elapsed time is counted from
+    public int getTimeOffset() {
+        return mTimeOffset;
+    }
+
+    //Total offset writes since the server started
+    public int getOffsetUpdateCount() {
+        return mOffsetUpdates;
+    }
+
+    //Notifications accepted by the stack
+    public long getNotificationsSent() {
+        return mNotificationsSent;
+    }
+
+    //Values replaced by a newer one while a central's window was full
+    public long getNotificationsCoalesced() {
+        return mNotificationsCoalesced;
+    }
+
+    //Notifications the stack refused or failed to deliver
+    public long getNotificationsDropped() {
+        return mNotificationsDropped;
+    }
+}
@@ -0,0 +1,397 @@
+package com.example.android.bluetoothgatt.server;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/*
+ * Small durable store for server characteristic state, a handful of
+ * int values under small integer keys. Values are held in memory and
+ * written out on a background thread, so put() never touches the disk.
+ * The files are restored on that thread too, as soon as the store is
+ * created; get() and put() only wait for the restore if it has not
+ * finished yet, so any thread may call them.
+ *
+ * Changes are appended to a memory-mapped log of fixed-size records,
+ * and a burst of changes arriving within the flush delay is written
+ * with a single force. When the log fills, every value is written to a
+ * compacted snapshot file and the log starts over. Restoring reads the
+ * snapshot and replays the log records that follow it; both files are
+ * a few kilobytes at most, so this takes well under a millisecond.
+ *
+ * A record that was torn by a crash fails its checksum, and replay
+ * stops there. A snapshot is written to a temporary file and renamed
+ * into place, so a crash while compacting leaves the old snapshot and
+ * the full log behind.
+ */
+public class StateStore {
+    private static final String TAG = StateStore.class.getSimpleName();
+
+    public static final String LOG_NAME = "state.log";
+    public static final String SNAPSHOT_NAME = "state.snap";
+
+    //Keys are bits of the dirty mask
+    public static final int MAX_KEYS = 32;
+
+    //Writes within this window share one force of the log
+    private static final long FLUSH_DELAY_MILLIS = 100;
+
+    private static final int SNAPSHOT_MAGIC = 0x53535331; //"SSS1"
+    private static final int RECORD_MAGIC = 0x5353524C; //"SSRL"
+    //Sequence and key in one long, then the value and a checksum
+    private static final int RECORD_SIZE = 16;
+    private static final int LOG_SIZE = 256 * RECORD_SIZE;
+
+    private final File mLogFile;
+    private final File mSnapshotFile;
+    private final HandlerThread mHandlerThread;
+    private final Handler mHandler;
+
+    private final int[] mValues = new int[MAX_KEYS];
+    private int mPresent;
+    private int mDirty;
+    private boolean mLoaded;
+    private boolean mFlushPending;
+    private boolean mClosed;
+    //Last sequence number written; store thread only
+    private long mSequence;
+    private long mRestoreNanos;
+
+    //Only touched on the store thread
+    private RandomAccessFile mLogAccess;
+    private MappedByteBuffer mLog;
+
+    public StateStore(File directory) {
+        mLogFile = new File(directory, LOG_NAME);
+        mSnapshotFile = new File(directory, SNAPSHOT_NAME);
+
+        //Disk writes must never hold up the server thread
+        mHandlerThread = new HandlerThread(TAG,
+                Process.THREAD_PRIORITY_BACKGROUND);
+        mHandlerThread.start();
+        mHandler = new Handler(mHandlerThread.getLooper());
+        mHandler.post(mLoadRunnable);
+    }
+
+    /*
+     * Value last stored under the key
+     */
+    public synchronized int get(int key, int defaultValue) {
+        checkKey(key);
+        awaitLoaded();
+        return (mPresent & (1 << key)) != 0 ? mValues[key] : defaultValue;
+    }
+
+    /*
+     * Store a value. It is written out shortly after, together with
+     * any other changes made in the meantime.
+     */
+    public synchronized void put(int key, int value) {
+        checkKey(key);
+        awaitLoaded();
+        final int bit = 1 << key;
+        if (mClosed
+                || ((mPresent & bit) != 0 && mValues[key] == value)) return;
+
+        mValues[key] = value;
+        mPresent |= bit;
+        mDirty |= bit;
+        if (!mFlushPending) {
+            mFlushPending = true;
+            mHandler.postDelayed(mFlushRunnable, FLUSH_DELAY_MILLIS);
+        }
+    }
+
+    /*
+     * Write pending changes now instead of after the flush delay.
+     * Returns without waiting for the write.
+     */
+    public synchronized void flush() {
+        if (!mFlushPending) return;
+
+        mHandler.removeCallbacks(mFlushRunnable);
+        mHandler.post(mFlushRunnable);
+    }
+
+    /*
+     * Write pending changes and a fresh snapshot, then stop the store
+     * thread. Later changes are ignored.
+     */
+    public synchronized void close() {
+        if (mClosed) return;
+
+        mClosed = true;
+        mHandler.removeCallbacks(mFlushRunnable);
+        mHandler.post(mCloseRunnable);
+        mHandlerThread.quitSafely();
+    }
+
+    //Time the store thread spent reading the files
+    public synchronized long getRestoreNanos() {
+        return mRestoreNanos;
+    }
+
+    private static void checkKey(int key) {
+        if (key < 0 || key >= MAX_KEYS) {
+            throw new IllegalArgumentException("Invalid key " + key);
+        }
+    }
+
+    //Called with the lock held, which wait() gives up to the store thread
+    private void awaitLoaded() {
+        boolean interrupted = false;
+        while (!mLoaded) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    //Store thread only, with the lock held
+    private void load() {
+        final long start = SystemClock.elapsedRealtimeNanos();
+        readSnapshot();
+        replayLog();
+        mRestoreNanos = SystemClock.elapsedRealtimeNanos() - start;
+        mLoaded = true;
+        notifyAll();
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, "Restored state in " + mRestoreNanos + "ns");
+        }
+    }
+
+    private void readSnapshot() {
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(mSnapshotFile);
+            byte[] raw = new byte[(int) mSnapshotFile.length()];
+            int read = 0;
+            while (read < raw.length) {
+                int count = in.read(raw, read, raw.length - read);
+                if (count < 0) break;
+                read += count;
+            }
+
+            ByteBuffer buffer = ByteBuffer.wrap(raw, 0, read);
+            if (read < 20 || buffer.getInt() != SNAPSHOT_MAGIC) {
+                Log.w(TAG, "Ignoring snapshot in an unknown format");
+                return;
+            }
+            CRC32 crc = new CRC32();
+            crc.update(raw, 0, read - 4);
+            if ((int) crc.getValue() != buffer.getInt(read - 4)) {
+                Log.w(TAG, "Ignoring corrupt snapshot");
+                return;
+            }
+            long sequence = buffer.getLong();
+            int count = buffer.getInt();
+            if (count < 0 || count > MAX_KEYS || read != 20 + count * 5) {
+                Log.w(TAG, "Ignoring corrupt snapshot");
+                return;
+            }
+            for (int i = 0; i < count; i++) {
+                int key = buffer.get() & 0xFF;
+                int value = buffer.getInt();
+                if (key < MAX_KEYS) {
+                    mValues[key] = value;
+                    mPresent |= 1 << key;
+                }
+            }
+            mSequence = sequence;
+        } catch (FileNotFoundException e) {
+            //Nothing stored yet
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to read snapshot", e);
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    /*
+     * Apply log records newer than the snapshot. Records are written in
+     * sequence order, so the first one that is torn, or older than the
+     * one before it, ends the log.
+     */
+    private void replayLog() {
+        try {
+            mLogAccess = new RandomAccessFile(mLogFile, "rw");
+            mLogAccess.setLength(LOG_SIZE);
+            mLog = mLogAccess.getChannel()
+                    .map(FileChannel.MapMode.READ_WRITE, 0, LOG_SIZE);
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to open state log", e);
+            closeQuietly(mLogAccess);
+            mLogAccess = null;
+            mLog = null;
+            return;
+        }
+
+        long previous = 0;
+        int position = 0;
+        //New records go after the last one the snapshot did not cover
+        int end = 0;
+        while (position + RECORD_SIZE <= LOG_SIZE) {
+            long header = mLog.getLong(position);
+            int value = mLog.getInt(position + 8);
+            if (mLog.getInt(position + 12) != checksum(header, value)) break;
+
+            long sequence = header >>> 8;
+            if (sequence <= previous) break;
+
+            previous = sequence;
+            position += RECORD_SIZE;
+            if (sequence <= mSequence) continue;
+
+            int key = (int) (header & 0xFF);
+            if (key < MAX_KEYS) {
+                mValues[key] = value;
+                mPresent |= 1 << key;
+            }
+            mSequence = sequence;
+            end = position;
+        }
+        mLog.position(end);
+    }
+
+    private static int checksum(long header, int value) {
+        int hash = (int) (header ^ (header >>> 32));
+        return (hash * 31 + value) * 0x9E3779B1 ^ RECORD_MAGIC;
+    }
+
+    /*
+     * Append a record for every dirty value and force them out together,
+     * compacting first when the log has no room left
+     */
+    private void writeDirty() {
+        final int[] values = new int[MAX_KEYS];
+        final int dirty;
+        final int present;
+        synchronized (this) {
+            mFlushPending = false;
+            dirty = mDirty;
+            present = mPresent;
+            mDirty = 0;
+            System.arraycopy(mValues, 0, values, 0, MAX_KEYS);
+        }
+        if (dirty == 0) return;
+
+        if (mLog == null || mLog.remaining() < Integer.bitCount(dirty) * RECORD_SIZE) {
+            writeSnapshot(values, present);
+            return;
+        }
+        for (int key = 0; key < MAX_KEYS; key++) {
+            if ((dirty & (1 << key)) == 0) continue;
+
+            long header = (++mSequence << 8) | key;
+            mLog.putLong(header);
+            mLog.putInt(values[key]);
+            mLog.putInt(checksum(header, values[key]));
+        }
+        mLog.force();
+    }
+
+    /*
+     * Replace the snapshot with every current value, after which the log
+     * can be reused from the start. Records left over from the old log
+     * are all older than the snapshot, so replay skips or stops at them.
+     */
+    private void writeSnapshot(int[] values, int present) {
+        final int count = Integer.bitCount(present);
+        ByteBuffer buffer = ByteBuffer.allocate(20 + count * 5);
+        buffer.putInt(SNAPSHOT_MAGIC);
+        buffer.putLong(mSequence);
+        buffer.putInt(count);
+        for (int key = 0; key < MAX_KEYS; key++) {
+            if ((present & (1 << key)) == 0) continue;
+
+            buffer.put((byte) key);
+            buffer.putInt(values[key]);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, buffer.position());
+        buffer.putInt((int) crc.getValue());
+
+        File temp = new File(mSnapshotFile.getPath() + ".tmp");
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(temp);
+            out.write(buffer.array());
+            out.getFD().sync();
+            out.close();
+            out = null;
+            if (!temp.renameTo(mSnapshotFile)) {
+                Log.w(TAG, "Unable to replace snapshot");
+                return;
+            }
+            if (mLog != null) {
+                mLog.clear();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to write snapshot", e);
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    private Runnable mLoadRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (StateStore.this) {
+                load();
+            }
+        }
+    };
+
+    private Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            writeDirty();
+        }
+    };
+
+    private Runnable mCloseRunnable = new Runnable() {
+        @Override
+        public void run() {
+            writeDirty();
+            final int[] values = new int[MAX_KEYS];
+            final int present;
+            synchronized (StateStore.this) {
+                present = mPresent;
+                System.arraycopy(mValues, 0, values, 0, MAX_KEYS);
+            }
+            //Restores next time from the snapshot alone
+            writeSnapshot(values, present);
+            closeQuietly(mLogAccess);
+            mLogAccess = null;
+            mLog = null;
+        }
+    };
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) return;
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            //Nothing left to do
+        }
+    }
+}
@@ -3,19 +3,28 @@ package com.example.android.bluetoothgatt.server;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCharacteristic;
-import android.bluetooth.BluetoothGattServer;
+import android.bluetooth.BluetoothGattDescriptor;
 import android.bluetooth.BluetoothGattServerCallback;
 import android.bluetooth.BluetoothGattService;
-import android.bluetooth.BluetoothManager;
 import android.bluetooth.BluetoothProfile;
 import android.content.Context;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
 import android.util.Log;
 
+import com.example.android.bluetoothgatt.metrics.LatencyHistogram;
+import com.example.android.bluetoothgatt.metrics.TraceLog;
+import com.example.android.bluetoothgatt.transport.AndroidGattServerTransport;
+import com.example.android.bluetoothgatt.transport.GattServerTransport;
+
 import java.util.ArrayList;
-import java.util.List;
-import java.util.UUID;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static com.example.android.bluetoothgatt.TimerGattProfile.*;
 
@@ -28,21 +37,129 @@ public class TimeServerCallback extends BluetoothGattServerCallback {
 
     //Basic callback interface to notify the user interface of events
     public interface ServerStatusListener {
-        void onDeviceConnected(BluetoothDevice device);
-        void onDeviceDisconnected(BluetoothDevice device);
-        void onTimeOffsetUpdated();
+        //Called on the main thread with the latest state of the server
+        void onServerStatusChanged(ServerStatus status);
     }
 
-    private Handler mHandler = new Handler(Looper.getMainLooper());
+    //Resolution and size of the notification timing wheel
+    private static final int TICK_MILLIS = 50;
+    private static final int WHEEL_SLOTS = 64;
+
+    //Notifications each central may have queued in the stack at once
+    private static final int MAX_IN_FLIGHT = 2;
+    //A window still full after this long means a lost send report
+    private static final long STALL_TIMEOUT_MILLIS = 5000;
+    //Longest a sample waits in a batch that has not filled up
+    private static final long MAX_BATCH_AGE_MILLIS = 5000;
+    private static final int MAX_BATCH_SAMPLES = BATCH_MAX_COUNT;
+
+    //Events kept by the trace log
+    private static final int TRACE_CAPACITY = 1024;
+
+    //Keys of the values kept in the state store
+    private static final int STATE_OFFSET = 0;
+    private static final int STATE_HISTORY_SEQUENCE = 1;
+
+    //Reassembly buffers for prepared writes, shared by all centrals
+    private static final int MAX_WRITE_BUFFERS = 8;
+
+    //Centrals with an offset of their own, in per-central mode
+    private static final int MAX_CENTRAL_OFFSETS = 128;
+    //How long a central's offset is kept after it disconnects
+    private static final long OFFSET_GRACE_MILLIS = 120000;
 
-    private BluetoothGattServer mGattServer;
-    private List<BluetoothDevice> mConnectedDevices;
+    /*
+     * All server bookkeeping runs on a dedicated thread, so a busy
+     * user interface cannot delay notifications. The main thread only
+     * receives coalesced status snapshots.
+     */
+    private HandlerThread mHandlerThread;
+    private Handler mHandler;
+    private Handler mUiHandler = new Handler(Looper.getMainLooper());
+
+    private GattServerTransport mGattServer;
+    private BluetoothGattCharacteristic mElapsedCharacteristic;
+    private BluetoothGattCharacteristic mBatchCharacteristic;
+    private BluetoothGattCharacteristic mOffsetCharacteristic;
+
+    /*
+     * Per-device state is written from binder threads and read during
+     * fan-out, so it lives in a concurrent registry. The scheduler
+     * itself is only touched on the handler thread.
+     */
+    private DeviceRegistry mDevices;
+    private NotificationScheduler mScheduler;
+
+    private CharacteristicRegistry mRegistry;
+    private BufferPool mWriteBuffers;
+    private OffsetHistory mHistory;
+    /*
+     * Held while an offset change updates the live value, the history
+     * and the store, so concurrent changes land in all three in the
+     * same order
+     */
+    private final Object mOffsetLock = new Object();
+    //Offsets written by each central, or null when they share one
+    private CentralOffsets mCentralOffsets;
+    //Hash of the service as served, set once by initServer()
+    private byte[] mVersionValue;
 
     private ServerStatusListener mStatusListener;
 
+    //Binary event trace in place of per-request log lines
+    private final TraceLog mTrace =
+            new TraceLog(TRACE_CAPACITY, TraceLog.LEVEL_EVENTS);
+
+    //Whether initServer() exposes the stats characteristic
+    private boolean mStatsEnabled;
+
+    //Keeps the offset across server restarts; may be null
+    private StateStore mStateStore;
+
     public TimeServerCallback(ServerStatusListener listener) {
-        mConnectedDevices = new ArrayList<BluetoothDevice>();
+        mDevices = new DeviceRegistry();
+        mScheduler = new NotificationScheduler(TICK_MILLIS, WHEEL_SLOTS);
+        mRegistry = new CharacteristicRegistry();
+        mWriteBuffers = new BufferPool(MAX_ATTRIBUTE_LENGTH, MAX_WRITE_BUFFERS);
+        mHistory = new OffsetHistory(HISTORY_CAPACITY);
         mStatusListener = listener;
+
+        mHandlerThread = new HandlerThread(TAG,
+                Process.THREAD_PRIORITY_FOREGROUND);
+        mHandlerThread.start();
+        mHandler = new Handler(mHandlerThread.getLooper());
+    }
+
+    public TraceLog getTraceLog() {
+        return mTrace;
+    }
+
+    /*
+     * Expose a read-only characteristic summarizing server metrics.
+     * Must be set before initServer().
+     */
+    public void setStatsEnabled(boolean enabled) {
+        mStatsEnabled = enabled;
+    }
+
+    /*
+     * Give each central its own offset, and so its own elapsed time,
+     * for peripherals serving independent users. Centrals that never
+     * write one follow the shared offset, which only the schedule then
+     * changes. Must be set before initServer().
+     */
+    public void setPerCentralOffsetsEnabled(boolean enabled) {
+        mCentralOffsets = enabled
+                ? new CentralOffsets(MAX_CENTRAL_OFFSETS) : null;
+    }
+
+    /*
+     * Restore the offset from this store and save every change to it.
+     * The store belongs to the caller and outlives the server.
+     * Must be set before initServer().
+     */
+    public void setStateStore(StateStore store) {
+        mStateStore = store;
     }
 
     /*
@@ -50,24 +167,111 @@ public class TimeServerCallback extends BluetoothGattServerCallback {
      * characteristics that should be exposed
      */
     public void initServer(Context context) {
-        BluetoothManager manager =(BluetoothManager) context
-                .getSystemService(Context.BLUETOOTH_SERVICE);
-        mGattServer = manager.openGattServer(context, this);
+        initServer(AndroidGattServerTransport.open(context, this));
+    }
+
+    /*
+     * Attach our services to an already open transport, which must
+     * deliver its incoming requests to this callback
+     */
+    public void initServer(GattServerTransport server) {
+        mGattServer = server;
+        if (mStateStore != null) {
+            setStoredValue(mStateStore.get(STATE_OFFSET, 0));
+            //Entries are lost, but numbering carries on
+            mHistory.reset(mStateStore.get(STATE_HISTORY_SEQUENCE, 0));
+        }
 
         BluetoothGattService service =
                 new BluetoothGattService(UUID_SERVICE_TIMER,
                 BluetoothGattService.SERVICE_TYPE_PRIMARY);
 
-        BluetoothGattCharacteristic elapsedCharacteristic =
+        mElapsedCharacteristic =
                 new BluetoothGattCharacteristic(UUID_CHARACTERISTIC_ELAPSED,
                         PROPERTIES_ELAPSED, PERMISSIONS_ELAPSED);
-        BluetoothGattCharacteristic offsetCharacteristic =
+        //Clients must enable notifications through this descriptor
+        BluetoothGattDescriptor configDescriptor =
+                new BluetoothGattDescriptor(UUID_DESCRIPTOR_CLIENT_CONFIG,
+                        PERMISSIONS_CLIENT_CONFIG);
+        mElapsedCharacteristic.addDescriptor(configDescriptor);
+        mOffsetCharacteristic =
                 new BluetoothGattCharacteristic(UUID_CHARACTERISTIC_OFFSET,
                         PROPERTIES_OFFSET, PERMISSIONS_OFFSET);
+        BluetoothGattDescriptor offsetConfigDescriptor =
+                new BluetoothGattDescriptor(UUID_DESCRIPTOR_CLIENT_CONFIG,
+                        PERMISSIONS_CLIENT_CONFIG);
+        mOffsetCharacteristic.addDescriptor(offsetConfigDescriptor);
+        BluetoothGattCharacteristic intervalCharacteristic =
+                new BluetoothGattCharacteristic(UUID_CHARACTERISTIC_INTERVAL,
+                        PROPERTIES_INTERVAL, PERMISSIONS_INTERVAL);
+        mBatchCharacteristic =
+                new BluetoothGattCharacteristic(UUID_CHARACTERISTIC_BATCH,
+                        PROPERTIES_BATCH, PERMISSIONS_BATCH);
+        BluetoothGattDescriptor batchConfigDescriptor =
+                new BluetoothGattDescriptor(UUID_DESCRIPTOR_CLIENT_CONFIG,
+                        PERMISSIONS_CLIENT_CONFIG);
+        mBatchCharacteristic.addDescriptor(batchConfigDescriptor);
+        BluetoothGattCharacteristic encodingCharacteristic =
+                new BluetoothGattCharacteristic(UUID_CHARACTERISTIC_ENCODING,
+                        PROPERTIES_ENCODING, PERMISSIONS_ENCODING);
+        BluetoothGattCharacteristic clockCharacteristic =
+                new BluetoothGattCharacteristic(UUID_CHARACTERISTIC_CLOCK,
+                        PROPERTIES_CLOCK, PERMISSIONS_CLOCK);
+        BluetoothGattCharacteristic scheduleCharacteristic =
+                new BluetoothGattCharacteristic(UUID_CHARACTERISTIC_SCHEDULE,
+                        PROPERTIES_SCHEDULE, PERMISSIONS_SCHEDULE);
+        BluetoothGattCharacteristic historyCharacteristic =
+                new BluetoothGattCharacteristic(UUID_CHARACTERISTIC_HISTORY,
+                        PROPERTIES_HISTORY, PERMISSIONS_HISTORY);
+        BluetoothGattCharacteristic versionCharacteristic =
+                new BluetoothGattCharacteristic(UUID_CHARACTERISTIC_VERSION,
+                        PROPERTIES_VERSION, PERMISSIONS_VERSION);
 
-        service.addCharacteristic(elapsedCharacteristic);
-        service.addCharacteristic(offsetCharacteristic);
+        //Handlers must be in place before any request can arrive
+        ConfigHandler elapsedConfig =
+                new ConfigHandler(DeviceState.SUBSCRIBED_ELAPSED);
+        ConfigHandler batchConfig =
+                new ConfigHandler(DeviceState.SUBSCRIBED_BATCH);
+        ConfigHandler offsetConfig =
+                new ConfigHandler(DeviceState.SUBSCRIBED_OFFSET);
+        mRegistry.register(mElapsedCharacteristic, mElapsedReader, null);
+        mRegistry.register(configDescriptor, elapsedConfig, elapsedConfig);
+        mRegistry.register(mOffsetCharacteristic,
+                mOffsetReader, mOffsetWriter);
+        mRegistry.register(offsetConfigDescriptor, offsetConfig, offsetConfig);
+        mRegistry.register(intervalCharacteristic,
+                mIntervalReader, mIntervalWriter);
+        mRegistry.register(mBatchCharacteristic, mBatchReader, null);
+        mRegistry.register(batchConfigDescriptor, batchConfig, batchConfig);
+        mRegistry.register(encodingCharacteristic,
+                mEncodingReader, mEncodingWriter);
+        mRegistry.register(clockCharacteristic, mClockReader, null);
+        mRegistry.register(scheduleCharacteristic,
+                mScheduleReader, mScheduleWriter);
+        mRegistry.register(historyCharacteristic,
+                mHistoryReader, mHistoryWriter);
+        mRegistry.register(versionCharacteristic, mVersionReader, null);
+
+        service.addCharacteristic(mElapsedCharacteristic);
+        service.addCharacteristic(mOffsetCharacteristic);
+        service.addCharacteristic(intervalCharacteristic);
+        service.addCharacteristic(mBatchCharacteristic);
+        service.addCharacteristic(encodingCharacteristic);
+        service.addCharacteristic(clockCharacteristic);
+        service.addCharacteristic(scheduleCharacteristic);
+        service.addCharacteristic(historyCharacteristic);
+        service.addCharacteristic(versionCharacteristic);
+
+        if (mStatsEnabled) {
+            BluetoothGattCharacteristic statsCharacteristic =
+                    new BluetoothGattCharacteristic(UUID_CHARACTERISTIC_STATS,
+                            PROPERTIES_STATS, PERMISSIONS_STATS);
+            mRegistry.register(statsCharacteristic, mStatsReader, null);
+            service.addCharacteristic(statsCharacteristic);
+        }
 
+        //Clients compare it with the layout they cached last time
+        mVersionValue = bytesFromInt(getServiceHash(service));
         mGattServer.addService(service);
     }
 
@@ -75,7 +279,22 @@ public class TimeServerCallback extends BluetoothGattServerCallback {
      * Terminate the server and any running callbacks
      */
     public void shutdownServer() {
-        mHandler.removeCallbacks(mNotifyRunnable);
+        mHandler.removeCallbacks(mTickRunnable);
+        mHandler.removeCallbacks(mScheduleRunnable);
+        mHandler.removeCallbacks(mEvictRunnable);
+        mHandler.removeCallbacks(mNotifyAllRunnable);
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mScheduler.clear();
+            }
+        });
+        mHandlerThread.quitSafely();
+        mUiHandler.removeCallbacks(mStatusRunnable);
+        mDevices.clear();
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            mTrace.dumpToLog(TAG);
+        }
 
         if (mGattServer == null) return;
 
@@ -88,40 +307,93 @@ public class TimeServerCallback extends BluetoothGattServerCallback {
     public void onConnectionStateChange(BluetoothDevice device,
                                         int status,
                                         int newState) {
-        Log.i(TAG, "onConnectionStateChange "
-                + getStatusDescription(status) + " "
-                + getStateDescription(newState));
+        mTrace.record(TraceLog.LEVEL_EVENTS, TraceLog.EVENT_CONNECTION,
+                device.getAddress(), ATTRIBUTE_UNKNOWN, newState);
+        if (status != BluetoothGatt.GATT_SUCCESS) {
+            Log.w(TAG, "onConnectionStateChange "
+                    + getStatusDescription(status) + " "
+                    + getStateDescription(newState));
+        }
 
         if (newState == BluetoothProfile.STATE_CONNECTED) {
+            DeviceState state = mDevices.obtain(device);
+            if (mCentralOffsets != null) {
+                mCentralOffsets.onConnected(state.addressKey);
+            }
             postDeviceChange(device, true);
 
         } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+            DeviceState state = mDevices.remove(device);
+            if (state != null) {
+                //Writes never executed are abandoned with the link
+                state.preparedWrites.clear(mWriteBuffers);
+                if (mCentralOffsets != null) {
+                    mCentralOffsets.onDisconnected(state.addressKey,
+                            SystemClock.uptimeMillis() + OFFSET_GRACE_MILLIS);
+                    mHandler.post(mEvictRunnable);
+                }
+            }
             postDeviceChange(device, false);
         }
     }
 
+    @Override
+    public void onMtuChanged(BluetoothDevice device, int mtu) {
+        mTrace.record(TraceLog.LEVEL_EVENTS, TraceLog.EVENT_MTU,
+                device.getAddress(), ATTRIBUTE_UNKNOWN, mtu);
+        DeviceState state = mDevices.get(device);
+        if (state != null) {
+            state.mtu = mtu;
+        }
+    }
+
+    @Override
+    public void onNotificationSent(BluetoothDevice device, int status) {
+        final DeviceState state = mDevices.get(device);
+        if (status != BluetoothGatt.GATT_SUCCESS) {
+            mNotificationsDropped.incrementAndGet();
+            //The central may have missed a keyframe or delta
+            if (state != null) {
+                state.resetCompactBase();
+            }
+        } else if (state != null && state.keyframeInFlight) {
+            //Keyframes go out alone, so this report is for it
+            state.hasCompactBase = true;
+            state.keyframeInFlight = false;
+        }
+        if (state == null) return;
+
+        state.releaseInFlight();
+        if (state.pendingValue.get() != null) {
+            //Window has room again; send the value held back meanwhile
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    byte[] value = state.pendingValue.getAndSet(null);
+                    if (value != null && mDevices.get(state.device) == state) {
+                        notifyDevice(state, value);
+                    }
+                }
+            });
+        }
+    }
+
     @Override
     public void onCharacteristicReadRequest(BluetoothDevice device,
                                 int requestId,
                                 int offset,
                                 BluetoothGattCharacteristic characteristic) {
-        final UUID characteristicUuid = characteristic.getUuid();
-        Log.i(TAG, "onCharacteristicReadRequest "
-                + characteristicUuid.toString());
-
-        if (UUID_CHARACTERISTIC_ELAPSED.equals(characteristicUuid)) {
-            mGattServer.sendResponse(device, requestId,
-                    BluetoothGatt.GATT_SUCCESS, 0, getStoredValue());
-        }else if (UUID_CHARACTERISTIC_OFFSET.equals(characteristicUuid)) {
-            mGattServer.sendResponse(device, requestId,
-                    BluetoothGatt.GATT_SUCCESS, 0, bytesFromInt(mTimeOffset));
-        }
-
-        /*
-         * Always send a response back for any read request.
-         */
-        mGattServer.sendResponse(device, requestId,
-                BluetoothGatt.GATT_FAILURE, 0, null);
+        final long start = SystemClock.elapsedRealtimeNanos();
+        DeviceState state = mDevices.get(device);
+        int status = state != null
+                ? mRegistry.dispatchRead(mGattServer, state, requestId,
+                        characteristic, offset)
+                : failUnknownDevice(device, requestId, true, offset);
+        mReadRequests.incrementAndGet();
+        mTrace.record(TraceLog.LEVEL_EVENTS, TraceLog.EVENT_READ,
+                device.getAddress(),
+                getAttributeIndex(characteristic.getUuid()), status);
+        mReadLatency.recordNanos(SystemClock.elapsedRealtimeNanos() - start);
     }
 
     @Override
@@ -132,94 +404,920 @@ public class TimeServerCallback extends BluetoothGattServerCallback {
                                  boolean responseNeeded,
                                  int offset,
                                  byte[] value) {
-        final UUID characteristicUuid = characteristic.getUuid();
-        Log.i(TAG, "onCharacteristicWriteRequest "
-                + characteristicUuid.toString());
+        final long start = SystemClock.elapsedRealtimeNanos();
+        int status;
+        if (mDevices.get(device) == null) {
+            status = failUnknownDevice(device, requestId, responseNeeded,
+                    offset);
+        } else if (preparedWrite) {
+            status = prepareWrite(device, requestId, characteristic,
+                    responseNeeded, offset, value);
+        } else {
+            status = mRegistry.dispatchWrite(mGattServer, device, requestId,
+                    characteristic, responseNeeded, offset, value);
+        }
+        mWriteRequests.incrementAndGet();
+        mTrace.record(TraceLog.LEVEL_EVENTS, TraceLog.EVENT_WRITE,
+                device.getAddress(),
+                getAttributeIndex(characteristic.getUuid()), status);
+        mWriteLatency.recordNanos(SystemClock.elapsedRealtimeNanos() - start);
+    }
+
+    @Override
+    public void onDescriptorReadRequest(BluetoothDevice device,
+                                        int requestId,
+                                        int offset,
+                                        BluetoothGattDescriptor descriptor) {
+        DeviceState state = mDevices.get(device);
+        int status = state != null
+                ? mRegistry.dispatchRead(mGattServer, state, requestId,
+                        descriptor, offset)
+                : failUnknownDevice(device, requestId, true, offset);
+        mTrace.record(TraceLog.LEVEL_EVENTS, TraceLog.EVENT_DESCRIPTOR_READ,
+                device.getAddress(),
+                getAttributeIndex(descriptor.getCharacteristic().getUuid()),
+                status);
+    }
+
+    @Override
+    public void onDescriptorWriteRequest(BluetoothDevice device,
+                                         int requestId,
+                                         BluetoothGattDescriptor descriptor,
+                                         boolean preparedWrite,
+                                         boolean responseNeeded,
+                                         int offset,
+                                         byte[] value) {
+        int status;
+        if (mDevices.get(device) == null) {
+            status = failUnknownDevice(device, requestId, responseNeeded,
+                    offset);
+        } else if (preparedWrite) {
+            status = prepareWrite(device, requestId, descriptor,
+                    responseNeeded, offset, value);
+        } else {
+            status = mRegistry.dispatchWrite(mGattServer, device, requestId,
+                    descriptor, responseNeeded, offset, value);
+        }
+        mTrace.record(TraceLog.LEVEL_EVENTS, TraceLog.EVENT_DESCRIPTOR_WRITE,
+                device.getAddress(),
+                getAttributeIndex(descriptor.getCharacteristic().getUuid()),
+                status);
+    }
+
+    @Override
+    public void onExecuteWrite(BluetoothDevice device,
+                               int requestId,
+                               boolean execute) {
+        DeviceState state = mDevices.get(device);
+        int status = state != null
+                ? mRegistry.dispatchExecute(mGattServer, state.preparedWrites,
+                        mWriteBuffers, device, requestId, execute)
+                : failUnknownDevice(device, requestId, true, 0);
+        mTrace.record(TraceLog.LEVEL_EVENTS, TraceLog.EVENT_EXECUTE_WRITE,
+                device.getAddress(), ATTRIBUTE_UNKNOWN,
+                execute ? status : -1);
+    }
+
+    /*
+     * Part of a long write, held until the central executes it
+     */
+    private int prepareWrite(BluetoothDevice device,
+                             int requestId,
+                             Object attribute,
+                             boolean responseNeeded,
+                             int offset,
+                             byte[] value) {
+        DeviceState state = mDevices.get(device);
+        if (state == null) {
+            return failUnknownDevice(device, requestId, responseNeeded, offset);
+        }
+        return mRegistry.dispatchPrepare(mGattServer, state.preparedWrites,
+                mWriteBuffers, device, requestId, attribute, responseNeeded,
+                offset, value);
+    }
+
+    /*
+     * Fail a request from a central that is not connected, such as one
+     * racing its own disconnect, without starting to track it again
+     */
+    private int failUnknownDevice(BluetoothDevice device,
+                                  int requestId,
+                                  boolean responseNeeded,
+                                  int offset) {
+        if (responseNeeded) {
+            mGattServer.sendResponse(device, requestId,
+                    BluetoothGatt.GATT_FAILURE, offset, (byte[]) null);
+        }
+        return BluetoothGatt.GATT_FAILURE;
+    }
+
+    /** Attribute handlers, registered with the service in initServer() */
+
+    private CharacteristicRegistry.ReadHandler mElapsedReader =
+            new CharacteristicRegistry.ReadHandler() {
+        @Override
+        public byte[] onRead(BluetoothDevice device) {
+            return getElapsedValue(mDevices.get(device));
+        }
+    };
+
+    private CharacteristicRegistry.ReadHandler mOffsetReader =
+            new CharacteristicRegistry.ReadHandler() {
+        @Override
+        public byte[] onRead(BluetoothDevice device) {
+            return getSnapshot(mDevices.get(device)).offsetValue;
+        }
+    };
+
+    private CharacteristicRegistry.WriteHandler mOffsetWriter =
+            new CharacteristicRegistry.WriteHandler() {
+        @Override
+        public int check(BluetoothDevice device, byte[] value) {
+            unsignedIntFromBytes(value);
+            DeviceState state = mDevices.get(device);
+            if (state == null) return BluetoothGatt.GATT_FAILURE;
+
+            if (mCentralOffsets != null
+                    && !mCentralOffsets.canPut(state.addressKey)) {
+                return GATT_INSUFFICIENT_RESOURCES;
+            }
+            return BluetoothGatt.GATT_SUCCESS;
+        }
+
+        @Override
+        public int onWrite(BluetoothDevice device, byte[] value) {
+            final int offset = unsignedIntFromBytes(value);
+            final DeviceState state = mDevices.get(device);
+            if (state == null) return BluetoothGatt.GATT_FAILURE;
+
+            if (mCentralOffsets == null) {
+                applyOffset(offset, state.addressKey);
+                return BluetoothGatt.GATT_SUCCESS;
+            }
+
+            //Private to this central: no history, nobody else notified
+            if (!mCentralOffsets.put(state.addressKey, offset)) {
+                return GATT_INSUFFICIENT_RESOURCES;
+            }
+            mOffsetUpdates.incrementAndGet();
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (mDevices.get(state.device) == state) {
+                        notifyCentralOffset(state);
+                    }
+                    publishStatus();
+                }
+            });
+            return BluetoothGatt.GATT_SUCCESS;
+        }
+    };
+
+    private CharacteristicRegistry.ReadHandler mScheduleReader =
+            new CharacteristicRegistry.ReadHandler() {
+        @Override
+        public byte[] onRead(BluetoothDevice device) {
+            final long[] entries = mSchedule;
+            byte[] raw = new byte[entries.length * SCHEDULE_ENTRY_SIZE];
+            for (int i = 0; i < entries.length; i++) {
+                writeUInt32(raw, i * SCHEDULE_ENTRY_SIZE,
+                        (int) (entries[i] >>> 32));
+                writeUInt32(raw, i * SCHEDULE_ENTRY_SIZE + 4,
+                        (int) entries[i]);
+            }
+            return raw;
+        }
+    };
+
+    private CharacteristicRegistry.ReadHandler mHistoryReader =
+            new CharacteristicRegistry.ReadHandler() {
+        @Override
+        public byte[] onRead(BluetoothDevice device) {
+            DeviceState state = mDevices.get(device);
+            return mHistory.encodeAfter(state != null
+                    ? state.historyCursor : 0, MAX_ATTRIBUTE_LENGTH);
+        }
+    };
+
+    private CharacteristicRegistry.WriteHandler mHistoryWriter =
+            new CharacteristicRegistry.WriteHandler() {
+        @Override
+        public int check(BluetoothDevice device, byte[] value) {
+            return checkCentralValue(device, value);
+        }
+
+        @Override
+        public int onWrite(BluetoothDevice device, byte[] value) {
+            DeviceState state = mDevices.get(device);
+            if (state == null) return BluetoothGatt.GATT_FAILURE;
+
+            state.historyCursor = unsignedIntFromBytes(value);
+            return BluetoothGatt.GATT_SUCCESS;
+        }
+    };
+
+    /*
+     * Replace the schedule of future offsets. Entries are validated and
+     * sorted here, then swapped in whole on the handler thread.
+     */
+    private CharacteristicRegistry.WriteHandler mScheduleWriter =
+            new CharacteristicRegistry.WriteHandler() {
+        @Override
+        public int check(BluetoothDevice device, byte[] value) {
+            if (value == null || value.length % SCHEDULE_ENTRY_SIZE != 0
+                    || value.length > SCHEDULE_MAX_ENTRIES * SCHEDULE_ENTRY_SIZE)
+                throw new IllegalArgumentException("Malformed schedule");
 
-        if (UUID_CHARACTERISTIC_OFFSET.equals(characteristicUuid)) {
-            int newOffset = unsignedIntFromBytes(value);
-            setStoredValue(newOffset);
+            return BluetoothGatt.GATT_SUCCESS;
+        }
 
-            if (responseNeeded) {
-                mGattServer.sendResponse(device, requestId,
-                        BluetoothGatt.GATT_SUCCESS, 0, value);
+        @Override
+        public int onWrite(BluetoothDevice device, byte[] value) {
+            final int count = value.length / SCHEDULE_ENTRY_SIZE;
+            //Time in the high half and offset in the low, so sorting works
+            final long[] entries = new long[count];
+            for (int i = 0; i < count; i++) {
+                long second = readUInt32(value, i * SCHEDULE_ENTRY_SIZE)
+                        & 0xFFFFFFFFL;
+                int offset = readUInt32(value, i * SCHEDULE_ENTRY_SIZE + 4);
+                entries[i] = (second << 32) | (offset & 0xFFFFFFFFL);
             }
+            Arrays.sort(entries);
 
             mHandler.post(new Runnable() {
                 @Override
                 public void run() {
-                    //Notify the user interface listener on the main thread
-                    mStatusListener.onTimeOffsetUpdated();
+                    mSchedule = entries;
+                    runSchedule();
                 }
             });
+            return BluetoothGatt.GATT_SUCCESS;
+        }
+    };
+
+    private CharacteristicRegistry.ReadHandler mClockReader =
+            new CharacteristicRegistry.ReadHandler() {
+        @Override
+        public byte[] onRead(BluetoothDevice device) {
+            //Read as late as possible, so the value is closest to the response
+            byte[] raw = new byte[CLOCK_SIZE];
+            writeUInt64(raw, 0, System.currentTimeMillis());
+            return raw;
+        }
+    };
+
+    private CharacteristicRegistry.ReadHandler mVersionReader =
+            new CharacteristicRegistry.ReadHandler() {
+        @Override
+        public byte[] onRead(BluetoothDevice device) {
+            return mVersionValue;
+        }
+    };
+
+    private CharacteristicRegistry.ReadHandler mIntervalReader =
+            new CharacteristicRegistry.ReadHandler() {
+        @Override
+        public byte[] onRead(BluetoothDevice device) {
+            DeviceState state = mDevices.get(device);
+            return bytesFromInt(state != null
+                    ? state.notifyInterval : DEFAULT_NOTIFY_INTERVAL);
+        }
+    };
+
+    private CharacteristicRegistry.WriteHandler mIntervalWriter =
+            new CharacteristicRegistry.WriteHandler() {
+        @Override
+        public int check(BluetoothDevice device, byte[] value) {
+            return checkCentralValue(device, value);
+        }
+
+        @Override
+        public int onWrite(BluetoothDevice device, byte[] value) {
+            int interval = Math.max(MIN_NOTIFY_INTERVAL,
+                    unsignedIntFromBytes(value));
+            DeviceState state = mDevices.get(device);
+            if (state == null) return BluetoothGatt.GATT_FAILURE;
+
+            state.notifyInterval = interval;
+
+            //Move an active subscription onto its new interval
+            if (state.isSubscribed(DeviceState.SUBSCRIBED_ANY)) {
+                postSubscriptionChange(device, true);
+            }
+            return BluetoothGatt.GATT_SUCCESS;
+        }
+    };
 
-            notifyConnectedDevices();
+    private CharacteristicRegistry.ReadHandler mBatchReader =
+            new CharacteristicRegistry.ReadHandler() {
+        @Override
+        public byte[] onRead(BluetoothDevice device) {
+            //A read returns a batch holding just the current sample
+            SampleBatch batch = new SampleBatch(1);
+            batch.add(SystemClock.uptimeMillis(),
+                    readUInt32(getElapsedValue(mDevices.get(device)), 0));
+            return batch.drain(BATCH_HEADER_SIZE + BATCH_SAMPLE_SIZE, false);
+        }
+    };
+
+    private CharacteristicRegistry.ReadHandler mEncodingReader =
+            new CharacteristicRegistry.ReadHandler() {
+        @Override
+        public byte[] onRead(BluetoothDevice device) {
+            DeviceState state = mDevices.get(device);
+            return new byte[] {(byte) (state != null
+                    ? state.encoding : ENCODING_FULL)};
+        }
+    };
+
+    private CharacteristicRegistry.WriteHandler mEncodingWriter =
+            new CharacteristicRegistry.WriteHandler() {
+        @Override
+        public int check(BluetoothDevice device, byte[] value) {
+            if (value == null || value.length != 1)
+                throw new IllegalArgumentException("Encoding is a single byte");
+
+            if (value[0] != ENCODING_FULL && value[0] != ENCODING_COMPACT) {
+                return BluetoothGatt.GATT_REQUEST_NOT_SUPPORTED;
+            }
+            return mDevices.get(device) != null
+                    ? BluetoothGatt.GATT_SUCCESS : BluetoothGatt.GATT_FAILURE;
+        }
+
+        @Override
+        public int onWrite(BluetoothDevice device, byte[] value) {
+            final int encoding = value[0];
+
+            //Switch between notifications, starting from a keyframe
+            final DeviceState state = mDevices.get(device);
+            if (state == null) return BluetoothGatt.GATT_FAILURE;
+
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    state.encoding = encoding;
+                    state.resetCompactBase();
+                }
+            });
+            return BluetoothGatt.GATT_SUCCESS;
+        }
+    };
+
+    /*
+     * Client configuration descriptor of one notifying characteristic
+     */
+    private class ConfigHandler implements CharacteristicRegistry.ReadHandler,
+            CharacteristicRegistry.WriteHandler {
+        private final int mFlag;
+
+        ConfigHandler(int flag) {
+            mFlag = flag;
+        }
+
+        @Override
+        public byte[] onRead(BluetoothDevice device) {
+            DeviceState state = mDevices.get(device);
+            return state != null && state.isSubscribed(mFlag)
+                    ? BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE
+                    : BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE;
+        }
+
+        @Override
+        public int check(BluetoothDevice device, byte[] value) {
+            if (!Arrays.equals(value,
+                    BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE)
+                    && !Arrays.equals(value,
+                    BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE)) {
+                return BluetoothGatt.GATT_REQUEST_NOT_SUPPORTED;
+            }
+            return mDevices.get(device) != null
+                    ? BluetoothGatt.GATT_SUCCESS : BluetoothGatt.GATT_FAILURE;
+        }
+
+        @Override
+        public int onWrite(BluetoothDevice device, byte[] value) {
+            DeviceState state = mDevices.get(device);
+            if (state == null) return BluetoothGatt.GATT_FAILURE;
+
+            boolean enable = Arrays.equals(value,
+                    BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
+            state.setSubscribed(mFlag, enable);
+            postSubscriptionChange(device, enable);
+            return BluetoothGatt.GATT_SUCCESS;
         }
     }
 
+    /*
+     * A 32-bit value written for a connected central. Throws
+     * IllegalArgumentException when the value is too short.
+     */
+    private int checkCentralValue(BluetoothDevice device, byte[] value) {
+        unsignedIntFromBytes(value);
+        return mDevices.get(device) != null
+                ? BluetoothGatt.GATT_SUCCESS : BluetoothGatt.GATT_FAILURE;
+    }
+
     private void postDeviceChange(final BluetoothDevice device,
                                   final boolean toAdd) {
         mHandler.post(new Runnable() {
             @Override
             public void run() {
-                //Notify the user interface listener on the main thread
-                if (toAdd) {
-                    mConnectedDevices.add(device);
-                    mStatusListener.onDeviceConnected(device);
+                if (!toAdd) {
+                    mScheduler.cancel(device);
+                    scheduleTick();
+                }
+                publishStatus();
+            }
+        });
+    }
+
+    /** Status reporting to the user interface */
+
+    private AtomicInteger mOffsetUpdates = new AtomicInteger();
+    private AtomicLong mNotificationsSent = new AtomicLong();
+    private AtomicLong mNotificationsCoalesced = new AtomicLong();
+    private AtomicLong mNotificationsDropped = new AtomicLong();
+    private AtomicReference<ServerStatus> mPendingStatus =
+            new AtomicReference<ServerStatus>();
+
+    /*
+     * Replace the pending snapshot; only the first change since the
+     * last delivery posts to the main thread.
+     */
+    private void publishStatus() {
+        ArrayList<BluetoothDevice> devices = new ArrayList<BluetoothDevice>();
+        for (DeviceState state : mDevices.devices()) {
+            devices.add(state.device);
+        }
+        ServerStatus status = new ServerStatus(devices,
+                getSnapshot().timeOffset, mOffsetUpdates.get(),
+                mNotificationsSent.get(),
+                mNotificationsCoalesced.get(),
+                mNotificationsDropped.get());
+
+        if (mPendingStatus.getAndSet(status) == null) {
+            mUiHandler.post(mStatusRunnable);
+        }
+    }
+
+    private Runnable mStatusRunnable = new Runnable() {
+        @Override
+        public void run() {
+            //Notify the user interface listener on the main thread
+            ServerStatus status = mPendingStatus.getAndSet(null);
+            if (status != null) {
+                mStatusListener.onServerStatusChanged(status);
+            }
+        }
+    };
+
+    /** Notifier logic for characteristic changes */
+
+    private void postSubscriptionChange(final BluetoothDevice device,
+                                        final boolean notifyNow) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                DeviceState state = mDevices.get(device);
+                if (state == null
+                        || !state.isSubscribed(DeviceState.SUBSCRIBED_ANY)) {
+                    if (state != null) {
+                        state.batch = null;
+                    }
+                    mScheduler.cancel(device);
+                    scheduleTick();
+                    return;
+                }
+
+                if (state.isSubscribed(DeviceState.SUBSCRIBED_BATCH)) {
+                    if (state.batch == null) {
+                        state.batch = new SampleBatch(MAX_BATCH_SAMPLES);
+                    }
                 } else {
-                    mConnectedDevices.remove(device);
-                    mStatusListener.onDeviceDisconnected(device);
+                    state.batch = null;
                 }
 
-                //Trigger our periodic notification once devices connect
-                mHandler.removeCallbacks(mNotifyRunnable);
-                if (!mConnectedDevices.isEmpty()) {
-                    mHandler.post(mNotifyRunnable);
+                //Deliver the current value now, then on each interval
+                if (notifyNow
+                        && state.isSubscribed(DeviceState.SUBSCRIBED_ELAPSED)) {
+                    notifyDevice(state, getElapsedValue(state));
                 }
+                mScheduler.schedule(device, state.notifyInterval,
+                        SystemClock.uptimeMillis());
+                scheduleTick();
             }
         });
     }
 
-    /** Notifier logic for characteristic changes */
+    /*
+     * Keep the wheel turning only while someone is subscribed
+     */
+    private void scheduleTick() {
+        mHandler.removeCallbacks(mTickRunnable);
+        if (!mScheduler.isEmpty()) {
+            mHandler.postAtTime(mTickRunnable, mScheduler.getNextTickTime());
+        }
+    }
 
-    private Runnable mNotifyRunnable = new Runnable() {
+    private Runnable mTickRunnable = new Runnable() {
         @Override
         public void run() {
-            notifyConnectedDevices();
-            mHandler.postDelayed(this, 2000);
+            mScheduler.advance(SystemClock.uptimeMillis(), mDueListener);
+            scheduleTick();
         }
     };
 
+    private NotificationScheduler.DueListener mDueListener =
+            new NotificationScheduler.DueListener() {
+        @Override
+        public void onNotificationDue(BluetoothDevice device) {
+            DeviceState state = mDevices.get(device);
+            if (state == null) {
+                //Disconnected since it was scheduled
+                mScheduler.cancel(device);
+                return;
+            }
+            if (state.isSubscribed(DeviceState.SUBSCRIBED_ELAPSED)) {
+                notifyDevice(state, getElapsedValue(state));
+            }
+            if (state.batch != null) {
+                addBatchSample(state);
+            }
+        }
+    };
+
+    /*
+     * Only called on the handler thread, which owns the shared
+     * characteristic value.
+     *
+     * Each central gets a small window of notifications in flight.
+     * A central that is not keeping up is skipped, and only the newest
+     * value waits for it, so it cannot hold up everyone else.
+     */
+    private void notifyDevice(DeviceState state, byte[] value) {
+        final long now = SystemClock.uptimeMillis();
+        byte[] payload = null;
+        if (hasWindow(state, now) && !state.keyframeInFlight) {
+            payload = state.encoding == ENCODING_COMPACT
+                    ? encodeCompact(state, readUInt32(value, 0))
+                    : value;
+        }
+
+        if (payload == null) {
+            //Hold the newest value until the central catches up
+            if (state.pendingValue.getAndSet(value) != null) {
+                mNotificationsCoalesced.incrementAndGet();
+            }
+            return;
+        }
+        if (!sendNotification(state, mElapsedCharacteristic, payload, now)) {
+            state.resetCompactBase();
+        }
+    }
+
+    /*
+     * Delta against the acknowledged keyframe when it is small enough,
+     * otherwise a new keyframe. Keyframes only go out on an idle link,
+     * so the next send report tells us the central has it. Returns
+     * null when the keyframe has to wait.
+     */
+    private byte[] encodeCompact(DeviceState state, int elapsed) {
+        if (state.hasCompactBase) {
+            byte[] raw = encodeCompactDelta(state.compactBase, elapsed);
+            if (raw != null) {
+                return raw;
+            }
+        }
+        if (state.inFlight.get() > 0) {
+            return null;
+        }
+
+        byte[] raw = encodeCompactKeyframe(elapsed);
+        state.hasCompactBase = false;
+        state.compactBase = elapsed;
+        state.keyframeInFlight = true;
+        return raw;
+    }
+
+    /*
+     * Buffer the current value for a batch subscriber, and send the
+     * batch once it fills the central's MTU or has waited long enough.
+     * While the window is full, samples keep accumulating instead.
+     */
+    private void addBatchSample(DeviceState state) {
+        final long now = SystemClock.uptimeMillis();
+        SampleBatch batch = state.batch;
+
+        if (batch.getSpan(now) > SampleBatch.MAX_SPAN_MILLIS) {
+            //Too old to encode against; start over from this sample
+            mNotificationsDropped.addAndGet(batch.size());
+            batch.clear();
+        }
+        if (!batch.add(now, readUInt32(getElapsedValue(state), 0))) {
+            mNotificationsCoalesced.incrementAndGet();
+        }
+
+        final int capacity = getNotificationCapacity(state.mtu);
+        final boolean compact = state.encoding == ENCODING_COMPACT;
+        if (!batch.isFull(capacity, compact)
+                && batch.getSpan(now) < MAX_BATCH_AGE_MILLIS) {
+            return;
+        }
+        if (hasWindow(state, now) && !state.keyframeInFlight) {
+            sendNotification(state, mBatchCharacteristic,
+                    batch.drain(capacity, compact), now);
+        }
+    }
+
+    /*
+     * Whether the central has room for another notification. A window
+     * that has stayed full too long is assumed lost and reopened.
+     */
+    private boolean hasWindow(DeviceState state, long now) {
+        if (state.inFlight.get() < MAX_IN_FLIGHT) {
+            return true;
+        }
+        if (now - state.lastSentTime < STALL_TIMEOUT_MILLIS) {
+            return false;
+        }
+        Log.w(TAG, "Notifications to " + state.address + " stalled");
+        state.inFlight.set(0);
+        return true;
+    }
+
+    private boolean sendNotification(DeviceState state,
+                                     BluetoothGattCharacteristic characteristic,
+                                     byte[] value,
+                                     long now) {
+        characteristic.setValue(value);
+        boolean sent = mGattServer.notifyCharacteristicChanged(state.device,
+                characteristic,
+                false);
+        mTrace.record(TraceLog.LEVEL_VERBOSE, TraceLog.EVENT_NOTIFY,
+                state.address, getAttributeIndex(characteristic.getUuid()),
+                sent ? BluetoothGatt.GATT_SUCCESS : BluetoothGatt.GATT_FAILURE);
+        if (sent) {
+            state.lastSentTime = now;
+            state.inFlight.incrementAndGet();
+            state.notificationsSent.incrementAndGet();
+            mNotificationsSent.incrementAndGet();
+            return true;
+        }
+        mNotificationsDropped.incrementAndGet();
+        return false;
+    }
+
+    /*
+     * Push the current value to every subscriber right away,
+     * outside of their regular intervals. Safe from any thread; the
+     * fan-out itself runs on the handler thread.
+     */
     public void notifyConnectedDevices() {
-        BluetoothGattCharacteristic readCharacteristic =
-                mGattServer.getService(UUID_SERVICE_TIMER)
-                        .getCharacteristic(UUID_CHARACTERISTIC_ELAPSED);
-        readCharacteristic.setValue(getStoredValue());
+        mHandler.post(mNotifyAllRunnable);
+    }
+
+    private Runnable mNotifyAllRunnable = new Runnable() {
+        @Override
+        public void run() {
+            notifyAllDevices();
+        }
+    };
+
+    //Handler thread only, like notifyDevice()
+    private void notifyAllDevices() {
+        final long start = SystemClock.elapsedRealtimeNanos();
+        final byte[] value = getStoredValue();
+
+        for (DeviceState state : mDevices.devices()) {
+            if (state.isSubscribed(DeviceState.SUBSCRIBED_ELAPSED)) {
+                notifyDevice(state, mCentralOffsets != null
+                        ? getElapsedValue(state) : value);
+            }
+        }
+        mFanoutDuration.recordNanos(SystemClock.elapsedRealtimeNanos() - start);
+    }
 
-        for (BluetoothDevice device : mConnectedDevices) {
-            mGattServer.notifyCharacteristicChanged(device,
-                    readCharacteristic,
-                    false);
+    /*
+     * Store a new offset, record who changed it and tell every central.
+     * Called from binder threads for writes and from the handler
+     * thread for scheduled changes.
+     */
+    private void applyOffset(int offset, long writer) {
+        synchronized (mOffsetLock) {
+            setStoredValue(offset);
+            mOffsetUpdates.incrementAndGet();
+            int sequence = mHistory.record(System.currentTimeMillis(),
+                    writer, offset);
+            if (mStateStore != null) {
+                //Only queues the values; the disk is written later
+                mStateStore.put(STATE_OFFSET, offset);
+                mStateStore.put(STATE_HISTORY_SEQUENCE, sequence);
+            }
         }
+
+        //Posted, so a write request gets its response out first
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                notifyAllDevices();
+                notifyOffsetChanged();
+                publishStatus();
+            }
+        });
     }
 
+    /*
+     * Sorted entries not yet applied. Replaced on the handler thread,
+     * never modified, so readers can encode it without a lock.
+     */
+    private volatile long[] mSchedule = new long[0];
+
+    /*
+     * Apply the latest entry that has come due, skipping any earlier
+     * ones, then wait for the next
+     */
+    private void runSchedule() {
+        mHandler.removeCallbacks(mScheduleRunnable);
+        final long now = System.currentTimeMillis();
+        long[] schedule = mSchedule;
+        int due = 0;
+        while (due < schedule.length
+                && (schedule[due] >>> 32) * 1000 <= now) {
+            due++;
+        }
+        if (due > 0) {
+            applyOffset((int) schedule[due - 1], 0);
+            schedule = Arrays.copyOfRange(schedule, due, schedule.length);
+            mSchedule = schedule;
+        }
+        if (schedule.length > 0) {
+            mHandler.postDelayed(mScheduleRunnable,
+                    (schedule[0] >>> 32) * 1000 - now);
+        }
+    }
+
+    private Runnable mScheduleRunnable = new Runnable() {
+        @Override
+        public void run() {
+            runSchedule();
+        }
+    };
+
+    /*
+     * Tell clients keeping their own clock that the offset moved.
+     * Offset changes are rare and every one matters, so they are sent
+     * even when the central's window is full.
+     */
+    private void notifyOffsetChanged() {
+        final long now = SystemClock.uptimeMillis();
+        final byte[] value = getSnapshot().offsetValue;
+
+        for (DeviceState state : mDevices.devices()) {
+            if (state.isSubscribed(DeviceState.SUBSCRIBED_OFFSET)) {
+                sendNotification(state, mOffsetCharacteristic,
+                        mCentralOffsets != null
+                                ? getSnapshot(state).offsetValue : value,
+                        now);
+            }
+        }
+    }
+
+    /*
+     * Tell one central that its own offset changed
+     */
+    private void notifyCentralOffset(DeviceState state) {
+        final TimerSnapshot snapshot = getSnapshot(state);
+        if (state.isSubscribed(DeviceState.SUBSCRIBED_ELAPSED)) {
+            notifyDevice(state, snapshot.elapsedValue);
+        }
+        if (state.isSubscribed(DeviceState.SUBSCRIBED_OFFSET)) {
+            sendNotification(state, mOffsetCharacteristic,
+                    snapshot.offsetValue, SystemClock.uptimeMillis());
+        }
+    }
+
+    /*
+     * Drop the offsets of centrals gone longer than the grace period,
+     * then wait for the next one to run out
+     */
+    private Runnable mEvictRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mHandler.removeCallbacks(this);
+            long next = mCentralOffsets.evictExpired(
+                    SystemClock.uptimeMillis());
+            if (next != 0) {
+                mHandler.postAtTime(this, next);
+            }
+        }
+    };
+
+    /** Metrics, recorded without locks or allocation on the hot paths */
+
+    private AtomicLong mReadRequests = new AtomicLong();
+    private AtomicLong mWriteRequests = new AtomicLong();
+    private LatencyHistogram mReadLatency = new LatencyHistogram();
+    private LatencyHistogram mWriteLatency = new LatencyHistogram();
+    private LatencyHistogram mFanoutDuration = new LatencyHistogram();
+
+    public ServerMetrics getMetrics() {
+        final long now = SystemClock.uptimeMillis();
+        ArrayList<ServerMetrics.DeviceRate> rates =
+                new ArrayList<ServerMetrics.DeviceRate>();
+        for (DeviceState state : mDevices.devices()) {
+            long sent = state.notificationsSent.get();
+            long connected = Math.max(1, now - state.connectedTime);
+            rates.add(new ServerMetrics.DeviceRate(state.address, sent,
+                    sent * 1000.0 / connected));
+        }
+
+        return new ServerMetrics(mReadRequests.get(),
+                mWriteRequests.get(),
+                mNotificationsSent.get(),
+                mReadLatency.snapshot(),
+                mWriteLatency.snapshot(),
+                mFanoutDuration.snapshot(),
+                rates);
+    }
+
+    private CharacteristicRegistry.ReadHandler mStatsReader =
+            new CharacteristicRegistry.ReadHandler() {
+        @Override
+        public byte[] onRead(BluetoothDevice device) {
+            byte[] raw = new byte[STATS_SIZE];
+            writeUInt32(raw, 0, (int) mReadRequests.get());
+            writeUInt32(raw, 4, (int) mWriteRequests.get());
+            writeUInt32(raw, 8, (int) mNotificationsSent.get());
+            writeUInt16(raw, 12, (int) Math.min(0xFFFF,
+                    mReadLatency.snapshot().getPercentile(99)));
+            writeUInt16(raw, 14, (int) Math.min(0xFFFF,
+                    mWriteLatency.snapshot().getPercentile(99)));
+            writeUInt32(raw, 16, (int) Math.min(Integer.MAX_VALUE,
+                    mFanoutDuration.snapshot().getPercentile(99)));
+            return raw;
+        }
+    };
+
     /**
-     * Synchronized access to stored value.
-     * LE callbacks come from different threads.
+     * Lock-free access to stored value.
+     * LE callbacks come from different threads; each one reads the
+     * current snapshot, and the first reader in a new second (or a
+     * writer) publishes a replacement.
      */
 
-    private Object mLock = new Object();
-    private int mTimeOffset;
+    private AtomicReference<TimerSnapshot> mSnapshot =
+            new AtomicReference<TimerSnapshot>(
+                    TimerSnapshot.create(0, TimerSnapshot.currentSecond()));
+
+    private TimerSnapshot getSnapshot() {
+        final long now = TimerSnapshot.currentSecond();
+        TimerSnapshot current = mSnapshot.get();
+        while (current.second != now) {
+            TimerSnapshot next = current.advanceTo(now);
+            if (mSnapshot.compareAndSet(current, next)) {
+                return next;
+            }
+            //Lost to another refresh or an offset write; use theirs
+            current = mSnapshot.get();
+            if (current.second > now) break;
+        }
+        return current;
+    }
 
     private byte[] getStoredValue() {
-        synchronized (mLock) {
-            return getShiftedTimeValue(mTimeOffset);
+        return getSnapshot().elapsedValue;
+    }
+
+    /*
+     * Timer state as seen by one central: its own offset in per-central
+     * mode, if it has written one, otherwise the shared state. The
+     * central's encoded values are cached on it and renewed at most
+     * once per second.
+     */
+    private TimerSnapshot getSnapshot(DeviceState state) {
+        final TimerSnapshot shared = getSnapshot();
+        if (mCentralOffsets == null || state == null) return shared;
+
+        final long own = mCentralOffsets.get(state.addressKey);
+        if (own == CentralOffsets.MISSING) return shared;
+
+        TimerSnapshot current = state.snapshot;
+        if (current != null && current.timeOffset == (int) own) {
+            if (current.second == shared.second) return current;
+            current = current.advanceTo(shared.second);
+        } else {
+            current = TimerSnapshot.create((int) own, shared.second);
         }
+        state.snapshot = current;
+        return current;
+    }
+
+    private byte[] getElapsedValue(DeviceState state) {
+        return getSnapshot(state).elapsedValue;
     }
 
     private void setStoredValue(int newOffset) {
-        synchronized (mLock) {
-            mTimeOffset = newOffset;
-        }
+        mSnapshot.set(TimerSnapshot.create(newOffset,
+                TimerSnapshot.currentSecond()));
     }
 }
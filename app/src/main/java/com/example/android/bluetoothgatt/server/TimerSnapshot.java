@@ -0,0 +1,42 @@
+package com.example.android.bluetoothgatt.server;
+
+import static com.example.android.bluetoothgatt.TimerGattProfile.*;
+
+/*
+ * Immutable view of the timer state for one wall-clock second: the
+ * offset together with both values already encoded. Published through
+ * an atomic reference, so readers on any thread share the same arrays
+ * without locking. The arrays must be treated as read-only.
+ */
+public final class TimerSnapshot {
+    final int timeOffset;
+    final long second;
+    final byte[] offsetValue;
+    final byte[] elapsedValue;
+
+    private TimerSnapshot(int timeOffset, long second,
+                          byte[] offsetValue, byte[] elapsedValue) {
+        this.timeOffset = timeOffset;
+        this.second = second;
+        this.offsetValue = offsetValue;
+        this.elapsedValue = elapsedValue;
+    }
+
+    public static TimerSnapshot create(int timeOffset, long second) {
+        return new TimerSnapshot(timeOffset, second,
+                bytesFromInt(timeOffset),
+                bytesFromInt(getShiftedTime(second, timeOffset)));
+    }
+
+    /*
+     * Same offset, elapsed value advanced to a new second
+     */
+    public TimerSnapshot advanceTo(long nowSecond) {
+        return new TimerSnapshot(timeOffset, nowSecond, offsetValue,
+                bytesFromInt(getShiftedTime(nowSecond, timeOffset)));
+    }
+
+    static long currentSecond() {
+        return System.currentTimeMillis() / 1000;
+    }
+}
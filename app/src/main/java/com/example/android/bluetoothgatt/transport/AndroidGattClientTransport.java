@@ -0,0 +1,87 @@
+package com.example.android.bluetoothgatt.transport;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+
+import java.util.List;
+import java.util.UUID;
+
+/*
+ * Client transport backed by a framework BluetoothGatt handle.
+ */
+public class AndroidGattClientTransport implements GattClientTransport {
+
+    private final BluetoothGatt mGatt;
+
+    public AndroidGattClientTransport(BluetoothGatt gatt) {
+        mGatt = gatt;
+    }
+
+    public BluetoothGatt getGatt() {
+        return mGatt;
+    }
+
+    @Override
+    public BluetoothDevice getDevice() {
+        return mGatt.getDevice();
+    }
+
+    @Override
+    public boolean discoverServices() {
+        return mGatt.discoverServices();
+    }
+
+    @Override
+    public List<BluetoothGattService> getServices() {
+        return mGatt.getServices();
+    }
+
+    @Override
+    public BluetoothGattService getService(UUID uuid) {
+        return mGatt.getService(uuid);
+    }
+
+    @Override
+    public boolean readCharacteristic(BluetoothGattCharacteristic characteristic) {
+        return mGatt.readCharacteristic(characteristic);
+    }
+
+    @Override
+    public boolean writeCharacteristic(BluetoothGattCharacteristic characteristic) {
+        return mGatt.writeCharacteristic(characteristic);
+    }
+
+    @Override
+    public boolean writeDescriptor(BluetoothGattDescriptor descriptor) {
+        return mGatt.writeDescriptor(descriptor);
+    }
+
+    @Override
+    public boolean setCharacteristicNotification(
+            BluetoothGattCharacteristic characteristic, boolean enable) {
+        return mGatt.setCharacteristicNotification(characteristic, enable);
+    }
+
+    @Override
+    public boolean requestMtu(int mtu) {
+        return mGatt.requestMtu(mtu);
+    }
+
+    @Override
+    public boolean connect() {
+        return mGatt.connect();
+    }
+
+    @Override
+    public void disconnect() {
+        mGatt.disconnect();
+    }
+
+    @Override
+    public void close() {
+        mGatt.close();
+    }
+}
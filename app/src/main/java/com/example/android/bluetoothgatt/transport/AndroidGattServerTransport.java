@@ -0,0 +1,88 @@
+package com.example.android.bluetoothgatt.transport;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattServer;
+import android.bluetooth.BluetoothGattServerCallback;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothManager;
+import android.content.Context;
+
+import java.nio.ByteBuffer;
+import java.util.UUID;
+
+/*
+ * Server transport backed by the framework BluetoothGattServer.
+ */
+public class AndroidGattServerTransport implements GattServerTransport {
+
+    private final BluetoothGattServer mGattServer;
+
+    public AndroidGattServerTransport(BluetoothGattServer gattServer) {
+        mGattServer = gattServer;
+    }
+
+    /*
+     * Open a framework GATT server delivering requests to the callback
+     */
+    public static AndroidGattServerTransport open(Context context,
+                                 BluetoothGattServerCallback callback) {
+        BluetoothManager manager = (BluetoothManager) context
+                .getSystemService(Context.BLUETOOTH_SERVICE);
+        return new AndroidGattServerTransport(
+                manager.openGattServer(context, callback));
+    }
+
+    @Override
+    public boolean addService(BluetoothGattService service) {
+        return mGattServer.addService(service);
+    }
+
+    @Override
+    public BluetoothGattService getService(UUID uuid) {
+        return mGattServer.getService(uuid);
+    }
+
+    @Override
+    public boolean sendResponse(BluetoothDevice device, int requestId,
+                                int status, int offset, byte[] value) {
+        return mGattServer.sendResponse(device, requestId, status,
+                offset, value);
+    }
+
+    @Override
+    public boolean sendResponse(BluetoothDevice device, int requestId,
+                                int status, int offset, ByteBuffer value) {
+        return mGattServer.sendResponse(device, requestId, status,
+                offset, toArray(value));
+    }
+
+    /*
+     * The framework only takes arrays, so copy just the bytes being
+     * sent, unless the buffer already covers a whole array
+     */
+    static byte[] toArray(ByteBuffer value) {
+        if (value == null) return null;
+
+        if (value.hasArray() && value.arrayOffset() + value.position() == 0
+                && value.remaining() == value.array().length) {
+            return value.array();
+        }
+        byte[] raw = new byte[value.remaining()];
+        value.duplicate().get(raw);
+        return raw;
+    }
+
+    @Override
+    public boolean notifyCharacteristicChanged(BluetoothDevice device,
+                                BluetoothGattCharacteristic characteristic,
+                                boolean confirm) {
+        return mGattServer.notifyCharacteristicChanged(device,
+                characteristic, confirm);
+    }
+
+    @Override
+    public void close() {
+        mGattServer.close();
+    }
+}
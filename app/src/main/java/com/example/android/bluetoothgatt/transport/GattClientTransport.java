@@ -0,0 +1,56 @@
+package com.example.android.bluetoothgatt.transport;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+
+import java.util.List;
+import java.util.UUID;
+
+/*
+ * One client connection to a remote GATT server. Mirrors the subset
+ * of BluetoothGatt used by the client callback.
+ */
+public interface GattClientTransport {
+
+    /*
+     * Events from the connection, matching BluetoothGattCallback
+     * with the transport in place of the BluetoothGatt handle.
+     */
+    interface Callback {
+        void onConnectionStateChange(GattClientTransport transport,
+                                     int status, int newState);
+        void onServicesDiscovered(GattClientTransport transport, int status);
+        void onCharacteristicRead(GattClientTransport transport,
+                                  BluetoothGattCharacteristic characteristic,
+                                  int status);
+        void onCharacteristicWrite(GattClientTransport transport,
+                                   BluetoothGattCharacteristic characteristic,
+                                   int status);
+        void onCharacteristicChanged(GattClientTransport transport,
+                                     BluetoothGattCharacteristic characteristic);
+        void onDescriptorWrite(GattClientTransport transport,
+                               BluetoothGattDescriptor descriptor,
+                               int status);
+        void onMtuChanged(GattClientTransport transport, int mtu, int status);
+    }
+
+    BluetoothDevice getDevice();
+
+    boolean discoverServices();
+    List<BluetoothGattService> getServices();
+    BluetoothGattService getService(UUID uuid);
+
+    boolean readCharacteristic(BluetoothGattCharacteristic characteristic);
+    boolean writeCharacteristic(BluetoothGattCharacteristic characteristic);
+    boolean writeDescriptor(BluetoothGattDescriptor descriptor);
+    boolean setCharacteristicNotification(
+            BluetoothGattCharacteristic characteristic, boolean enable);
+    boolean requestMtu(int mtu);
+
+    //Reconnect a disconnected transport, keeping its services
+    boolean connect();
+    void disconnect();
+    void close();
+}
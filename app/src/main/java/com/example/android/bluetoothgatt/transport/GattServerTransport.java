@@ -0,0 +1,30 @@
+package com.example.android.bluetoothgatt.transport;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattService;
+
+import java.nio.ByteBuffer;
+import java.util.UUID;
+
+/*
+ * Outgoing half of a GATT server. Mirrors the subset of
+ * BluetoothGattServer used by the server callback, so the same
+ * callback can run against the radio or an in-process loopback.
+ * Incoming requests are still delivered to a BluetoothGattServerCallback.
+ */
+public interface GattServerTransport {
+    boolean addService(BluetoothGattService service);
+    BluetoothGattService getService(UUID uuid);
+
+    boolean sendResponse(BluetoothDevice device, int requestId,
+                         int status, int offset, byte[] value);
+    //Sends the remaining bytes of the buffer without moving its position
+    boolean sendResponse(BluetoothDevice device, int requestId,
+                         int status, int offset, ByteBuffer value);
+    boolean notifyCharacteristicChanged(BluetoothDevice device,
+                         BluetoothGattCharacteristic characteristic,
+                         boolean confirm);
+
+    void close();
+}
@@ -0,0 +1,519 @@
+package com.example.android.bluetoothgatt.transport;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * Simulated central connected to a LoopbackGattServer. Discovery
+ * builds private copies of the server's attributes, so each central
+ * holds its own values just like separate BluetoothGatt handles.
+ *
+ * Like the framework, only one operation may be outstanding at a
+ * time; starting another before the callback returns false. A read
+ * answered with a full payload continues with blob reads at later
+ * offsets until a short one arrives, as the stack does. A write too
+ * long for one packet is sent as prepared writes of consecutive parts
+ * and then executed; if the server refuses a part, the rest is
+ * cancelled and the write fails with that status. After a disconnect,
+ * connect() brings the same central back.
+ */
+public class LoopbackCentral implements GattClientTransport {
+
+    private static final int OP_DISCOVER = 1;
+    private static final int OP_READ = 2;
+    private static final int OP_WRITE = 3;
+    private static final int OP_WRITE_DESCRIPTOR = 4;
+    private static final int OP_MTU = 5;
+
+    //Longest value a long read will gather, per the ATT spec
+    private static final int MAX_ATTRIBUTE_LENGTH = 512;
+
+    private final LoopbackGattServer mServer;
+    private final BluetoothDevice mDevice;
+    private final Callback mCallback;
+
+    //Attribute copies seen by this central, mapped to the server's
+    private volatile List<BluetoothGattService> mServices;
+    private final Map<Object, Object> mRemoteAttributes;
+    private final Map<Object, Object> mLocalAttributes;
+    private final Set<BluetoothGattCharacteristic> mNotifying;
+
+    private final Object mLock = new Object();
+    private int mPendingOp;
+    private int mPendingRequestId;
+    private Object mPendingAttribute;
+    //Value gathered so far by a long read
+    private byte[] mReadValue;
+    //Value of a long write, and where its part in flight starts
+    private byte[] mWriteValue;
+    private int mWriteOffset;
+    //Why a long write was cancelled, reported once the cancel is done
+    private int mWriteStatus;
+
+    private volatile boolean mConnected = true;
+    private volatile int mMtu = LoopbackGattServer.DEFAULT_MTU;
+
+    LoopbackCentral(LoopbackGattServer server, BluetoothDevice device,
+                    Callback callback) {
+        mServer = server;
+        mDevice = device;
+        mCallback = callback;
+        mServices = Collections.emptyList();
+        mRemoteAttributes = new ConcurrentHashMap<Object, Object>();
+        mLocalAttributes = new ConcurrentHashMap<Object, Object>();
+        mNotifying = Collections.newSetFromMap(
+                new ConcurrentHashMap<BluetoothGattCharacteristic, Boolean>());
+    }
+
+    public int getMtu() {
+        return mMtu;
+    }
+
+    public boolean isConnected() {
+        return mConnected;
+    }
+
+    /** GattClientTransport */
+
+    @Override
+    public BluetoothDevice getDevice() {
+        return mDevice;
+    }
+
+    @Override
+    public boolean discoverServices() {
+        if (!begin(OP_DISCOVER, 0, null)) return false;
+
+        mServer.deliver(new Runnable() {
+            @Override
+            public void run() {
+                mServices = copyServices(mServer.getServices());
+                complete(OP_DISCOVER);
+                mCallback.onServicesDiscovered(LoopbackCentral.this,
+                        BluetoothGatt.GATT_SUCCESS);
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public List<BluetoothGattService> getServices() {
+        return mServices;
+    }
+
+    @Override
+    public BluetoothGattService getService(UUID uuid) {
+        for (BluetoothGattService service : mServices) {
+            if (service.getUuid().equals(uuid)) {
+                return service;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public boolean readCharacteristic(BluetoothGattCharacteristic characteristic) {
+        final BluetoothGattCharacteristic remote =
+                (BluetoothGattCharacteristic) mRemoteAttributes.get(characteristic);
+        if (remote == null) return false;
+
+        final int requestId = mServer.nextRequestId();
+        if (!begin(OP_READ, requestId, characteristic)) return false;
+
+        mServer.deliver(new Runnable() {
+            @Override
+            public void run() {
+                mServer.getServerCallback().onCharacteristicReadRequest(
+                        mDevice, requestId, 0, remote);
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public boolean writeCharacteristic(
+            final BluetoothGattCharacteristic characteristic) {
+        final BluetoothGattCharacteristic remote =
+                (BluetoothGattCharacteristic) mRemoteAttributes.get(characteristic);
+        if (remote == null || characteristic.getValue() == null) return false;
+
+        final byte[] value = characteristic.getValue().clone();
+        final boolean responseNeeded = characteristic.getWriteType()
+                != BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE;
+        final boolean longWrite = value.length > mMtu - 3;
+        if (longWrite && (!responseNeeded
+                || value.length > MAX_ATTRIBUTE_LENGTH)) {
+            //Commands must fit one packet; nothing is written at all
+            return false;
+        }
+
+        final int requestId = mServer.nextRequestId();
+        if (!begin(OP_WRITE, requestId, characteristic)) return false;
+
+        if (longWrite) {
+            synchronized (mLock) {
+                mWriteValue = value;
+                mWriteOffset = 0;
+                mWriteStatus = BluetoothGatt.GATT_SUCCESS;
+                prepareWrite(remote, requestId);
+            }
+            return true;
+        }
+        mServer.deliver(new Runnable() {
+            @Override
+            public void run() {
+                mServer.getServerCallback().onCharacteristicWriteRequest(
+                        mDevice, requestId, remote, false, responseNeeded,
+                        0, value);
+                if (!responseNeeded) {
+                    //Commands complete as soon as they are sent
+                    onResponse(requestId, BluetoothGatt.GATT_SUCCESS, null);
+                }
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public boolean writeDescriptor(BluetoothGattDescriptor descriptor) {
+        final BluetoothGattDescriptor remote =
+                (BluetoothGattDescriptor) mRemoteAttributes.get(descriptor);
+        if (remote == null || descriptor.getValue() == null
+                || descriptor.getValue().length > mMtu - 3) {
+            //Descriptors are only ever written in one packet here
+            return false;
+        }
+
+        final int requestId = mServer.nextRequestId();
+        if (!begin(OP_WRITE_DESCRIPTOR, requestId, descriptor)) return false;
+
+        final byte[] value = descriptor.getValue().clone();
+        mServer.deliver(new Runnable() {
+            @Override
+            public void run() {
+                mServer.getServerCallback().onDescriptorWriteRequest(
+                        mDevice, requestId, remote, false, true, 0, value);
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public boolean setCharacteristicNotification(
+            BluetoothGattCharacteristic characteristic, boolean enable) {
+        //Local only, as with the framework
+        if (enable) {
+            mNotifying.add(characteristic);
+        } else {
+            mNotifying.remove(characteristic);
+        }
+        return true;
+    }
+
+    @Override
+    public boolean requestMtu(final int mtu) {
+        if (!begin(OP_MTU, 0, null)) return false;
+
+        mServer.deliver(new Runnable() {
+            @Override
+            public void run() {
+                mMtu = mServer.negotiateMtu(mtu);
+                mServer.getServerCallback().onMtuChanged(mDevice, mMtu);
+                complete(OP_MTU);
+                mCallback.onMtuChanged(LoopbackCentral.this, mMtu,
+                        BluetoothGatt.GATT_SUCCESS);
+            }
+        });
+        return true;
+    }
+
+    /*
+     * Reconnect after a disconnect, keeping the services found by the
+     * last discovery as a BluetoothGatt handle does
+     */
+    @Override
+    public boolean connect() {
+        synchronized (mLock) {
+            if (mConnected) return false;
+
+            //Whatever was in flight went down with the old link
+            mPendingOp = 0;
+            mPendingRequestId = 0;
+            mPendingAttribute = null;
+            mReadValue = null;
+            mWriteValue = null;
+            mMtu = LoopbackGattServer.DEFAULT_MTU;
+            mConnected = true;
+        }
+        if (!mServer.reconnect(this)) {
+            mConnected = false;
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public void disconnect() {
+        if (!mConnected) return;
+
+        mConnected = false;
+        mServer.onDisconnected(this);
+    }
+
+    @Override
+    public void close() {
+        disconnect();
+    }
+
+    /** Events arriving from the server side */
+
+    void onConnectionStateChange(int newState) {
+        mCallback.onConnectionStateChange(this, BluetoothGatt.GATT_SUCCESS,
+                newState);
+    }
+
+    boolean onResponse(int requestId, int status, byte[] value) {
+        final int op;
+        final Object attribute;
+        byte[] response = value != null ? copyOf(value, mMtu - 1) : null;
+        synchronized (mLock) {
+            if (mPendingOp == 0 || mPendingRequestId != requestId) {
+                return false;
+            }
+            if (mPendingOp == OP_WRITE && mWriteValue != null) {
+                if (mWriteOffset < mWriteValue.length) {
+                    continueWrite(status, response);
+                    return true;
+                }
+                //The execute is done; a cancelled write reports why
+                if (mWriteStatus != BluetoothGatt.GATT_SUCCESS) {
+                    status = mWriteStatus;
+                }
+                mWriteValue = null;
+            }
+            if (mPendingOp == OP_READ && mReadValue != null
+                    && response != null) {
+                response = concat(mReadValue, response);
+            }
+            if (mPendingOp == OP_READ
+                    && status == BluetoothGatt.GATT_SUCCESS
+                    && value != null && value.length >= mMtu - 1
+                    && response.length < MAX_ATTRIBUTE_LENGTH) {
+                //The value may go on; ask for the rest from where it ended
+                mReadValue = response;
+                readBlob(mPendingAttribute, response.length);
+                return true;
+            }
+            op = mPendingOp;
+            attribute = mPendingAttribute;
+            //The link is free again once the response is on the air
+            mPendingOp = 0;
+            mPendingRequestId = 0;
+            mPendingAttribute = null;
+            mReadValue = null;
+        }
+
+        final int result = status;
+        final byte[] resultValue = response;
+        mServer.deliver(new Runnable() {
+            @Override
+            public void run() {
+                switch (op) {
+                    case OP_READ:
+                        BluetoothGattCharacteristic characteristic =
+                                (BluetoothGattCharacteristic) attribute;
+                        if (result == BluetoothGatt.GATT_SUCCESS) {
+                            characteristic.setValue(resultValue);
+                        }
+                        mCallback.onCharacteristicRead(LoopbackCentral.this,
+                                characteristic, result);
+                        break;
+                    case OP_WRITE:
+                        mCallback.onCharacteristicWrite(LoopbackCentral.this,
+                                (BluetoothGattCharacteristic) attribute, result);
+                        break;
+                    case OP_WRITE_DESCRIPTOR:
+                        mCallback.onDescriptorWrite(LoopbackCentral.this,
+                                (BluetoothGattDescriptor) attribute, result);
+                        break;
+                }
+            }
+        });
+        return true;
+    }
+
+    void onNotification(BluetoothGattCharacteristic remote, byte[] value) {
+        final BluetoothGattCharacteristic characteristic =
+                (BluetoothGattCharacteristic) mLocalAttributes.get(remote);
+        if (characteristic == null || value == null
+                || !mNotifying.contains(characteristic)) {
+            //Nobody listening on this side; the packet is dropped
+            return;
+        }
+
+        final byte[] payload = copyOf(value, mMtu - 3);
+        mServer.deliver(new Runnable() {
+            @Override
+            public void run() {
+                characteristic.setValue(payload);
+                mCallback.onCharacteristicChanged(LoopbackCentral.this,
+                        characteristic);
+            }
+        });
+    }
+
+    /*
+     * Continue the pending read at an offset, under the same operation.
+     * Called with the lock held.
+     */
+    private void readBlob(Object attribute, final int offset) {
+        final BluetoothGattCharacteristic remote =
+                (BluetoothGattCharacteristic) mRemoteAttributes.get(attribute);
+        final int requestId = mServer.nextRequestId();
+        mPendingRequestId = requestId;
+
+        mServer.deliver(new Runnable() {
+            @Override
+            public void run() {
+                mServer.getServerCallback().onCharacteristicReadRequest(
+                        mDevice, requestId, offset, remote);
+            }
+        });
+    }
+
+    /*
+     * Send the part of the long write starting at mWriteOffset, as
+     * large as a prepare request can carry. Called with the lock held.
+     */
+    private void prepareWrite(final BluetoothGattCharacteristic remote,
+                              final int requestId) {
+        final int offset = mWriteOffset;
+        final byte[] part = Arrays.copyOfRange(mWriteValue, offset,
+                Math.min(mWriteValue.length, offset + mMtu - 5));
+        mPendingRequestId = requestId;
+
+        mServer.deliver(new Runnable() {
+            @Override
+            public void run() {
+                mServer.getServerCallback().onCharacteristicWriteRequest(
+                        mDevice, requestId, remote, true, true, offset, part);
+            }
+        });
+    }
+
+    /*
+     * A part was answered: send the next one, execute once all are
+     * queued, or cancel the lot if the server refused or altered the
+     * part. Called with the lock held.
+     */
+    private void continueWrite(int status, byte[] echoed) {
+        final int end = Math.min(mWriteValue.length, mWriteOffset + mMtu - 5);
+        final boolean accepted = status == BluetoothGatt.GATT_SUCCESS
+                && Arrays.equals(echoed,
+                        Arrays.copyOfRange(mWriteValue, mWriteOffset, end));
+        if (accepted && end < mWriteValue.length) {
+            mWriteOffset = end;
+            prepareWrite((BluetoothGattCharacteristic)
+                    mRemoteAttributes.get(mPendingAttribute),
+                    mServer.nextRequestId());
+            return;
+        }
+        if (!accepted) {
+            mWriteStatus = status != BluetoothGatt.GATT_SUCCESS
+                    ? status : BluetoothGatt.GATT_FAILURE;
+        }
+        mWriteOffset = mWriteValue.length;
+
+        final int requestId = mServer.nextRequestId();
+        mPendingRequestId = requestId;
+        mServer.deliver(new Runnable() {
+            @Override
+            public void run() {
+                mServer.getServerCallback().onExecuteWrite(mDevice,
+                        requestId, accepted);
+            }
+        });
+    }
+
+    /** Single outstanding operation bookkeeping */
+
+    private boolean begin(int op, int requestId, Object attribute) {
+        synchronized (mLock) {
+            if (!mConnected || mPendingOp != 0) return false;
+
+            mPendingOp = op;
+            mPendingRequestId = requestId;
+            mPendingAttribute = attribute;
+            mReadValue = null;
+            mWriteValue = null;
+            return true;
+        }
+    }
+
+    private void complete(int op) {
+        synchronized (mLock) {
+            if (mPendingOp == op) {
+                mPendingOp = 0;
+                mPendingRequestId = 0;
+                mPendingAttribute = null;
+            }
+        }
+    }
+
+    private List<BluetoothGattService> copyServices(
+            List<BluetoothGattService> remoteServices) {
+        List<BluetoothGattService> services =
+                new ArrayList<BluetoothGattService>();
+        for (BluetoothGattService remoteService : remoteServices) {
+            BluetoothGattService service = new BluetoothGattService(
+                    remoteService.getUuid(), remoteService.getType());
+
+            for (BluetoothGattCharacteristic remote
+                    : remoteService.getCharacteristics()) {
+                BluetoothGattCharacteristic characteristic =
+                        new BluetoothGattCharacteristic(remote.getUuid(),
+                                remote.getProperties(), remote.getPermissions());
+                for (BluetoothGattDescriptor remoteDescriptor
+                        : remote.getDescriptors()) {
+                    BluetoothGattDescriptor descriptor =
+                            new BluetoothGattDescriptor(
+                                    remoteDescriptor.getUuid(),
+                                    remoteDescriptor.getPermissions());
+                    characteristic.addDescriptor(descriptor);
+                    map(descriptor, remoteDescriptor);
+                }
+                service.addCharacteristic(characteristic);
+                map(characteristic, remote);
+            }
+            services.add(service);
+        }
+        return Collections.unmodifiableList(services);
+    }
+
+    private void map(Object local, Object remote) {
+        mRemoteAttributes.put(local, remote);
+        mLocalAttributes.put(remote, local);
+    }
+
+    private static byte[] copyOf(byte[] value, int maxLength) {
+        return Arrays.copyOf(value, Math.min(value.length, maxLength));
+    }
+
+    private static byte[] concat(byte[] first, byte[] second) {
+        byte[] result = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, result, first.length, second.length);
+        return result;
+    }
+}
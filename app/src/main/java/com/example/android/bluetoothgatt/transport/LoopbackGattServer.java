@@ -0,0 +1,203 @@
+package com.example.android.bluetoothgatt.transport;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattServerCallback;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothProfile;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * In-process GATT server transport. Any number of simulated centrals
+ * connect to it, and every request, response and notification crosses
+ * a simulated link: delivered on the link looper after a fixed latency,
+ * with payloads truncated to the negotiated MTU like the real stack.
+ *
+ * Remote devices are supplied by the caller; on a device these come
+ * from BluetoothAdapter.getRemoteDevice().
+ */
+public class LoopbackGattServer implements GattServerTransport {
+
+    //ATT default and maximum MTU
+    public static final int DEFAULT_MTU = 23;
+    public static final int MAX_MTU = 517;
+
+    private final BluetoothGattServerCallback mServerCallback;
+    private final Handler mLink;
+    private final long mLatencyMillis;
+    private final int mMaxMtu;
+
+    private final List<BluetoothGattService> mServices;
+    private final ConcurrentMap<BluetoothDevice, LoopbackCentral> mCentrals;
+    private final AtomicInteger mNextRequestId;
+
+    public LoopbackGattServer(BluetoothGattServerCallback serverCallback,
+                              Looper linkLooper) {
+        this(serverCallback, linkLooper, 0, MAX_MTU);
+    }
+
+    public LoopbackGattServer(BluetoothGattServerCallback serverCallback,
+                              Looper linkLooper,
+                              long latencyMillis,
+                              int maxMtu) {
+        mServerCallback = serverCallback;
+        mLink = new Handler(linkLooper);
+        mLatencyMillis = latencyMillis;
+        mMaxMtu = Math.max(DEFAULT_MTU, Math.min(MAX_MTU, maxMtu));
+        mServices = new CopyOnWriteArrayList<BluetoothGattService>();
+        mCentrals = new ConcurrentHashMap<BluetoothDevice, LoopbackCentral>();
+        mNextRequestId = new AtomicInteger();
+    }
+
+    /*
+     * Attach a simulated central. Both sides see the connection
+     * once the link delivers it.
+     */
+    public LoopbackCentral connect(BluetoothDevice device,
+                                   GattClientTransport.Callback callback) {
+        LoopbackCentral central = new LoopbackCentral(this, device, callback);
+        mCentrals.put(device, central);
+        deliverConnected(central);
+        return central;
+    }
+
+    public int getConnectedCount() {
+        return mCentrals.size();
+    }
+
+    /** GattServerTransport */
+
+    @Override
+    public boolean addService(BluetoothGattService service) {
+        mServices.add(service);
+        return true;
+    }
+
+    @Override
+    public BluetoothGattService getService(UUID uuid) {
+        for (BluetoothGattService service : mServices) {
+            if (service.getUuid().equals(uuid)) {
+                return service;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public boolean sendResponse(BluetoothDevice device, int requestId,
+                                int status, int offset, byte[] value) {
+        LoopbackCentral central = mCentrals.get(device);
+        return central != null
+                && central.onResponse(requestId, status, value);
+    }
+
+    @Override
+    public boolean sendResponse(BluetoothDevice device, int requestId,
+                                int status, int offset, ByteBuffer value) {
+        return sendResponse(device, requestId, status, offset,
+                AndroidGattServerTransport.toArray(value));
+    }
+
+    @Override
+    public boolean notifyCharacteristicChanged(final BluetoothDevice device,
+                                BluetoothGattCharacteristic characteristic,
+                                boolean confirm) {
+        LoopbackCentral central = mCentrals.get(device);
+        if (central == null) return false;
+
+        //Framework copies the value at call time
+        central.onNotification(characteristic, characteristic.getValue());
+        deliver(new Runnable() {
+            @Override
+            public void run() {
+                mServerCallback.onNotificationSent(device,
+                        BluetoothGatt.GATT_SUCCESS);
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public void close() {
+        for (LoopbackCentral central : mCentrals.values()) {
+            central.disconnect();
+        }
+        mServices.clear();
+    }
+
+    /** Link used by the centrals */
+
+    List<BluetoothGattService> getServices() {
+        return mServices;
+    }
+
+    BluetoothGattServerCallback getServerCallback() {
+        return mServerCallback;
+    }
+
+    int nextRequestId() {
+        return mNextRequestId.incrementAndGet();
+    }
+
+    int negotiateMtu(int requested) {
+        return Math.max(DEFAULT_MTU, Math.min(mMaxMtu, requested));
+    }
+
+    void deliver(Runnable event) {
+        if (mLatencyMillis > 0) {
+            mLink.postDelayed(event, mLatencyMillis);
+        } else {
+            mLink.post(event);
+        }
+    }
+
+    /*
+     * Attach a central again after it disconnected. Returns false
+     * while another central holds the device's link.
+     */
+    boolean reconnect(LoopbackCentral central) {
+        if (mCentrals.putIfAbsent(central.getDevice(), central) != null) {
+            return false;
+        }
+        deliverConnected(central);
+        return true;
+    }
+
+    private void deliverConnected(final LoopbackCentral central) {
+        deliver(new Runnable() {
+            @Override
+            public void run() {
+                mServerCallback.onConnectionStateChange(central.getDevice(),
+                        BluetoothGatt.GATT_SUCCESS,
+                        BluetoothProfile.STATE_CONNECTED);
+                central.onConnectionStateChange(
+                        BluetoothProfile.STATE_CONNECTED);
+            }
+        });
+    }
+
+    void onDisconnected(final LoopbackCentral central) {
+        if (mCentrals.remove(central.getDevice()) == null) return;
+
+        deliver(new Runnable() {
+            @Override
+            public void run() {
+                mServerCallback.onConnectionStateChange(central.getDevice(),
+                        BluetoothGatt.GATT_SUCCESS,
+                        BluetoothProfile.STATE_DISCONNECTED);
+                central.onConnectionStateChange(
+                        BluetoothProfile.STATE_DISCONNECTED);
+            }
+        });
+    }
+}
@@ -0,0 +1,100 @@
+package com.example.android.bluetoothgatt;
+
+import org.junit.Test;
+
+import static com.example.android.bluetoothgatt.TimerGattProfile.*;
+import static org.junit.Assert.*;
+
+public class TimerGattProfileTest {
+    //Largest changes a delta may carry either way
+    private static final int MAX_UP = COMPACT_MAX_DELTA / 2;
+    private static final int MAX_DOWN = -(COMPACT_MAX_DELTA / 2) - 1;
+
+    @Test
+    public void keyframeRoundTrip() {
+        int[] values = {0, 1, 86400, Integer.MAX_VALUE, 0xFFFFFFF0};
+        for (int value : values) {
+            byte[] raw = encodeCompactKeyframe(value);
+            assertEquals(COMPACT_KEYFRAME_SIZE, raw.length);
+            assertTrue(isCompactKeyframe(raw));
+            assertFalse(isCompactDelta(raw));
+            assertEquals(value, decodeCompactKeyframe(raw));
+        }
+    }
+
+    @Test
+    public void deltaRoundTripBothWays() {
+        final int base = 100000;
+        for (int change = MAX_DOWN; change <= MAX_UP; change++) {
+            byte[] raw = encodeCompactDelta(base, base + change);
+            assertNotNull("No delta for " + change, raw);
+            assertTrue(isCompactDelta(raw));
+            assertEquals(base + change, decodeCompactDelta(raw, base));
+        }
+    }
+
+    @Test
+    public void negativeDeltasStaySmall() {
+        //Zigzag keeps small steps back as short as small steps forward
+        assertEquals(2, encodeCompactDelta(1000, 999).length);
+        assertEquals(2, encodeCompactDelta(1000, 1000 - 64).length);
+        assertEquals(3, encodeCompactDelta(1000, 1000 - 65).length);
+        assertEquals(1000 - 65,
+                decodeCompactDelta(encodeCompactDelta(1000, 1000 - 65), 1000));
+    }
+
+    @Test
+    public void deltaAgainstABaseBelowTheChange() {
+        //An offset moved back past zero wraps like the u32 value does
+        byte[] raw = encodeCompactDelta(5, -10);
+        assertNotNull(raw);
+        assertEquals(-10, decodeCompactDelta(raw, 5));
+    }
+
+    @Test
+    public void changesTooLargeNeedAKeyframe() {
+        assertNull(encodeCompactDelta(0, MAX_UP + 1));
+        assertNull(encodeCompactDelta(0, MAX_DOWN - 1));
+        assertNull(encodeCompactDelta(0, Integer.MIN_VALUE));
+    }
+
+    @Test
+    public void encodingsAreToldApartByLength() {
+        //Full values are 4 bytes, which neither compact form ever is
+        for (int change = MAX_DOWN; change <= MAX_UP; change++) {
+            int length = encodeCompactDelta(0, change).length;
+            assertTrue("Delta of " + length + " bytes",
+                    length == 2 || length == 3);
+        }
+        assertFalse(isCompactKeyframe(new byte[4]));
+        assertFalse(isCompactDelta(new byte[] {(byte) COMPACT_DELTA}));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void keyframeIsNotDecodedAsADelta() {
+        decodeCompactDelta(encodeCompactKeyframe(42), 0);
+    }
+
+    @Test
+    public void varIntRoundTripAtByteBoundaries() {
+        int[] values = {0, 0x7F, 0x80, 0x3FFF, 0x4000, Integer.MAX_VALUE, -1};
+        byte[] raw = new byte[5];
+        for (int value : values) {
+            int end = writeVarInt(raw, 0, value);
+            assertEquals(varIntSize(value), end);
+            assertEquals(value, readVarInt(raw, 0));
+        }
+        assertEquals(Integer.MIN_VALUE, unzigzag(zigzag(Integer.MIN_VALUE)));
+        assertEquals(1, zigzag(-1));
+    }
+
+    @Test
+    public void packAddressRejectsMalformedAddresses() {
+        assertEquals(0xAABBCCDDEEFFL, packAddress("AA:BB:CC:DD:EE:FF"));
+        assertEquals(0x0123456789ABL, packAddress("01:23:45:67:89:ab"));
+        assertEquals(0, packAddress(null));
+        assertEquals(0, packAddress("AA:BB:CC:DD:EE"));
+        assertEquals(0, packAddress("AA:BB:CC:DD:EE:FF:00"));
+        assertEquals(0, packAddress("AA-BB-CC-DD-EE-FF"));
+    }
+}
@@ -0,0 +1,121 @@
+package com.example.android.bluetoothgatt.client;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ClockSyncTest {
+    private static final long MILLI = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+    private static final long MAX_ERROR = 50 * MILLI;
+    //Local clock when the first round is taken
+    private static final long START = 1000 * SECOND;
+    //Server clock minus local clock at START
+    private static final long OFFSET = 5 * SECOND;
+
+    private ClockSync mSync;
+
+    @Before
+    public void setUp() {
+        mSync = new ClockSync(MAX_ERROR);
+    }
+
+    @Test
+    public void keepsTheShortestRoundTrip() {
+        long[] delays = {40, 30, 4, 50, 20, 10, 60, 8};
+        assertEquals(ClockSync.ROUND_SAMPLES, delays.length);
+        final int best = 2;
+
+        mSync.startRound();
+        for (int i = 0; i < delays.length; i++) {
+            long send = START + i * 100 * MILLI;
+            long receive = send + delays[i] * MILLI;
+            //Only the fastest read was answered at its midpoint; the
+            //others waited on the server, which read its clock late
+            long read = i == best ? send + delays[i] * MILLI / 2 : receive;
+            assertEquals(i == delays.length - 1,
+                    mSync.addSample(send, receive, (read + OFFSET) / MILLI));
+        }
+        assertFalse(mSync.isSynced());
+        mSync.finishRound();
+        assertTrue(mSync.isSynced());
+
+        long midpoint = START + 200 * MILLI + 2 * MILLI;
+        assertEquals((midpoint + OFFSET) / MILLI,
+                mSync.getServerTimeMillis(midpoint));
+        //Half the round trip plus the server's resolution
+        assertEquals(3 * MILLI, mSync.getErrorBoundNanos(midpoint));
+    }
+
+    @Test
+    public void measuresDriftBetweenDistantRounds() {
+        //Server runs fast by 10 ppm: 2 ms over 200 s
+        final long baseline = 200 * SECOND;
+        assertTrue(baseline >= ClockSync.MIN_DRIFT_BASELINE_NANOS);
+        syncRound(START, 2 * MILLI, OFFSET);
+        syncRound(START + baseline, 2 * MILLI, OFFSET + 2 * MILLI);
+
+        //Half a millisecond in, so rounding cannot hide the drift
+        long later = START + baseline + 100 * SECOND + MILLI / 2;
+        assertEquals((later + OFFSET + 3 * MILLI) / MILLI,
+                mSync.getServerTimeMillis(later));
+        //Each round is off by 2 ms, so the drift by 4 ms over 200 s
+        assertEquals(2 * MILLI + 2 * MILLI,
+                mSync.getErrorBoundNanos(later), 1000);
+    }
+
+    @Test
+    public void ignoresDriftWorseThanAssumingNone() {
+        //Slow reads over the shortest baseline: 22 ms over a minute
+        final long baseline = ClockSync.MIN_DRIFT_BASELINE_NANOS;
+        syncRound(START, 20 * MILLI, OFFSET);
+        syncRound(START + baseline, 20 * MILLI, OFFSET + 10 * MILLI);
+
+        long later = START + baseline + 10 * SECOND + MILLI / 2;
+        assertEquals((later + OFFSET + 10 * MILLI) / MILLI,
+                mSync.getServerTimeMillis(later));
+        assertEquals(11 * MILLI + (long) (ClockSync.UNKNOWN_DRIFT * 10 * SECOND),
+                mSync.getErrorBoundNanos(later), 1000);
+    }
+
+    @Test
+    public void resyncsOnceTheErrorBoundReachesTheLimit() {
+        assertEquals(0, mSync.getNanosUntilResync(START));
+
+        syncRound(START, 4 * MILLI, OFFSET);
+        //The 47 ms left grow at the assumed drift
+        long expected = (long) ((MAX_ERROR - 3 * MILLI) / ClockSync.UNKNOWN_DRIFT);
+        assertEquals(expected, mSync.getNanosUntilResync(START), 1000);
+        assertEquals(MAX_ERROR,
+                mSync.getErrorBoundNanos(START + expected), 1000);
+    }
+
+    @Test
+    public void resyncsNoSoonerThanTheFloor() {
+        //The round alone is already worse than the limit
+        mSync = new ClockSync(2 * MILLI);
+        syncRound(START, 4 * MILLI, OFFSET);
+        assertEquals(ClockSync.MIN_RESYNC_NANOS,
+                mSync.getNanosUntilResync(START));
+        assertEquals(ClockSync.MIN_RESYNC_NANOS,
+                mSync.getNanosUntilResync(START + SECOND));
+    }
+
+    /*
+     * A full round of equally fast reads around a local midpoint, each
+     * answered by a server whose clock is ahead by the given offset
+     */
+    private void syncRound(long midpoint, long delay, long offset) {
+        mSync.startRound();
+        boolean done = false;
+        for (int i = 0; i < ClockSync.ROUND_SAMPLES; i++) {
+            done = mSync.addSample(midpoint - delay / 2, midpoint + delay / 2,
+                    (midpoint + offset) / MILLI);
+        }
+        assertTrue(done);
+        mSync.finishRound();
+    }
+}
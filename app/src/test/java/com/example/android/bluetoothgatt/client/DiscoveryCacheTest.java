@@ -0,0 +1,218 @@
+package com.example.android.bluetoothgatt.client;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.os.HandlerThread;
+
+import com.example.android.bluetoothgatt.server.ServerStatus;
+import com.example.android.bluetoothgatt.server.TimeServerCallback;
+import com.example.android.bluetoothgatt.transport.GattClientTransport;
+import com.example.android.bluetoothgatt.transport.LoopbackCentral;
+import com.example.android.bluetoothgatt.transport.LoopbackGattServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static com.example.android.bluetoothgatt.TimerGattProfile.*;
+import static org.junit.Assert.*;
+
+public class DiscoveryCacheTest {
+    private static final long TIMEOUT_SECONDS = 5;
+
+    private final BluetoothDevice mDevice = new BluetoothDevice("02:00:00:00:00:01");
+
+    private HandlerThread mLinkThread;
+    private HandlerThread mClientThread;
+    private TimeServerCallback mServerCallback;
+    private LoopbackGattServer mServer;
+    private DiscoveryCache mCache;
+    private TimeClientCallback mClient;
+    private BlockingQueue<Integer> mStates;
+
+    @Before
+    public void setUp() {
+        mLinkThread = new HandlerThread("LoopbackLink");
+        mLinkThread.start();
+        mClientThread = new HandlerThread("LoopbackClient");
+        mClientThread.start();
+
+        mServerCallback = new TimeServerCallback(
+                new TimeServerCallback.ServerStatusListener() {
+                    @Override
+                    public void onServerStatusChanged(ServerStatus status) {
+                    }
+                });
+        mServer = new LoopbackGattServer(mServerCallback,
+                mLinkThread.getLooper());
+        mServerCallback.initServer(mServer);
+
+        mStates = new LinkedBlockingQueue<Integer>();
+        mClient = new TimeClientCallback(
+                new TimeClientCallback.ClientStatusListener() {
+                    @Override
+                    public void onClientStatusChanged(ClientStatus status) {
+                    }
+                },
+                mClientThread.getLooper());
+        mCache = new DiscoveryCache();
+        mClient.setDiscoveryCache(mCache);
+        mClient.setConnectionListener(
+                new TimeClientCallback.ConnectionListener() {
+                    @Override
+                    public void onConnectionStateChanged(
+                            TimeClientCallback callback, int state, int status) {
+                        mStates.add(state);
+                    }
+                });
+    }
+
+    @After
+    public void tearDown() {
+        mClient.shutdown();
+        mServerCallback.shutdownServer();
+        mServer.close();
+        mLinkThread.quit();
+        mClientThread.quit();
+    }
+
+    @Test
+    public void managedReconnectSkipsDiscovery() throws InterruptedException {
+        final AtomicInteger handles = new AtomicInteger();
+        final AtomicReference<LoopbackCentral> central =
+                new AtomicReference<LoopbackCentral>();
+        ConnectionManager manager = new ConnectionManager(
+                new ReconnectEngine.Connector() {
+                    @Override
+                    public GattClientTransport connect(BluetoothDevice device,
+                            boolean autoConnect, TimeClientCallback callback) {
+                        handles.incrementAndGet();
+                        central.set(mServer.connect(device, callback));
+                        return central.get();
+                    }
+                },
+                new ConnectionManager.DeviceStatusListener() {
+                    @Override
+                    public void onDeviceStatusChanged(BluetoothDevice device,
+                                                      ClientStatus status) {
+                    }
+                }, 1);
+        try {
+            TimeClientCallback client = manager.connect(mDevice);
+            //The version is read ahead of the subscription
+            awaitConnectionState(client, TimeClientCallback.STATE_STREAMING);
+            ConnectionTimings timings = manager.getConnectionTimings();
+            assertEquals(0, timings.getCachedSetups());
+
+            //The link drops and the manager's engine brings it back
+            central.get().disconnect();
+            long deadline = System.nanoTime()
+                    + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+            while (timings.getCachedSetups() == 0) {
+                assertTrue("Discovered again on reconnect",
+                        System.nanoTime() < deadline);
+                Thread.sleep(10);
+            }
+            awaitConnectionState(client, TimeClientCallback.STATE_STREAMING);
+            assertEquals(1, handles.get());
+        } finally {
+            manager.shutdown();
+        }
+    }
+
+    @Test
+    public void newHandleDiscoversAgain() throws InterruptedException {
+        LoopbackCentral central = mServer.connect(mDevice, mClient);
+        awaitState(TimeClientCallback.STATE_READY);
+
+        central.disconnect();
+        awaitState(TimeClientCallback.STATE_DISCONNECTED);
+        mStates.clear();
+
+        //A fresh handle knows no services, so there is nothing to trust
+        mServer.connect(mDevice, mClient);
+        assertEquals(TimeClientCallback.STATE_DISCOVERING, nextState());
+        assertEquals(TimeClientCallback.STATE_READY, nextState());
+    }
+
+    @Test
+    public void changedVersionDiscoversAgain() throws InterruptedException {
+        LoopbackCentral central = mServer.connect(mDevice, mClient);
+        awaitState(TimeClientCallback.STATE_STREAMING);
+
+        central.disconnect();
+        awaitState(TimeClientCallback.STATE_DISCONNECTED);
+        mStates.clear();
+
+        //As if the server had another layout when last discovered
+        mCache.put(mDevice.getAddress(), 0);
+        assertTrue(central.connect());
+        assertEquals(TimeClientCallback.STATE_DISCOVERING, nextState());
+        assertEquals(TimeClientCallback.STATE_READY, nextState());
+    }
+
+    @Test
+    public void serviceChangedDiscoversAgain() throws InterruptedException {
+        BluetoothGattCharacteristic changed = addServiceChanged();
+        mServer.connect(mDevice, mClient);
+        awaitState(TimeClientCallback.STATE_STREAMING);
+        assertTrue(mCache.contains(mDevice.getAddress()));
+        mStates.clear();
+
+        //Handles 0x0001 to 0xFFFF
+        changed.setValue(new byte[] {0x01, 0x00, (byte) 0xFF, (byte) 0xFF});
+        assertTrue(mServer.notifyCharacteristicChanged(mDevice, changed, true));
+        assertEquals(TimeClientCallback.STATE_DISCOVERING, nextState());
+        assertEquals(TimeClientCallback.STATE_READY, nextState());
+    }
+
+    /*
+     * The framework serves this itself on a device, so only the
+     * loopback server needs it added
+     */
+    private BluetoothGattCharacteristic addServiceChanged() {
+        BluetoothGattService service = new BluetoothGattService(
+                UUID_SERVICE_GENERIC_ATTRIBUTE,
+                BluetoothGattService.SERVICE_TYPE_PRIMARY);
+        BluetoothGattCharacteristic changed = new BluetoothGattCharacteristic(
+                UUID_CHARACTERISTIC_SERVICE_CHANGED,
+                BluetoothGattCharacteristic.PROPERTY_INDICATE, 0);
+        changed.addDescriptor(new BluetoothGattDescriptor(
+                UUID_DESCRIPTOR_CLIENT_CONFIG, PERMISSIONS_CLIENT_CONFIG));
+        service.addCharacteristic(changed);
+        mServer.addService(service);
+        return changed;
+    }
+
+    private static void awaitConnectionState(TimeClientCallback client,
+                                             int expected)
+            throws InterruptedException {
+        long deadline = System.nanoTime()
+                + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+        while (client.getConnectionState() != expected) {
+            assertTrue("Never reached state " + expected,
+                    System.nanoTime() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private int nextState() throws InterruptedException {
+        Integer state = mStates.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertNotNull("No connection state change", state);
+        return state;
+    }
+
+    private void awaitState(int expected) throws InterruptedException {
+        while (nextState() != expected) {
+            //Skip the states on the way there
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package com.example.android.bluetoothgatt.client;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.os.Handler;
+import android.os.HandlerThread;
+
+import com.example.android.bluetoothgatt.metrics.LatencyHistogram;
+import com.example.android.bluetoothgatt.transport.GattClientTransport;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class GattOperationQueueTest {
+    private static final long TIMEOUT_MILLIS = 50;
+    //For tests that complete operations themselves
+    private static final long NO_TIMEOUT_MILLIS = 60000;
+    private static final long WAIT_SECONDS = 5;
+
+    private final BluetoothGattCharacteristic mFirst = characteristic();
+    private final BluetoothGattCharacteristic mSecond = characteristic();
+
+    private HandlerThread mThread;
+    private RecordingTransport mTransport;
+    private BlockingQueue<String> mFailures;
+    private GattOperationQueue mQueue;
+
+    @Before
+    public void setUp() {
+        mThread = new HandlerThread("GattOperationQueueTest");
+        mThread.start();
+        mTransport = new RecordingTransport();
+        mFailures = new LinkedBlockingQueue<String>();
+        mQueue = createQueue(TIMEOUT_MILLIS);
+    }
+
+    @After
+    public void tearDown() {
+        mQueue.clear();
+        mThread.quit();
+    }
+
+    @Test
+    public void timedOutReadIsFailedToTheCaller() throws InterruptedException {
+        mQueue.read(mFirst);
+
+        assertEquals("read " + mFirst.getUuid(),
+                mFailures.poll(WAIT_SECONDS, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void timedOutWriteIsFailedAndTheNextOneStarts()
+            throws InterruptedException {
+        mQueue.write(mFirst, new byte[] {1});
+        mQueue.read(mSecond);
+
+        assertEquals("write " + mFirst.getUuid(),
+                mFailures.poll(WAIT_SECONDS, TimeUnit.SECONDS));
+        assertEquals("read " + mSecond.getUuid(), mTransport.last());
+    }
+
+    @Test
+    public void failureDoesNotCompleteTheNextReadOfTheSameTarget()
+            throws InterruptedException {
+        mQueue.read(mFirst);
+        //Queued behind the one in flight, not merged into it
+        mQueue.read(mFirst);
+        assertEquals(2, mQueue.size());
+
+        assertNotNull(mFailures.poll(WAIT_SECONDS, TimeUnit.SECONDS));
+        //Had the report completed it, the second read would never time out
+        assertNotNull("Second read completed by the first one's failure",
+                mFailures.poll(WAIT_SECONDS, TimeUnit.SECONDS));
+        assertEquals(2, mTransport.started());
+    }
+
+    @Test
+    public void writesMergeOnlyWithTheLastQueuedOperation() {
+        mQueue = createQueue(NO_TIMEOUT_MILLIS);
+        //Holds the link while the rest queue up
+        mQueue.read(mSecond);
+        mQueue.write(mFirst, new byte[] {1});
+        mQueue.write(mSecond, new byte[] {2});
+        mQueue.write(mFirst, new byte[] {3});
+        mQueue.write(mFirst, new byte[] {4});
+        assertEquals(4, mQueue.size());
+
+        mQueue.onCharacteristicRead(mSecond, BluetoothGatt.GATT_SUCCESS);
+        assertEquals("write " + mFirst.getUuid() + " 1", mTransport.last());
+        mQueue.onCharacteristicWrite(mFirst, BluetoothGatt.GATT_SUCCESS);
+        assertEquals("write " + mSecond.getUuid() + " 2", mTransport.last());
+        mQueue.onCharacteristicWrite(mSecond, BluetoothGatt.GATT_SUCCESS);
+        assertEquals("write " + mFirst.getUuid() + " 4", mTransport.last());
+    }
+
+    @Test
+    public void repeatedReadAtTheTailIsDropped() {
+        mQueue = createQueue(NO_TIMEOUT_MILLIS);
+        mQueue.write(mSecond, new byte[] {1});
+        mQueue.read(mFirst);
+        mQueue.read(mFirst);
+        assertEquals(2, mQueue.size());
+    }
+
+    private GattOperationQueue createQueue(long timeoutMillis) {
+        return new GattOperationQueue(mTransport, new FailureCallback(),
+                new Handler(mThread.getLooper()), timeoutMillis,
+                new LatencyHistogram());
+    }
+
+    private static BluetoothGattCharacteristic characteristic() {
+        return new BluetoothGattCharacteristic(UUID.randomUUID(),
+                BluetoothGattCharacteristic.PROPERTY_READ
+                        | BluetoothGattCharacteristic.PROPERTY_WRITE,
+                BluetoothGattCharacteristic.PERMISSION_READ
+                        | BluetoothGattCharacteristic.PERMISSION_WRITE);
+    }
+
+    /*
+     * Passes results back to the queue, as the client callback does,
+     * and records every failure
+     */
+    private class FailureCallback implements GattClientTransport.Callback {
+        @Override
+        public void onConnectionStateChange(GattClientTransport transport,
+                                            int status, int newState) {
+        }
+
+        @Override
+        public void onServicesDiscovered(GattClientTransport transport,
+                                         int status) {
+        }
+
+        @Override
+        public void onCharacteristicRead(GattClientTransport transport,
+                                BluetoothGattCharacteristic characteristic,
+                                int status) {
+            mQueue.onCharacteristicRead(characteristic, status);
+            if (status != BluetoothGatt.GATT_SUCCESS) {
+                mFailures.add("read " + characteristic.getUuid());
+            }
+        }
+
+        @Override
+        public void onCharacteristicWrite(GattClientTransport transport,
+                                BluetoothGattCharacteristic characteristic,
+                                int status) {
+            mQueue.onCharacteristicWrite(characteristic, status);
+            if (status != BluetoothGatt.GATT_SUCCESS) {
+                mFailures.add("write " + characteristic.getUuid());
+            }
+        }
+
+        @Override
+        public void onCharacteristicChanged(GattClientTransport transport,
+                                BluetoothGattCharacteristic characteristic) {
+        }
+
+        @Override
+        public void onDescriptorWrite(GattClientTransport transport,
+                                      BluetoothGattDescriptor descriptor,
+                                      int status) {
+            mQueue.onDescriptorWrite(descriptor, status);
+        }
+
+        @Override
+        public void onMtuChanged(GattClientTransport transport,
+                                 int mtu, int status) {
+            mQueue.onMtuChanged(status);
+        }
+    }
+}
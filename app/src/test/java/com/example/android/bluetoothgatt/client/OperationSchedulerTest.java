@@ -0,0 +1,135 @@
+package com.example.android.bluetoothgatt.client;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.os.Handler;
+import android.os.HandlerThread;
+
+import com.example.android.bluetoothgatt.metrics.LatencyHistogram;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class OperationSchedulerTest {
+    //Operations are completed by the tests, never by a timeout
+    private static final long NO_TIMEOUT_MILLIS = 60000;
+    private static final long WAIT_MILLIS = 5000;
+
+    private final BluetoothGattCharacteristic mCharacteristic =
+            new BluetoothGattCharacteristic(UUID.randomUUID(),
+                    BluetoothGattCharacteristic.PROPERTY_READ,
+                    BluetoothGattCharacteristic.PERMISSION_READ);
+
+    private OperationScheduler mScheduler;
+    private HandlerThread mHolderThread;
+    private HandlerThread mWaiterThread;
+    private RecordingTransport mHolderTransport;
+    private GattOperationQueue mHolder;
+
+    @Before
+    public void setUp() {
+        mScheduler = new OperationScheduler(1);
+        mHolderThread = startThread("Holder");
+        mWaiterThread = startThread("Waiter");
+        mHolderTransport = new RecordingTransport();
+        mHolder = createQueue(mHolderTransport, mHolderThread);
+
+        //Takes the only slot
+        mHolder.read(mCharacteristic);
+        assertEquals(1, mHolderTransport.started());
+    }
+
+    @After
+    public void tearDown() {
+        mHolder.clear();
+        mHolderThread.quit();
+        mWaiterThread.quit();
+    }
+
+    @Test
+    public void slotSkipsAQueueWhoseLooperQuit() throws InterruptedException {
+        HandlerThread closedThread = startThread("Closed");
+        RecordingTransport closedTransport = new RecordingTransport();
+        GattOperationQueue closed = createQueue(closedTransport, closedThread);
+        closed.read(mCharacteristic);
+        RecordingTransport waiterTransport = new RecordingTransport();
+        GattOperationQueue waiter = createQueue(waiterTransport, mWaiterThread);
+        waiter.read(mCharacteristic);
+        assertEquals(2, mScheduler.getWaitingCount());
+
+        //Its client shut down without the queue ever being cleared
+        closedThread.quit();
+        mHolder.onCharacteristicRead(mCharacteristic,
+                BluetoothGatt.GATT_SUCCESS);
+
+        awaitStarted(waiterTransport, 1);
+        assertEquals(0, closedTransport.started());
+        assertEquals(0, mScheduler.getWaitingCount());
+        waiter.clear();
+    }
+
+    @Test
+    public void clearingAQueueWithASlotOnItsWayPassesItOn()
+            throws InterruptedException {
+        //Keeps the slot from reaching the waiter until it is cleared
+        final CountDownLatch blocked = new CountDownLatch(1);
+        new Handler(mWaiterThread.getLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    blocked.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        RecordingTransport waiterTransport = new RecordingTransport();
+        GattOperationQueue waiter = createQueue(waiterTransport, mWaiterThread);
+        waiter.read(mCharacteristic);
+        mHolder.onCharacteristicRead(mCharacteristic,
+                BluetoothGatt.GATT_SUCCESS);
+        waiter.clear();
+
+        //The slot is free again for whoever asks next
+        mHolder.read(mCharacteristic);
+        assertEquals(2, mHolderTransport.started());
+
+        blocked.countDown();
+        waiter.read(mCharacteristic);
+        mHolder.onCharacteristicRead(mCharacteristic,
+                BluetoothGatt.GATT_SUCCESS);
+        awaitStarted(waiterTransport, 1);
+        waiter.clear();
+    }
+
+    //Nothing here fails, so the queues need no callback
+    private GattOperationQueue createQueue(RecordingTransport transport,
+                                           HandlerThread thread) {
+        return new GattOperationQueue(transport, null,
+                new Handler(thread.getLooper()), NO_TIMEOUT_MILLIS,
+                new LatencyHistogram(), mScheduler);
+    }
+
+    private static HandlerThread startThread(String name) {
+        HandlerThread thread = new HandlerThread(name);
+        thread.start();
+        return thread;
+    }
+
+    private static void awaitStarted(RecordingTransport transport, int count)
+            throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+        while (transport.started() < count) {
+            assertTrue("Operation never started",
+                    System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+}
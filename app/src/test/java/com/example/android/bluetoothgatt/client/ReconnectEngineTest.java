@@ -0,0 +1,127 @@
+package com.example.android.bluetoothgatt.client;
+
+import android.bluetooth.BluetoothDevice;
+import android.os.HandlerThread;
+
+import com.example.android.bluetoothgatt.server.ServerStatus;
+import com.example.android.bluetoothgatt.server.TimeServerCallback;
+import com.example.android.bluetoothgatt.transport.GattClientTransport;
+import com.example.android.bluetoothgatt.transport.LoopbackCentral;
+import com.example.android.bluetoothgatt.transport.LoopbackGattServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class ReconnectEngineTest {
+    private static final long TIMEOUT_SECONDS = 5;
+
+    private final BluetoothDevice mDevice = new BluetoothDevice("02:00:00:00:00:02");
+
+    private HandlerThread mLinkThread;
+    private HandlerThread mClientThread;
+    private TimeServerCallback mServerCallback;
+    private LoopbackGattServer mServer;
+    private ConnectionTimings mTimings;
+    private ReconnectEngine mEngine;
+    private BlockingQueue<Integer> mStates;
+    //Handles opened by the engine, and the latest of them
+    private final AtomicInteger mHandles = new AtomicInteger();
+    private volatile LoopbackCentral mCentral;
+
+    @Before
+    public void setUp() {
+        mLinkThread = new HandlerThread("LoopbackLink");
+        mLinkThread.start();
+        mClientThread = new HandlerThread("LoopbackClient");
+        mClientThread.start();
+
+        mServerCallback = new TimeServerCallback(
+                new TimeServerCallback.ServerStatusListener() {
+                    @Override
+                    public void onServerStatusChanged(ServerStatus status) {
+                    }
+                });
+        mServer = new LoopbackGattServer(mServerCallback,
+                mLinkThread.getLooper());
+        mServerCallback.initServer(mServer);
+
+        TimeClientCallback client = new TimeClientCallback(
+                new TimeClientCallback.ClientStatusListener() {
+                    @Override
+                    public void onClientStatusChanged(ClientStatus status) {
+                    }
+                },
+                mClientThread.getLooper());
+        client.setDiscoveryCache(new DiscoveryCache());
+        mTimings = new ConnectionTimings();
+        mEngine = new ReconnectEngine(new ReconnectEngine.Connector() {
+                    @Override
+                    public GattClientTransport connect(BluetoothDevice device,
+                            boolean autoConnect, TimeClientCallback callback) {
+                        mHandles.incrementAndGet();
+                        mCentral = mServer.connect(device, callback);
+                        return mCentral;
+                    }
+                }, mDevice, client, mClientThread.getLooper(),
+                mTimings, new Random(1));
+
+        //Watch the states on their way to the engine
+        mStates = new LinkedBlockingQueue<Integer>();
+        client.setConnectionListener(
+                new TimeClientCallback.ConnectionListener() {
+                    @Override
+                    public void onConnectionStateChanged(
+                            TimeClientCallback callback, int state, int status) {
+                        mEngine.onConnectionStateChanged(callback, state,
+                                status);
+                        mStates.add(state);
+                    }
+                });
+    }
+
+    @After
+    public void tearDown() {
+        mEngine.stop();
+        mServerCallback.shutdownServer();
+        mServer.close();
+        mLinkThread.quit();
+        mClientThread.quit();
+    }
+
+    @Test
+    public void reconnectAfterDropSkipsDiscovery() throws InterruptedException {
+        mEngine.start();
+        assertEquals(TimeClientCallback.STATE_DISCOVERING, nextState());
+        awaitState(TimeClientCallback.STATE_STREAMING);
+
+        //The link drops; the engine brings it back by itself
+        mCentral.disconnect();
+        awaitState(TimeClientCallback.STATE_DISCONNECTED);
+        assertEquals("Discovered again on reconnect",
+                TimeClientCallback.STATE_READY, nextState());
+        awaitState(TimeClientCallback.STATE_STREAMING);
+        assertEquals(1, mHandles.get());
+        assertEquals(1, mTimings.getCachedSetups());
+    }
+
+    private int nextState() throws InterruptedException {
+        Integer state = mStates.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertNotNull("No connection state change", state);
+        return state;
+    }
+
+    private void awaitState(int expected) throws InterruptedException {
+        while (nextState() != expected) {
+            //Skip the states on the way there
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.example.android.bluetoothgatt.client;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+
+import com.example.android.bluetoothgatt.transport.GattClientTransport;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+//Accepts every operation and never answers
+class RecordingTransport implements GattClientTransport {
+    private final List<String> mStarted =
+            Collections.synchronizedList(new ArrayList<String>());
+
+    int started() {
+        return mStarted.size();
+    }
+
+    String last() {
+        return mStarted.get(mStarted.size() - 1);
+    }
+
+    @Override
+    public BluetoothDevice getDevice() {
+        return null;
+    }
+
+    @Override
+    public boolean discoverServices() {
+        return false;
+    }
+
+    @Override
+    public List<BluetoothGattService> getServices() {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public BluetoothGattService getService(UUID uuid) {
+        return null;
+    }
+
+    @Override
+    public boolean readCharacteristic(
+            BluetoothGattCharacteristic characteristic) {
+        mStarted.add("read " + characteristic.getUuid());
+        return true;
+    }
+
+    @Override
+    public boolean writeCharacteristic(
+            BluetoothGattCharacteristic characteristic) {
+        mStarted.add("write " + characteristic.getUuid() + " "
+                + characteristic.getValue()[0]);
+        return true;
+    }
+
+    @Override
+    public boolean writeDescriptor(BluetoothGattDescriptor descriptor) {
+        mStarted.add("descriptor " + descriptor.getUuid());
+        return true;
+    }
+
+    @Override
+    public boolean setCharacteristicNotification(
+            BluetoothGattCharacteristic characteristic, boolean enable) {
+        return true;
+    }
+
+    @Override
+    public boolean requestMtu(int mtu) {
+        mStarted.add("mtu " + mtu);
+        return true;
+    }
+
+    @Override
+    public boolean connect() {
+        return false;
+    }
+
+    @Override
+    public void disconnect() {
+    }
+
+    @Override
+    public void close() {
+    }
+}
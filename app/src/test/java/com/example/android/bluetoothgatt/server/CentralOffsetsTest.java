@@ -0,0 +1,140 @@
+package com.example.android.bluetoothgatt.server;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CentralOffsetsTest {
+    //Four entries get a table of eight slots
+    private static final int MAX_SIZE = 4;
+    private static final int LAST_SLOT = 7;
+
+    private CentralOffsets mOffsets;
+
+    @Before
+    public void setUp() {
+        mOffsets = new CentralOffsets(MAX_SIZE);
+    }
+
+    @Test
+    public void putGetAndOverwrite() {
+        assertTrue(mOffsets.put(1, 10));
+        assertTrue(mOffsets.put(1, -1));
+        assertEquals(0xFFFFFFFFL, mOffsets.get(1));
+        assertEquals(CentralOffsets.MISSING, mOffsets.get(2));
+        assertEquals(1, mOffsets.size());
+    }
+
+    @Test
+    public void fullTableRefusesNewKeys() {
+        for (int key = 1; key <= MAX_SIZE; key++) {
+            assertTrue(mOffsets.put(key, key));
+        }
+        assertFalse(mOffsets.put(MAX_SIZE + 1, 0));
+        //Existing keys may still change
+        assertTrue(mOffsets.put(1, 100));
+    }
+
+    @Test
+    public void removingTheChainHeadKeepsWrappedEntries() {
+        //All three start at the last slot, so two wrap around to the front
+        long[] keys = keysWithHome(LAST_SLOT, 3, 1);
+        put(keys);
+
+        remove(keys[0]);
+        assertEquals(CentralOffsets.MISSING, mOffsets.get(keys[0]));
+        assertEquals(offsetOf(keys[1]), mOffsets.get(keys[1]));
+        assertEquals(offsetOf(keys[2]), mOffsets.get(keys[2]));
+        assertEquals(2, mOffsets.size());
+    }
+
+    @Test
+    public void removingAWrappedEntryKeepsTheRest() {
+        long[] keys = keysWithHome(LAST_SLOT, 3, 1);
+        put(keys);
+
+        //The first to wrap, in slot 0
+        remove(keys[1]);
+        assertEquals(offsetOf(keys[0]), mOffsets.get(keys[0]));
+        assertEquals(CentralOffsets.MISSING, mOffsets.get(keys[1]));
+        assertEquals(offsetOf(keys[2]), mOffsets.get(keys[2]));
+    }
+
+    @Test
+    public void entryDisplacedFromItsHomeMovesBackAcrossTheWrap() {
+        long[] wrapping = keysWithHome(LAST_SLOT, 2, 1);
+        //Home is slot 0, taken by a wrapped entry, so it lands in slot 1
+        long displaced = keysWithHome(0, 1, wrapping[1] + 1)[0];
+        put(wrapping);
+        put(displaced);
+
+        remove(wrapping[0]);
+        assertEquals(offsetOf(displaced), mOffsets.get(displaced));
+        remove(wrapping[1]);
+        assertEquals(offsetOf(displaced), mOffsets.get(displaced));
+        assertEquals(1, mOffsets.size());
+    }
+
+    @Test
+    public void evictingAWholeWrappedChainEmptiesTheTable() {
+        long[] keys = keysWithHome(LAST_SLOT, 3, 1);
+        put(keys);
+        for (long key : keys) {
+            mOffsets.onDisconnected(key, 10);
+        }
+
+        assertEquals(0, mOffsets.evictExpired(10));
+        assertEquals(0, mOffsets.size());
+        for (long key : keys) {
+            assertEquals(CentralOffsets.MISSING, mOffsets.get(key));
+        }
+
+        //The freed slots are usable again
+        put(keys);
+        assertEquals(offsetOf(keys[2]), mOffsets.get(keys[2]));
+    }
+
+    @Test
+    public void reconnectKeepsTheEntryPastItsExpiry() {
+        long[] keys = keysWithHome(LAST_SLOT, 2, 1);
+        put(keys);
+        mOffsets.onDisconnected(keys[0], 10);
+        mOffsets.onDisconnected(keys[1], 20);
+        mOffsets.onConnected(keys[0]);
+
+        assertEquals(20, mOffsets.evictExpired(10));
+        assertEquals(offsetOf(keys[0]), mOffsets.get(keys[0]));
+        assertEquals(0, mOffsets.evictExpired(20));
+        assertEquals(CentralOffsets.MISSING, mOffsets.get(keys[1]));
+        assertEquals(offsetOf(keys[0]), mOffsets.get(keys[0]));
+    }
+
+    private void put(long... keys) {
+        for (long key : keys) {
+            assertTrue(mOffsets.put(key, (int) offsetOf(key)));
+        }
+    }
+
+    //Disconnected entries go once their grace period is over
+    private void remove(long key) {
+        mOffsets.onDisconnected(key, 1);
+        mOffsets.evictExpired(1);
+    }
+
+    private static long offsetOf(long key) {
+        return key * 3 + 1;
+    }
+
+    //The first keys from the given one up that start at the slot
+    private long[] keysWithHome(int slot, int count, long from) {
+        long[] keys = new long[count];
+        int found = 0;
+        for (long key = from; found < count; key++) {
+            if (mOffsets.home(key) == slot) {
+                keys[found++] = key;
+            }
+        }
+        return keys;
+    }
+}
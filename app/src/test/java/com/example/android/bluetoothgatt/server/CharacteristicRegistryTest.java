@@ -0,0 +1,152 @@
+package com.example.android.bluetoothgatt.server;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattService;
+
+import com.example.android.bluetoothgatt.transport.GattServerTransport;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class CharacteristicRegistryTest {
+    private static final int MTU = 23;
+    //Payload of one full read response
+    private static final int PART = MTU - 1;
+
+    private final BluetoothGattCharacteristic mCharacteristic =
+            new BluetoothGattCharacteristic(UUID.randomUUID(),
+                    BluetoothGattCharacteristic.PROPERTY_READ,
+                    BluetoothGattCharacteristic.PERMISSION_READ);
+
+    private CharacteristicRegistry mRegistry;
+    private RecordingServer mServer;
+    private DeviceState mState;
+    //Each read of the attribute returns a longer value than the last
+    private int mReads;
+
+    @Before
+    public void setUp() {
+        mRegistry = new CharacteristicRegistry();
+        mServer = new RecordingServer();
+        mState = new DeviceState(new BluetoothDevice("00:00:00:00:00:01"));
+        mState.mtu = MTU;
+        mReads = 0;
+    }
+
+    @Test
+    public void valueFillingItsLastPartIsKeptForTheEmptyRead() {
+        registerGrowingValue(2 * PART);
+
+        assertEquals(PART, read(0).length);
+        assertEquals(PART, read(PART).length);
+        assertNotNull("Let go before the terminating read",
+                mState.readSnapshot);
+
+        //The central cannot tell the value ended until a short part
+        byte[] last = read(2 * PART);
+        assertEquals(BluetoothGatt.GATT_SUCCESS, mServer.status);
+        assertEquals(0, last.length);
+        assertEquals(1, mReads);
+        assertNull(mState.readSnapshot);
+    }
+
+    @Test
+    public void shortPartEndsTheRead() {
+        registerGrowingValue(PART + 8);
+
+        read(0);
+        assertNotNull(mState.readSnapshot);
+        assertEquals(8, read(PART).length);
+        assertNull(mState.readSnapshot);
+
+        //The next read starts over with the current value
+        read(0);
+        assertEquals(2, mReads);
+    }
+
+    @Test
+    public void blobReadsSeeTheValueReadAtOffsetZero() {
+        registerGrowingValue(3 * PART);
+
+        byte[] first = read(0);
+        byte[] second = read(PART);
+        byte[] third = read(2 * PART);
+        assertEquals(1, mReads);
+        for (byte[] part : Arrays.asList(first, second, third)) {
+            for (byte b : part) {
+                assertEquals(1, b);
+            }
+        }
+    }
+
+    /*
+     * Values are filled with the read count, and each is a full part
+     * longer than the one before
+     */
+    private void registerGrowingValue(final int length) {
+        mRegistry.register(mCharacteristic,
+                new CharacteristicRegistry.ReadHandler() {
+                    @Override
+                    public byte[] onRead(BluetoothDevice device) {
+                        byte[] value = new byte[length + mReads * PART];
+                        Arrays.fill(value, (byte) ++mReads);
+                        return value;
+                    }
+                }, null);
+    }
+
+    private byte[] read(int offset) {
+        mRegistry.dispatchRead(mServer, mState, 1, mCharacteristic, offset);
+        assertEquals(BluetoothGatt.GATT_SUCCESS, mServer.status);
+        return mServer.value;
+    }
+
+    private static class RecordingServer implements GattServerTransport {
+        int status;
+        byte[] value;
+
+        @Override
+        public boolean addService(BluetoothGattService service) {
+            return false;
+        }
+
+        @Override
+        public BluetoothGattService getService(UUID uuid) {
+            return null;
+        }
+
+        @Override
+        public boolean sendResponse(BluetoothDevice device, int requestId,
+                                    int status, int offset, byte[] value) {
+            this.status = status;
+            this.value = value;
+            return true;
+        }
+
+        @Override
+        public boolean sendResponse(BluetoothDevice device, int requestId,
+                                    int status, int offset, ByteBuffer value) {
+            byte[] raw = new byte[value.remaining()];
+            value.duplicate().get(raw);
+            return sendResponse(device, requestId, status, offset, raw);
+        }
+
+        @Override
+        public boolean notifyCharacteristicChanged(BluetoothDevice device,
+                BluetoothGattCharacteristic characteristic, boolean confirm) {
+            return false;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
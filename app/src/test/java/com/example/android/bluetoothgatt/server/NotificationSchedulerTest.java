@@ -0,0 +1,161 @@
+package com.example.android.bluetoothgatt.server;
+
+import android.bluetooth.BluetoothDevice;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class NotificationSchedulerTest {
+    private static final int TICK_MILLIS = 10;
+    private static final int WHEEL_SIZE = 8;
+
+    private final BluetoothDevice mFirst = new BluetoothDevice("00:00:00:00:00:01");
+    private final BluetoothDevice mSecond = new BluetoothDevice("00:00:00:00:00:02");
+    private final BluetoothDevice mThird = new BluetoothDevice("00:00:00:00:00:03");
+
+    private NotificationScheduler mScheduler;
+    private List<BluetoothDevice> mFired;
+    private NotificationScheduler.DueListener mListener;
+
+    @Before
+    public void setUp() {
+        mScheduler = new NotificationScheduler(TICK_MILLIS, WHEEL_SIZE);
+        mFired = new ArrayList<BluetoothDevice>();
+        mListener = new NotificationScheduler.DueListener() {
+            @Override
+            public void onNotificationDue(BluetoothDevice device) {
+                mFired.add(device);
+            }
+        };
+    }
+
+    @Test
+    public void firesOnceEachIntervalWithinTheWheel() {
+        mScheduler.schedule(mFirst, 30, 0);
+
+        mScheduler.advance(29, mListener);
+        assertTrue(mFired.isEmpty());
+        mScheduler.advance(30, mListener);
+        assertEquals(1, mFired.size());
+        mScheduler.advance(59, mListener);
+        assertEquals(1, mFired.size());
+        mScheduler.advance(60, mListener);
+        assertEquals(2, mFired.size());
+    }
+
+    @Test
+    public void intervalLongerThanTheWheelWaitsOutItsRounds() {
+        //Twenty ticks is two full laps and a half of the eight slots
+        mScheduler.schedule(mFirst, 200, 0);
+
+        mScheduler.advance(199, mListener);
+        assertTrue("Fired on an earlier lap", mFired.isEmpty());
+        mScheduler.advance(200, mListener);
+        assertEquals(1, mFired.size());
+
+        mScheduler.advance(399, mListener);
+        assertEquals(1, mFired.size());
+        mScheduler.advance(400, mListener);
+        assertEquals(2, mFired.size());
+    }
+
+    @Test
+    public void devicesSharingASlotOnDifferentLapsFireSeparately() {
+        //Both hash into the same slot, one lap apart
+        mScheduler.schedule(mFirst, 30, 0);
+        mScheduler.schedule(mSecond, 30 + TICK_MILLIS * WHEEL_SIZE, 0);
+
+        mScheduler.advance(30, mListener);
+        assertEquals(1, mFired.size());
+        assertEquals(mFirst, mFired.get(0));
+
+        mFired.clear();
+        mScheduler.advance(110, mListener);
+        assertTrue(mFired.contains(mSecond));
+    }
+
+    @Test
+    public void lateAdvanceCatchesUpOnMissedTicks() {
+        mScheduler.schedule(mFirst, 200, 0);
+
+        //A single late call catches up on every missed tick
+        mScheduler.advance(1000, mListener);
+        assertEquals(5, mFired.size());
+    }
+
+    @Test
+    public void cancelledDeviceNeverFires() {
+        mScheduler.schedule(mFirst, 30, 0);
+        mScheduler.schedule(mSecond, 30, 0);
+        mScheduler.schedule(mThird, 30, 0);
+
+        //Unlink from the middle of the slot's list
+        mScheduler.cancel(mSecond);
+        assertFalse(mScheduler.isScheduled(mSecond));
+
+        mScheduler.advance(30, mListener);
+        assertEquals(2, mFired.size());
+        assertFalse(mFired.contains(mSecond));
+    }
+
+    @Test
+    public void cancellingTheSlotHeadKeepsTheRest() {
+        mScheduler.schedule(mFirst, 30, 0);
+        mScheduler.schedule(mSecond, 30, 0);
+
+        //The latest insert heads the list
+        mScheduler.cancel(mSecond);
+        mScheduler.cancel(mFirst);
+        mScheduler.schedule(mThird, 30, 0);
+
+        mScheduler.advance(30, mListener);
+        assertEquals(1, mFired.size());
+        assertEquals(mThird, mFired.get(0));
+    }
+
+    @Test
+    public void cancelFromTheListenerStopsLaterNotifications() {
+        mScheduler.schedule(mFirst, 30, 0);
+        mScheduler.advance(30, new NotificationScheduler.DueListener() {
+            @Override
+            public void onNotificationDue(BluetoothDevice device) {
+                mFired.add(device);
+                mScheduler.cancel(device);
+            }
+        });
+        assertEquals(1, mFired.size());
+        assertTrue(mScheduler.isEmpty());
+
+        mScheduler.advance(1000, mListener);
+        assertEquals(1, mFired.size());
+    }
+
+    @Test
+    public void rescheduleReplacesTheInterval() {
+        mScheduler.schedule(mFirst, 200, 0);
+        mScheduler.schedule(mFirst, 30, 0);
+
+        mScheduler.advance(200, mListener);
+        //Every 30ms instead of once at 200ms
+        assertEquals(6, mFired.size());
+    }
+
+    @Test
+    public void idleWheelRestartsItsClock() {
+        mScheduler.schedule(mFirst, 30, 0);
+        mScheduler.cancel(mFirst);
+        assertTrue(mScheduler.isEmpty());
+
+        mScheduler.schedule(mFirst, 30, 5000);
+        assertEquals(5000 + TICK_MILLIS, mScheduler.getNextTickTime());
+        mScheduler.advance(5029, mListener);
+        assertTrue(mFired.isEmpty());
+        mScheduler.advance(5030, mListener);
+        assertEquals(1, mFired.size());
+    }
+}
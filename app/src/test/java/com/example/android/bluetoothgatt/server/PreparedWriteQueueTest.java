@@ -0,0 +1,133 @@
+package com.example.android.bluetoothgatt.server;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static com.example.android.bluetoothgatt.TimerGattProfile.*;
+import static org.junit.Assert.*;
+
+public class PreparedWriteQueueTest {
+    private static final int POOL_BUFFERS = 4;
+
+    private final BluetoothDevice mDevice = new BluetoothDevice("00:00:00:00:00:01");
+    private final BluetoothGattCharacteristic mFirst = characteristic();
+    private final BluetoothGattCharacteristic mSecond = characteristic();
+
+    private CharacteristicRegistry mRegistry;
+    private BufferPool mPool;
+    private PreparedWriteQueue mQueue;
+    //Last value each characteristic took, as a 32-bit int
+    private int mFirstValue;
+    private int mSecondValue;
+
+    @Before
+    public void setUp() {
+        mRegistry = new CharacteristicRegistry();
+        mRegistry.register(mFirst, null, new IntWriter() {
+            @Override
+            void apply(int value) {
+                mFirstValue = value;
+            }
+        });
+        mRegistry.register(mSecond, null, new IntWriter() {
+            @Override
+            void apply(int value) {
+                mSecondValue = value;
+            }
+        });
+        mPool = new BufferPool(MAX_ATTRIBUTE_LENGTH, POOL_BUFFERS);
+        mQueue = new PreparedWriteQueue();
+    }
+
+    @Test
+    public void valuesReassembledFromPartsAreAllApplied() {
+        prepare(mFirst, 0, new byte[] {1, 0});
+        prepare(mFirst, 2, new byte[] {0, 0});
+        prepare(mSecond, 0, bytesFromInt(7));
+
+        assertEquals(BluetoothGatt.GATT_SUCCESS,
+                mQueue.execute(mRegistry, mPool, mDevice));
+        assertEquals(1, mFirstValue);
+        assertEquals(7, mSecondValue);
+        assertTrue(mQueue.isEmpty());
+    }
+
+    @Test
+    public void invalidSecondValueLeavesTheFirstUnchanged() {
+        prepare(mFirst, 0, bytesFromInt(5));
+        //Too short to decode
+        prepare(mSecond, 0, new byte[] {1, 2});
+
+        assertEquals(BluetoothGatt.GATT_INVALID_ATTRIBUTE_LENGTH,
+                mQueue.execute(mRegistry, mPool, mDevice));
+        assertEquals(0, mFirstValue);
+        assertEquals(0, mSecondValue);
+        assertTrue(mQueue.isEmpty());
+        assertEquals(POOL_BUFFERS, mPool.getAvailable());
+    }
+
+    @Test
+    public void writeFailingAfterTheChecksKeepsEarlierValues() {
+        final BluetoothGattCharacteristic third = characteristic();
+        mRegistry.register(third, null, new IntWriter() {
+            @Override
+            public int onWrite(BluetoothDevice device, byte[] value) {
+                //Accepted by check(), then refused, as on a disconnect
+                return GATT_INSUFFICIENT_RESOURCES;
+            }
+
+            @Override
+            void apply(int value) {
+                fail("Refused value applied");
+            }
+        });
+        prepare(mFirst, 0, bytesFromInt(5));
+        prepare(third, 0, bytesFromInt(6));
+        prepare(mSecond, 0, bytesFromInt(7));
+
+        assertEquals(GATT_INSUFFICIENT_RESOURCES,
+                mQueue.execute(mRegistry, mPool, mDevice));
+        assertEquals(5, mFirstValue);
+        assertEquals(0, mSecondValue);
+        assertTrue(mQueue.isEmpty());
+        assertEquals(POOL_BUFFERS, mPool.getAvailable());
+    }
+
+    private void prepare(BluetoothGattCharacteristic characteristic,
+                         int offset, byte[] value) {
+        assertEquals(BluetoothGatt.GATT_SUCCESS,
+                mQueue.prepare(mPool, characteristic, offset, value));
+    }
+
+    private static BluetoothGattCharacteristic characteristic() {
+        return new BluetoothGattCharacteristic(UUID.randomUUID(),
+                BluetoothGattCharacteristic.PROPERTY_WRITE,
+                BluetoothGattCharacteristic.PERMISSION_WRITE);
+    }
+
+    //Takes exactly four bytes, as the profile's 32-bit values do
+    private abstract static class IntWriter
+            implements CharacteristicRegistry.WriteHandler {
+        @Override
+        public int check(BluetoothDevice device, byte[] value) {
+            if (value == null || value.length != 4)
+                throw new IllegalArgumentException("Not a 32-bit value");
+
+            return BluetoothGatt.GATT_SUCCESS;
+        }
+
+        @Override
+        public int onWrite(BluetoothDevice device, byte[] value) {
+            apply(unsignedIntFromBytes(value));
+            return BluetoothGatt.GATT_SUCCESS;
+        }
+
+        abstract void apply(int value);
+    }
+}
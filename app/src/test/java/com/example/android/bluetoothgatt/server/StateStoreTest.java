@@ -0,0 +1,176 @@
+package com.example.android.bluetoothgatt.server;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.*;
+
+/*
+ * Stores that are not closed stand for a process that died; their
+ * files are reopened by a new store as on the next start.
+ */
+public class StateStoreTest {
+    private static final int RECORD_SIZE = 16;
+    private static final int LOG_RECORDS = 256;
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    private File mDirectory;
+
+    @Before
+    public void setUp() throws IOException {
+        mDirectory = File.createTempFile("state", "");
+        assertTrue(mDirectory.delete());
+        assertTrue(mDirectory.mkdir());
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : mDirectory.listFiles()) {
+            file.delete();
+        }
+        mDirectory.delete();
+    }
+
+    @Test
+    public void tornTailRecordIsDropped() throws Exception {
+        StateStore store = new StateStore(mDirectory);
+        store.put(0, 1);
+        store.flush();
+        awaitRecord(0, 1);
+        store.put(0, 2);
+        store.put(1, 5);
+        store.flush();
+        awaitRecord(2, 3);
+
+        //The last record only made it halfway to the disk
+        corruptRecord(2);
+
+        StateStore restored = new StateStore(mDirectory);
+        assertEquals(2, restored.get(0, -1));
+        assertEquals(-1, restored.get(1, -1));
+
+        //New records replace the torn one rather than following it
+        restored.put(1, 7);
+        restored.flush();
+        awaitRecord(2, 3);
+
+        StateStore again = new StateStore(mDirectory);
+        assertEquals(2, again.get(0, -1));
+        assertEquals(7, again.get(1, -1));
+    }
+
+    @Test
+    public void restartAfterCompaction() throws Exception {
+        StateStore store = new StateStore(mDirectory);
+        for (int i = 1; i <= LOG_RECORDS; i++) {
+            store.put(0, i);
+            store.flush();
+            awaitRecord(i - 1, i);
+        }
+        assertFalse(snapshot().exists());
+
+        //The log is full, so this one goes to a snapshot instead
+        store.put(0, 1000);
+        store.flush();
+        awaitSnapshot();
+
+        //The log starts over, ahead of records the snapshot covers
+        store.put(1, 42);
+        store.flush();
+        awaitRecord(0, LOG_RECORDS + 1);
+
+        StateStore restored = new StateStore(mDirectory);
+        assertEquals(1000, restored.get(0, -1));
+        assertEquals(42, restored.get(1, -1));
+    }
+
+    @Test
+    public void closeLeavesASnapshotToRestoreFrom() throws Exception {
+        StateStore store = new StateStore(mDirectory);
+        store.put(0, 3);
+        store.put(4, -9);
+        store.close();
+        awaitSnapshot();
+        store.put(0, 4);
+
+        StateStore restored = new StateStore(mDirectory);
+        assertEquals(3, restored.get(0, -1));
+        assertEquals(-9, restored.get(4, -1));
+    }
+
+    @Test
+    public void restoresOnItsOwnThreadWhenCreated() throws Exception {
+        StateStore store = new StateStore(mDirectory);
+        store.put(2, 11);
+        store.close();
+        awaitSnapshot();
+
+        //Nothing asks for a value, yet the files are read
+        StateStore restored = new StateStore(mDirectory);
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (restored.getRestoreNanos() == 0) {
+            assertTrue("Never restored",
+                    System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+        assertEquals(11, restored.get(2, -1));
+    }
+
+    private File log() {
+        return new File(mDirectory, StateStore.LOG_NAME);
+    }
+
+    private File snapshot() {
+        return new File(mDirectory, StateStore.SNAPSHOT_NAME);
+    }
+
+    /*
+     * Wait for the store thread to write a record with the sequence
+     * number. Its checksum is the last field written.
+     */
+    private void awaitRecord(int index, long sequence) throws Exception {
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (System.currentTimeMillis() < deadline) {
+            RandomAccessFile file = new RandomAccessFile(log(), "r");
+            try {
+                if (file.length() >= (index + 1) * RECORD_SIZE) {
+                    file.seek(index * RECORD_SIZE);
+                    long header = file.readLong();
+                    file.readInt();
+                    int checksum = file.readInt();
+                    if (header >>> 8 == sequence && checksum != 0) return;
+                }
+            } finally {
+                file.close();
+            }
+            Thread.sleep(5);
+        }
+        fail("Record " + sequence + " never written");
+    }
+
+    //Snapshots are renamed into place once complete
+    private void awaitSnapshot() throws Exception {
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (!snapshot().exists()) {
+            assertTrue("Snapshot never written",
+                    System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    //Clears the checksum, so awaitRecord() waits for a rewrite
+    private void corruptRecord(int index) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(log(), "rw");
+        try {
+            file.seek(index * RECORD_SIZE + 12);
+            file.writeInt(0);
+        } finally {
+            file.close();
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package com.example.android.bluetoothgatt.transport;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.os.HandlerThread;
+
+import com.example.android.bluetoothgatt.server.ServerStatus;
+import com.example.android.bluetoothgatt.server.TimeServerCallback;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static com.example.android.bluetoothgatt.TimerGattProfile.*;
+import static org.junit.Assert.*;
+
+public class LoopbackCentralTest {
+    private static final long TIMEOUT_SECONDS = 5;
+
+    private final BluetoothDevice mDevice = new BluetoothDevice("02:00:00:00:00:03");
+
+    private HandlerThread mLinkThread;
+    private TimeServerCallback mServerCallback;
+    private LoopbackGattServer mServer;
+    private LoopbackCentral mCentral;
+    //Status of each completed operation, in order
+    private final BlockingQueue<Integer> mResults =
+            new LinkedBlockingQueue<Integer>();
+    private BluetoothGattCharacteristic mSchedule;
+
+    @Before
+    public void setUp() throws InterruptedException {
+        mLinkThread = new HandlerThread("LoopbackLink");
+        mLinkThread.start();
+        mServerCallback = new TimeServerCallback(
+                new TimeServerCallback.ServerStatusListener() {
+                    @Override
+                    public void onServerStatusChanged(ServerStatus status) {
+                    }
+                });
+        mServer = new LoopbackGattServer(mServerCallback,
+                mLinkThread.getLooper());
+        mServerCallback.initServer(mServer);
+
+        mCentral = mServer.connect(mDevice, new ResultCallback());
+        assertTrue(mCentral.discoverServices());
+        assertEquals(BluetoothGatt.GATT_SUCCESS, nextResult());
+        mSchedule = mCentral.getService(UUID_SERVICE_TIMER)
+                .getCharacteristic(UUID_CHARACTERISTIC_SCHEDULE);
+    }
+
+    @After
+    public void tearDown() {
+        mServerCallback.shutdownServer();
+        mServer.close();
+        mLinkThread.quit();
+    }
+
+    @Test
+    public void longWriteIsPreparedAndExecuted() throws InterruptedException {
+        //Far too long for one packet at the default MTU
+        final int count = 6;
+        final long first = System.currentTimeMillis() / 1000 + 3600;
+        byte[] value = new byte[count * SCHEDULE_ENTRY_SIZE];
+        for (int i = 0; i < count; i++) {
+            writeUInt32(value, i * SCHEDULE_ENTRY_SIZE, (int) first + i);
+            writeUInt32(value, i * SCHEDULE_ENTRY_SIZE + 4, i);
+        }
+        assertTrue(value.length > mCentral.getMtu() - 3);
+
+        mSchedule.setValue(value);
+        assertTrue(mCentral.writeCharacteristic(mSchedule));
+        assertEquals(BluetoothGatt.GATT_SUCCESS, nextResult());
+
+        //The schedule is installed on the server's thread; read it back
+        long deadline = System.nanoTime()
+                + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+        do {
+            assertTrue(System.nanoTime() < deadline);
+            assertTrue(mCentral.readCharacteristic(mSchedule));
+            assertEquals(BluetoothGatt.GATT_SUCCESS, nextResult());
+        } while (!Arrays.equals(value, mSchedule.getValue()));
+    }
+
+    @Test
+    public void refusedLongWriteFailsAsAWhole() throws InterruptedException {
+        //Each part is accepted, but the whole is not a list of entries
+        mSchedule.setValue(new byte[SCHEDULE_ENTRY_SIZE * 4 + 1]);
+        assertTrue(mCentral.writeCharacteristic(mSchedule));
+        assertEquals(BluetoothGatt.GATT_INVALID_ATTRIBUTE_LENGTH,
+                nextResult());
+
+        assertTrue(mCentral.readCharacteristic(mSchedule));
+        assertEquals(BluetoothGatt.GATT_SUCCESS, nextResult());
+        assertEquals(0, mSchedule.getValue().length);
+    }
+
+    @Test
+    public void longCommandIsNotSent() {
+        mSchedule.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+        mSchedule.setValue(new byte[SCHEDULE_ENTRY_SIZE * 4]);
+        assertFalse(mCentral.writeCharacteristic(mSchedule));
+    }
+
+    private int nextResult() throws InterruptedException {
+        Integer status = mResults.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertNotNull("Operation never completed", status);
+        return status;
+    }
+
+    private class ResultCallback implements GattClientTransport.Callback {
+        @Override
+        public void onConnectionStateChange(GattClientTransport transport,
+                                            int status, int newState) {
+        }
+
+        @Override
+        public void onServicesDiscovered(GattClientTransport transport,
+                                         int status) {
+            mResults.add(status);
+        }
+
+        @Override
+        public void onCharacteristicRead(GattClientTransport transport,
+                BluetoothGattCharacteristic characteristic, int status) {
+            mResults.add(status);
+        }
+
+        @Override
+        public void onCharacteristicWrite(GattClientTransport transport,
+                BluetoothGattCharacteristic characteristic, int status) {
+            mResults.add(status);
+        }
+
+        @Override
+        public void onCharacteristicChanged(GattClientTransport transport,
+                BluetoothGattCharacteristic characteristic) {
+        }
+
+        @Override
+        public void onDescriptorWrite(GattClientTransport transport,
+                BluetoothGattDescriptor descriptor, int status) {
+            mResults.add(status);
+        }
+
+        @Override
+        public void onMtuChanged(GattClientTransport transport, int mtu,
+                                 int status) {
+        }
+    }
+}
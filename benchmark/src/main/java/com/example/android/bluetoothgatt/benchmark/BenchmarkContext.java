@@ -0,0 +1,50 @@
+package com.example.android.bluetoothgatt.benchmark;
+
+import android.bluetooth.BluetoothGattServer;
+import android.bluetooth.BluetoothManager;
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Context handing out the recording Bluetooth stubs, plus helpers
+ * for benchmarks that need the main looper to catch up.
+ */
+public class BenchmarkContext extends Context {
+
+    private final BluetoothManager mBluetoothManager = new BluetoothManager();
+
+    @Override
+    public Object getSystemService(String name) {
+        if (BLUETOOTH_SERVICE.equals(name)) {
+            return mBluetoothManager;
+        }
+        return null;
+    }
+
+    /* The recording server opened by the code under test */
+    public BluetoothGattServer getGattServer() {
+        return mBluetoothManager.getLastOpenedServer();
+    }
+
+    /*
+     * Block until everything posted to the main looper so far has run.
+     */
+    public static void drainMainLooper() {
+        final CountDownLatch latch = new CountDownLatch(1);
+        new Handler(Looper.getMainLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        });
+        try {
+            latch.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
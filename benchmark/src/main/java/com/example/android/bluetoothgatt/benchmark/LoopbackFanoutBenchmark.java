@@ -0,0 +1,197 @@
+package com.example.android.bluetoothgatt.benchmark;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.os.HandlerThread;
+
+import com.example.android.bluetoothgatt.client.ClientStatus;
+import com.example.android.bluetoothgatt.client.TimeClientCallback;
+import com.example.android.bluetoothgatt.server.ServerStatus;
+import com.example.android.bluetoothgatt.server.TimeServerCallback;
+import com.example.android.bluetoothgatt.transport.GattClientTransport;
+import com.example.android.bluetoothgatt.transport.LoopbackCentral;
+import com.example.android.bluetoothgatt.transport.LoopbackGattServer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.example.android.bluetoothgatt.TimerGattProfile.*;
+
+/*
+ * End-to-end fan-out through the loopback transport: the real server
+ * callback notifies every subscribed central from its handler thread,
+ * and each notification crosses the simulated link into a real client
+ * callback. One
+ * operation is a complete fan-out, so sample mode reports the tail
+ * latency of delivering a value to all centrals.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LoopbackFanoutBenchmark {
+
+    @Param({"100", "1000"})
+    public int centrals;
+
+    //Simulated link latency in milliseconds
+    @Param({"0"})
+    public int latency;
+
+    private HandlerThread mLinkThread;
+    //All client callbacks share one GATT thread
+    private HandlerThread mClientThread;
+    private TimeServerCallback mServerCallback;
+    private LoopbackGattServer mServer;
+    private LoopbackCentral[] mCentrals;
+    private final AtomicLong mReceived = new AtomicLong();
+
+    @Setup
+    public void setUp() throws InterruptedException {
+        mLinkThread = new HandlerThread("LoopbackLink");
+        mLinkThread.start();
+        mClientThread = new HandlerThread("LoopbackClients");
+        mClientThread.start();
+
+        mServerCallback = new TimeServerCallback(new NullServerListener());
+        mServer = new LoopbackGattServer(mServerCallback,
+                mLinkThread.getLooper(), latency, LoopbackGattServer.MAX_MTU);
+        mServerCallback.initServer(mServer);
+
+        //Each central reads the value, then subscribes and gets one push
+        mCentrals = new LoopbackCentral[centrals];
+        for (int i = 0; i < centrals; i++) {
+            BluetoothDevice device = new BluetoothDevice(
+                    String.format("02:00:00:00:%02X:%02X", i >> 8, i & 0xFF));
+            TimeClientCallback client = new TimeClientCallback(
+                    new NullClientListener(), mClientThread.getLooper());
+            mCentrals[i] = mServer.connect(device, new CountingCallback(client));
+        }
+        awaitReceived(2L * centrals);
+
+        //Push scheduled notifications out of the way of the measurement
+        BluetoothGattCharacteristic interval = mServer
+                .getService(UUID_SERVICE_TIMER)
+                .getCharacteristic(UUID_CHARACTERISTIC_INTERVAL);
+        for (LoopbackCentral central : mCentrals) {
+            mServerCallback.onCharacteristicWriteRequest(central.getDevice(),
+                    0, interval, false, false, 0,
+                    bytesFromInt((int) TimeUnit.HOURS.toMillis(1)));
+        }
+        BenchmarkContext.drainMainLooper();
+    }
+
+    @TearDown
+    public void tearDown() {
+        mServerCallback.shutdownServer();
+        mServer.close();
+        mLinkThread.quit();
+        mClientThread.quit();
+    }
+
+    @Benchmark
+    public long fanout() throws InterruptedException {
+        long target = mReceived.get() + centrals;
+        mServerCallback.notifyConnectedDevices();
+        return awaitReceived(target);
+    }
+
+    private long awaitReceived(long target) throws InterruptedException {
+        long received;
+        while ((received = mReceived.get()) < target) {
+            Thread.yield();
+        }
+        return received;
+    }
+
+    /*
+     * Status snapshots are coalesced before they reach a listener, so
+     * count value deliveries on the link instead.
+     */
+    private class CountingCallback implements GattClientTransport.Callback {
+        private final TimeClientCallback mDelegate;
+
+        CountingCallback(TimeClientCallback delegate) {
+            mDelegate = delegate;
+        }
+
+        @Override
+        public void onConnectionStateChange(GattClientTransport transport,
+                                            int status, int newState) {
+            mDelegate.onConnectionStateChange(transport, status, newState);
+        }
+
+        @Override
+        public void onServicesDiscovered(GattClientTransport transport,
+                                         int status) {
+            mDelegate.onServicesDiscovered(transport, status);
+        }
+
+        @Override
+        public void onCharacteristicRead(GattClientTransport transport,
+                                BluetoothGattCharacteristic characteristic,
+                                int status) {
+            mDelegate.onCharacteristicRead(transport, characteristic, status);
+            if (UUID_CHARACTERISTIC_ELAPSED.equals(characteristic.getUuid())) {
+                mReceived.incrementAndGet();
+            }
+        }
+
+        @Override
+        public void onCharacteristicWrite(GattClientTransport transport,
+                                BluetoothGattCharacteristic characteristic,
+                                int status) {
+            mDelegate.onCharacteristicWrite(transport, characteristic, status);
+        }
+
+        @Override
+        public void onCharacteristicChanged(GattClientTransport transport,
+                                BluetoothGattCharacteristic characteristic) {
+            mDelegate.onCharacteristicChanged(transport, characteristic);
+            mReceived.incrementAndGet();
+        }
+
+        @Override
+        public void onDescriptorWrite(GattClientTransport transport,
+                                      BluetoothGattDescriptor descriptor,
+                                      int status) {
+            mDelegate.onDescriptorWrite(transport, descriptor, status);
+        }
+
+        @Override
+        public void onMtuChanged(GattClientTransport transport,
+                                 int mtu, int status) {
+            mDelegate.onMtuChanged(transport, mtu, status);
+        }
+    }
+
+    private static class NullClientListener
+            implements TimeClientCallback.ClientStatusListener {
+        @Override
+        public void onClientStatusChanged(ClientStatus status) {
+        }
+    }
+
+    private static class NullServerListener
+            implements TimeServerCallback.ServerStatusListener {
+        @Override
+        public void onServerStatusChanged(ServerStatus status) {
+        }
+    }
+}
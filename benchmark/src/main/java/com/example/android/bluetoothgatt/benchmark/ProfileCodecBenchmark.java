@@ -0,0 +1,96 @@
+package com.example.android.bluetoothgatt.benchmark;
+
+import com.example.android.bluetoothgatt.TimerGattProfile;
+import com.example.android.bluetoothgatt.server.TimerSnapshot;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Encoding and decoding of the timer characteristic values, through
+ * the same encoders the server uses: the per-second snapshot for full
+ * values, and zigzag varints for compact deltas.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProfileCodecBenchmark {
+
+    private int mValue;
+    private int mTimeOffset;
+    private long mSecond;
+    private byte[] mEncoded;
+    private byte[] mScratch;
+    private TimerSnapshot mSnapshot;
+    private byte[] mEncodedDelta;
+
+    @Setup
+    public void setUp() {
+        mValue = 0x12345678;
+        mSecond = System.currentTimeMillis() / 1000;
+        mTimeOffset = (int) mSecond - 3600;
+        mEncoded = TimerGattProfile.bytesFromInt(mValue);
+        mScratch = new byte[8];
+        mSnapshot = TimerSnapshot.create(mTimeOffset, mSecond);
+        mEncodedDelta = new byte[8];
+        TimerGattProfile.writeVarInt(mEncodedDelta, 0,
+                TimerGattProfile.zigzag(-300));
+    }
+
+    @Benchmark
+    public byte[] bytesFromInt() {
+        return TimerGattProfile.bytesFromInt(mValue++);
+    }
+
+    @Benchmark
+    public byte[] writeUInt32() {
+        TimerGattProfile.writeUInt32(mScratch, 0, mValue++);
+        return mScratch;
+    }
+
+    @Benchmark
+    public int unsignedIntFromBytes() {
+        return TimerGattProfile.unsignedIntFromBytes(mEncoded);
+    }
+
+    //Once per offset change
+    @Benchmark
+    public TimerSnapshot snapshotCreate() {
+        return TimerSnapshot.create(mTimeOffset, mSecond++);
+    }
+
+    /*
+     * Once per second, shared by every read and notification. This
+     * replaces getShiftedTimeValue, which computed the same value on
+     * every request before the snapshot did.
+     */
+    @Benchmark
+    public TimerSnapshot snapshotAdvance() {
+        return mSnapshot.advanceTo(mSecond++);
+    }
+
+    @Benchmark
+    public int encodeDelta() {
+        return TimerGattProfile.writeVarInt(mScratch, 1,
+                TimerGattProfile.zigzag((mValue++ & 0x3FF) - 512));
+    }
+
+    @Benchmark
+    public int decodeDelta() {
+        return TimerGattProfile.unzigzag(
+                TimerGattProfile.readVarInt(mEncodedDelta, 0));
+    }
+}
@@ -0,0 +1,160 @@
+package com.example.android.bluetoothgatt.benchmark;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattServer;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothProfile;
+
+import com.example.android.bluetoothgatt.server.ServerStatus;
+import com.example.android.bluetoothgatt.server.TimeServerCallback;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import static com.example.android.bluetoothgatt.TimerGattProfile.*;
+
+/*
+ * Read, write and notify paths of the GATT server callback, with the
+ * framework server replaced by the recording stub.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ServerCallbackBenchmark {
+
+    //Number of connected centrals, all subscribed to notifications
+    @Param({"1", "32", "256"})
+    public int devices;
+
+    private TimeServerCallback mCallback;
+    private BluetoothGattServer mGattServer;
+    private BluetoothDevice[] mDevices;
+    private BluetoothGattCharacteristic mElapsed;
+    private BluetoothGattCharacteristic mOffset;
+    private byte[] mOffsetValue;
+    private int mRequestId;
+
+    @Setup
+    public void setUp() {
+        BenchmarkContext context = new BenchmarkContext();
+        mCallback = new TimeServerCallback(new NullStatusListener());
+        mCallback.initServer(context);
+        mGattServer = context.getGattServer();
+
+        BluetoothGattService service = mGattServer.getService(UUID_SERVICE_TIMER);
+        mElapsed = service.getCharacteristic(UUID_CHARACTERISTIC_ELAPSED);
+        mOffset = service.getCharacteristic(UUID_CHARACTERISTIC_OFFSET);
+        BluetoothGattDescriptor config =
+                mElapsed.getDescriptor(UUID_DESCRIPTOR_CLIENT_CONFIG);
+
+        BluetoothGattCharacteristic interval =
+                service.getCharacteristic(UUID_CHARACTERISTIC_INTERVAL);
+
+        mDevices = new BluetoothDevice[devices];
+        for (int i = 0; i < devices; i++) {
+            mDevices[i] = new BluetoothDevice(
+                    String.format("02:00:00:00:%02X:%02X", i >> 8, i & 0xFF));
+            mCallback.onConnectionStateChange(mDevices[i], 0,
+                    BluetoothProfile.STATE_CONNECTED);
+            //Push scheduled notifications out of the way of the measurement
+            mCallback.onCharacteristicWriteRequest(mDevices[i], mRequestId++,
+                    interval, false, false, 0,
+                    bytesFromInt((int) TimeUnit.HOURS.toMillis(1)));
+            mCallback.onDescriptorWriteRequest(mDevices[i], mRequestId++,
+                    config, false, true, 0,
+                    BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
+        }
+        //Each subscription pushes the current value once
+        awaitNotifications(devices);
+        for (BluetoothDevice device : mDevices) {
+            mCallback.onNotificationSent(device, BluetoothGatt.GATT_SUCCESS);
+        }
+        BenchmarkContext.drainMainLooper();
+
+        mOffsetValue = bytesFromInt((int) (System.currentTimeMillis() / 1000));
+        mGattServer.reset();
+    }
+
+    @TearDown
+    public void tearDown() {
+        mCallback.shutdownServer();
+    }
+
+    @Benchmark
+    public void readElapsed() {
+        mCallback.onCharacteristicReadRequest(mDevices[0], mRequestId++, 0,
+                mElapsed);
+    }
+
+    @Benchmark
+    public void readOffset() {
+        mCallback.onCharacteristicReadRequest(mDevices[0], mRequestId++, 0,
+                mOffset);
+    }
+
+    /*
+     * A new offset is announced to every subscriber on the handler
+     * thread. Waiting for that fan-out keeps it from piling up behind
+     * the measurement, so one operation is the write and its fan-out.
+     */
+    @Benchmark
+    public long writeOffset() {
+        long target = mGattServer.getNotificationCount() + devices;
+        mCallback.onCharacteristicWriteRequest(mDevices[0], mRequestId++,
+                mOffset, false, true, 0, mOffsetValue);
+        return awaitFanout(target);
+    }
+
+    /*
+     * The fan-out runs on the server's handler thread, so one operation
+     * includes handing it over and waiting for every notification
+     */
+    @Benchmark
+    public long notifySubscribers() {
+        long target = mGattServer.getNotificationCount() + devices;
+        mCallback.notifyConnectedDevices();
+        return awaitFanout(target);
+    }
+
+    private long awaitFanout(long target) {
+        long sent = awaitNotifications(target);
+        //Acknowledge like a healthy link, keeping every window open
+        for (BluetoothDevice device : mDevices) {
+            mCallback.onNotificationSent(device, BluetoothGatt.GATT_SUCCESS);
+        }
+        return sent;
+    }
+
+    private long awaitNotifications(long target) {
+        long sent;
+        while ((sent = mGattServer.getNotificationCount()) < target) {
+            Thread.yield();
+        }
+        return sent;
+    }
+
+    private static class NullStatusListener
+            implements TimeServerCallback.ServerStatusListener {
+        @Override
+        public void onServerStatusChanged(ServerStatus status) {
+        }
+    }
+}
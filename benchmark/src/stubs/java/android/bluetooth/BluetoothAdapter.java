@@ -0,0 +1,22 @@
+package android.bluetooth;
+
+public class BluetoothAdapter {
+    public static final String ACTION_REQUEST_ENABLE =
+            "android.bluetooth.adapter.action.REQUEST_ENABLE";
+
+    public BluetoothDevice getRemoteDevice(String address) {
+        return new BluetoothDevice(address);
+    }
+
+    public boolean isEnabled() {
+        return true;
+    }
+
+    public boolean isOffloadedScanBatchingSupported() {
+        return false;
+    }
+
+    public boolean isMultipleAdvertisementSupported() {
+        return false;
+    }
+}
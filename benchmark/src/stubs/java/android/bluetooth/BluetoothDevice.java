@@ -0,0 +1,49 @@
+package android.bluetooth;
+
+import android.content.Context;
+
+/*
+ * Stand-in for a remote device, identified only by its address.
+ */
+public class BluetoothDevice {
+    private final String mAddress;
+    private final String mName;
+
+    public BluetoothDevice(String address) {
+        this(address, null);
+    }
+
+    public BluetoothDevice(String address, String name) {
+        mAddress = address;
+        mName = name;
+    }
+
+    public String getAddress() {
+        return mAddress;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public BluetoothGatt connectGatt(Context context, boolean autoConnect,
+                                     BluetoothGattCallback callback) {
+        return new BluetoothGatt(this, callback, autoConnect);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof BluetoothDevice
+                && mAddress.equals(((BluetoothDevice) o).mAddress);
+    }
+
+    @Override
+    public int hashCode() {
+        return mAddress.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return mAddress;
+    }
+}
@@ -0,0 +1,128 @@
+package android.bluetooth;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+public class BluetoothGattCharacteristic {
+    public static final int PROPERTY_BROADCAST = 0x01;
+    public static final int PROPERTY_READ = 0x02;
+    public static final int PROPERTY_WRITE_NO_RESPONSE = 0x04;
+    public static final int PROPERTY_WRITE = 0x08;
+    public static final int PROPERTY_NOTIFY = 0x10;
+    public static final int PROPERTY_INDICATE = 0x20;
+    public static final int PROPERTY_SIGNED_WRITE = 0x40;
+    public static final int PROPERTY_EXTENDED_PROPS = 0x80;
+
+    public static final int PERMISSION_READ = 0x01;
+    public static final int PERMISSION_WRITE = 0x10;
+
+    public static final int WRITE_TYPE_DEFAULT = 0x02;
+    public static final int WRITE_TYPE_NO_RESPONSE = 0x01;
+    public static final int WRITE_TYPE_SIGNED = 0x04;
+
+    public static final int FORMAT_UINT8 = 0x11;
+    public static final int FORMAT_UINT16 = 0x12;
+    public static final int FORMAT_UINT32 = 0x14;
+    public static final int FORMAT_SINT8 = 0x21;
+    public static final int FORMAT_SINT16 = 0x22;
+    public static final int FORMAT_SINT32 = 0x24;
+
+    private static int sNextInstance;
+
+    private final UUID mUuid;
+    private final int mProperties;
+    private final int mPermissions;
+    private final int mInstance;
+    private int mWriteType = WRITE_TYPE_DEFAULT;
+    BluetoothGattService mService;
+    private final List<BluetoothGattDescriptor> mDescriptors =
+            new ArrayList<BluetoothGattDescriptor>();
+    private byte[] mValue;
+
+    public BluetoothGattCharacteristic(UUID uuid, int properties,
+                                       int permissions) {
+        mUuid = uuid;
+        mProperties = properties;
+        mPermissions = permissions;
+        synchronized (BluetoothGattCharacteristic.class) {
+            mInstance = sNextInstance++;
+        }
+    }
+
+    public UUID getUuid() {
+        return mUuid;
+    }
+
+    public int getInstanceId() {
+        return mInstance;
+    }
+
+    public int getProperties() {
+        return mProperties;
+    }
+
+    public int getPermissions() {
+        return mPermissions;
+    }
+
+    public int getWriteType() {
+        return mWriteType;
+    }
+
+    public void setWriteType(int writeType) {
+        mWriteType = writeType;
+    }
+
+    public BluetoothGattService getService() {
+        return mService;
+    }
+
+    public boolean addDescriptor(BluetoothGattDescriptor descriptor) {
+        mDescriptors.add(descriptor);
+        descriptor.mCharacteristic = this;
+        return true;
+    }
+
+    public BluetoothGattDescriptor getDescriptor(UUID uuid) {
+        for (BluetoothGattDescriptor descriptor : mDescriptors) {
+            if (descriptor.getUuid().equals(uuid)) {
+                return descriptor;
+            }
+        }
+        return null;
+    }
+
+    public List<BluetoothGattDescriptor> getDescriptors() {
+        return mDescriptors;
+    }
+
+    public byte[] getValue() {
+        return mValue;
+    }
+
+    public boolean setValue(byte[] value) {
+        mValue = value;
+        return true;
+    }
+
+    public Integer getIntValue(int formatType, int offset) {
+        if (mValue == null || offset + (formatType & 0xF) > mValue.length) {
+            return null;
+        }
+        switch (formatType) {
+            case FORMAT_UINT8:
+                return mValue[offset] & 0xFF;
+            case FORMAT_UINT16:
+                return (mValue[offset] & 0xFF) | ((mValue[offset + 1] & 0xFF) << 8);
+            case FORMAT_UINT32:
+            case FORMAT_SINT32:
+                return (mValue[offset] & 0xFF)
+                        | ((mValue[offset + 1] & 0xFF) << 8)
+                        | ((mValue[offset + 2] & 0xFF) << 16)
+                        | ((mValue[offset + 3] & 0xFF) << 24);
+            default:
+                return null;
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package android.bluetooth;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Recording stand-in for the framework GATT server. Every outgoing
+ * response and notification is counted, and the most recent payload
+ * is kept so callers can consume it, but nothing leaves the process.
+ */
+public class BluetoothGattServer implements BluetoothProfile {
+    private final List<BluetoothGattService> mServices =
+            new ArrayList<BluetoothGattService>();
+
+    private final AtomicLong mResponses = new AtomicLong();
+    private final AtomicLong mFailures = new AtomicLong();
+    private final AtomicLong mNotifications = new AtomicLong();
+    private volatile byte[] mLastValue;
+    private volatile int mLastStatus;
+
+    public BluetoothGattServer() {
+    }
+
+    public boolean addService(BluetoothGattService service) {
+        mServices.add(service);
+        return true;
+    }
+
+    public boolean removeService(BluetoothGattService service) {
+        return mServices.remove(service);
+    }
+
+    public BluetoothGattService getService(UUID uuid) {
+        for (BluetoothGattService service : mServices) {
+            if (service.getUuid().equals(uuid)) {
+                return service;
+            }
+        }
+        return null;
+    }
+
+    public List<BluetoothGattService> getServices() {
+        return mServices;
+    }
+
+    public boolean sendResponse(BluetoothDevice device, int requestId,
+                                int status, int offset, byte[] value) {
+        mResponses.incrementAndGet();
+        if (status != BluetoothGatt.GATT_SUCCESS) {
+            mFailures.incrementAndGet();
+        }
+        mLastStatus = status;
+        mLastValue = value;
+        return true;
+    }
+
+    public boolean notifyCharacteristicChanged(BluetoothDevice device,
+                                   BluetoothGattCharacteristic characteristic,
+                                   boolean confirm) {
+        mNotifications.incrementAndGet();
+        mLastValue = characteristic.getValue();
+        return true;
+    }
+
+    public boolean connect(BluetoothDevice device, boolean autoConnect) {
+        return true;
+    }
+
+    public void cancelConnection(BluetoothDevice device) {
+    }
+
+    public void close() {
+    }
+
+    public long getResponseCount() {
+        return mResponses.get();
+    }
+
+    public long getFailureCount() {
+        return mFailures.get();
+    }
+
+    public long getNotificationCount() {
+        return mNotifications.get();
+    }
+
+    public int getLastStatus() {
+        return mLastStatus;
+    }
+
+    public byte[] getLastValue() {
+        return mLastValue;
+    }
+
+    public void reset() {
+        mResponses.set(0);
+        mFailures.set(0);
+        mNotifications.set(0);
+        mLastValue = null;
+    }
+}
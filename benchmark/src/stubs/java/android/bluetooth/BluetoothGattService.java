@@ -0,0 +1,47 @@
+package android.bluetooth;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+public class BluetoothGattService {
+    public static final int SERVICE_TYPE_PRIMARY = 0;
+    public static final int SERVICE_TYPE_SECONDARY = 1;
+
+    private final UUID mUuid;
+    private final int mServiceType;
+    private final List<BluetoothGattCharacteristic> mCharacteristics =
+            new ArrayList<BluetoothGattCharacteristic>();
+
+    public BluetoothGattService(UUID uuid, int serviceType) {
+        mUuid = uuid;
+        mServiceType = serviceType;
+    }
+
+    public UUID getUuid() {
+        return mUuid;
+    }
+
+    public int getType() {
+        return mServiceType;
+    }
+
+    public boolean addCharacteristic(BluetoothGattCharacteristic characteristic) {
+        mCharacteristics.add(characteristic);
+        characteristic.mService = this;
+        return true;
+    }
+
+    public BluetoothGattCharacteristic getCharacteristic(UUID uuid) {
+        for (BluetoothGattCharacteristic characteristic : mCharacteristics) {
+            if (characteristic.getUuid().equals(uuid)) {
+                return characteristic;
+            }
+        }
+        return null;
+    }
+
+    public List<BluetoothGattCharacteristic> getCharacteristics() {
+        return mCharacteristics;
+    }
+}
@@ -0,0 +1,23 @@
+package android.bluetooth;
+
+import android.content.Context;
+
+public class BluetoothManager {
+    private final BluetoothAdapter mAdapter = new BluetoothAdapter();
+    private BluetoothGattServer mLastServer;
+
+    public BluetoothAdapter getAdapter() {
+        return mAdapter;
+    }
+
+    public BluetoothGattServer openGattServer(Context context,
+                                              BluetoothGattServerCallback callback) {
+        mLastServer = new BluetoothGattServer();
+        return mLastServer;
+    }
+
+    /* Recording hook: the server handed out by the last openGattServer() */
+    public BluetoothGattServer getLastOpenedServer() {
+        return mLastServer;
+    }
+}
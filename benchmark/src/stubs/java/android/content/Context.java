@@ -0,0 +1,21 @@
+package android.content;
+
+import java.io.File;
+
+public abstract class Context {
+    public static final String BLUETOOTH_SERVICE = "bluetooth";
+
+    public abstract Object getSystemService(String name);
+
+    public File getFilesDir() {
+        return new File(System.getProperty("java.io.tmpdir"));
+    }
+
+    public File getCacheDir() {
+        return getFilesDir();
+    }
+
+    public Context getApplicationContext() {
+        return this;
+    }
+}
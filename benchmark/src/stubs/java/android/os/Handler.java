@@ -0,0 +1,86 @@
+package android.os;
+
+import java.util.Iterator;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class Handler {
+    private static final AtomicLong sSequence = new AtomicLong();
+
+    static final class Message implements Delayed {
+        final Handler target;
+        final Runnable callback;
+        final long when;
+        final long seq = sSequence.getAndIncrement();
+
+        Message(Handler target, Runnable callback, long when) {
+            this.target = target;
+            this.callback = callback;
+            this.when = when;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(when - SystemClock.uptimeMillis(),
+                    TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            Message o = (Message) other;
+            if (when != o.when) return when < o.when ? -1 : 1;
+            return seq < o.seq ? -1 : (seq == o.seq ? 0 : 1);
+        }
+    }
+
+    private final Looper mLooper;
+
+    public Handler() {
+        this(Looper.myLooper());
+    }
+
+    public Handler(Looper looper) {
+        mLooper = looper;
+    }
+
+    public final Looper getLooper() {
+        return mLooper;
+    }
+
+    public final boolean post(Runnable r) {
+        return postAtTime(r, SystemClock.uptimeMillis());
+    }
+
+    public final boolean postDelayed(Runnable r, long delayMillis) {
+        return postAtTime(r, SystemClock.uptimeMillis() + Math.max(0, delayMillis));
+    }
+
+    public final boolean postAtTime(Runnable r, long uptimeMillis) {
+        if (mLooper.mQuitting) return false;
+        return mLooper.mQueue.add(new Message(this, r, uptimeMillis));
+    }
+
+    public final boolean postAtFrontOfQueue(Runnable r) {
+        return postAtTime(r, 0);
+    }
+
+    public final void removeCallbacks(Runnable r) {
+        Iterator<Message> it = mLooper.mQueue.iterator();
+        while (it.hasNext()) {
+            Message m = it.next();
+            if (m.target == this && m.callback == r) {
+                it.remove();
+            }
+        }
+    }
+
+    public final void removeCallbacksAndMessages(Object token) {
+        Iterator<Message> it = mLooper.mQueue.iterator();
+        while (it.hasNext()) {
+            if (it.next().target == this) {
+                it.remove();
+            }
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package android.os;
+
+import java.util.concurrent.DelayQueue;
+
+/*
+ * Minimal looper: a single thread draining a delay queue of messages.
+ */
+public final class Looper {
+    private static final ThreadLocal<Looper> sThreadLocal = new ThreadLocal<Looper>();
+    private static Looper sMainLooper;
+
+    final DelayQueue<Handler.Message> mQueue = new DelayQueue<Handler.Message>();
+    private volatile boolean mQuit;
+    //Set by either quit; later posts are refused, as on the framework
+    volatile boolean mQuitting;
+    private Thread mThread;
+
+    public static void prepare() {
+        sThreadLocal.set(new Looper());
+        sThreadLocal.get().mThread = Thread.currentThread();
+    }
+
+    public static synchronized Looper getMainLooper() {
+        if (sMainLooper == null) {
+            final Looper looper = new Looper();
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    sThreadLocal.set(looper);
+                    looper.loopInternal();
+                }
+            }, "main");
+            thread.setDaemon(true);
+            looper.mThread = thread;
+            sMainLooper = looper;
+            thread.start();
+        }
+        return sMainLooper;
+    }
+
+    public static Looper myLooper() {
+        return sThreadLocal.get();
+    }
+
+    public static void loop() {
+        myLooper().loopInternal();
+    }
+
+    public Thread getThread() {
+        return mThread;
+    }
+
+    public void quit() {
+        mQuitting = true;
+        mQuit = true;
+        mQueue.add(new Handler.Message(null, null, 0));
+    }
+
+    //Messages already due are still delivered, as on the framework
+    public void quitSafely() {
+        mQuitting = true;
+        mQueue.add(new Handler.Message(null, new Runnable() {
+            @Override
+            public void run() {
+                mQuit = true;
+            }
+        }, SystemClock.uptimeMillis()));
+    }
+
+    private void loopInternal() {
+        while (!mQuit) {
+            try {
+                Handler.Message message = mQueue.take();
+                if (message.callback != null) {
+                    message.callback.run();
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+}
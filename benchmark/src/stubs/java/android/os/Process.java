@@ -0,0 +1,15 @@
+package android.os;
+
+public class Process {
+    public static final int THREAD_PRIORITY_DEFAULT = 0;
+    public static final int THREAD_PRIORITY_BACKGROUND = 10;
+    public static final int THREAD_PRIORITY_FOREGROUND = -2;
+    public static final int THREAD_PRIORITY_DISPLAY = -4;
+    public static final int THREAD_PRIORITY_URGENT_DISPLAY = -8;
+    public static final int THREAD_PRIORITY_AUDIO = -16;
+    public static final int THREAD_PRIORITY_URGENT_AUDIO = -19;
+    public static final int THREAD_PRIORITY_MORE_FAVORABLE = -1;
+
+    public static void setThreadPriority(int priority) {
+    }
+}
@@ -0,0 +1,38 @@
+package android.view;
+
+import android.os.Handler;
+import android.os.Looper;
+
+/*
+ * Frames are simulated by running callbacks on the main looper
+ * as soon as it gets to them.
+ */
+public final class Choreographer {
+
+    public interface FrameCallback {
+        void doFrame(long frameTimeNanos);
+    }
+
+    private static final Choreographer sInstance = new Choreographer();
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private Choreographer() {
+    }
+
+    public static Choreographer getInstance() {
+        return sInstance;
+    }
+
+    public void postFrameCallback(final FrameCallback callback) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                callback.doFrame(System.nanoTime());
+            }
+        });
+    }
+
+    public void removeFrameCallback(FrameCallback callback) {
+    }
+}